@@ -0,0 +1,103 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Checks that the backends agree: runs each C- program on the TM virtual
+ * machine, as a JVM class, as an x86-64 executable and straight from the
+ * syntax tree, and compares everything they print. Each run is a separate JVM,
+ * so that it gets its own standard input. A program reads the file named
+ * after it with ".in" in place of ".cm" if there is one, or else the file
+ * given with -in, or else nothing.
+ */
+public class BackendCheck {
+    private static final String[][] BACKENDS = { { "-r" }, { "-jvm", "-r" }, { "-x86", "-r" }, { "-tree" } };
+
+    public static void main(String[] args) throws Exception {
+        int first = 0;
+        File input = null;
+        if (args.length > 1 && args[0].equals("-in")) {
+            input = new File(args[1]);
+            first = 2;
+        }
+        if (first == args.length) {
+            System.err.println("Usage: BackendCheck [-in FILE] FILE...");
+            System.exit(1);
+        }
+        int failed = 0;
+        for (int i = first; i < args.length; i++) {
+            failed += check(args[i], input, System.out) ? 0 : 1;
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static boolean check(String fileName, File input, PrintStream output)
+            throws IOException, InterruptedException {
+        File ownInput = new File(fileName.replaceFirst("[.]cm$", "") + ".in");
+        if (ownInput.isFile()) {
+            input = ownInput;
+        }
+        String expected = run(fileName, BACKENDS[0], input);
+        boolean same = true;
+        for (int i = 1; i < BACKENDS.length; i++) {
+            String result = run(fileName, BACKENDS[i], input);
+            if (!result.equals(expected)) {
+                if (same) {
+                    output.println(fileName + ": DIFFERENT output");
+                    output.print(indent(String.join(" ", BACKENDS[0]), expected));
+                }
+                output.print(indent(String.join(" ", BACKENDS[i]), result));
+                same = false;
+            }
+        }
+        if (same) {
+            output.println(fileName + ": same output");
+        }
+        return same;
+    }
+
+    // Runs CM on the file with the given options, and returns its standard output followed by its standard error
+    private static String run(String fileName, String[] options, File input) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("CM");
+        command.add(fileName);
+        command.addAll(Arrays.asList(options));
+
+        File out = File.createTempFile("backend", ".out");
+        File err = File.createTempFile("backend", ".err");
+        try {
+            ProcessBuilder builder = new ProcessBuilder(command).redirectOutput(out).redirectError(err);
+            if (input != null) {
+                builder.redirectInput(input);
+            }
+            Process process = builder.start();
+            if (input == null) {
+                process.getOutputStream().close();
+            }
+            process.waitFor();
+            // The TM virtual machine also reports where an error happened, which the other backends cannot
+            String errors = new String(Files.readAllBytes(err.toPath())).replaceAll("(?m) at [0-9]+$", "");
+            return new String(Files.readAllBytes(out.toPath())) + errors;
+        } finally {
+            out.delete();
+            err.delete();
+        }
+    }
+
+    private static String indent(String backend, String text) {
+        StringBuilder builder = new StringBuilder("  " + backend + ":\n");
+        for (String line : text.split("\n", -1)) {
+            if (!line.isEmpty()) {
+                builder.append("    ").append(line).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -4,6 +4,11 @@
 */
 
 import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import absyn.*;
 
 class CM {
@@ -16,6 +21,15 @@ class CM {
         return false;
     }
 
+    public static String getArgValue(String[] args, String arg, String defaultValue) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(arg)) {
+                return args[i + 1];
+            }
+        }
+        return defaultValue;
+    }
+
     public static boolean showSyntaxTree(String[] args) {
         return hasArg(args, "-a");
     }
@@ -28,6 +42,566 @@ class CM {
         return hasArg(args, "-c");
     }
 
+    public static boolean generateBinary(String[] args) {
+        return hasArg(args, "-tmb");
+    }
+
+    public static boolean showStackReport(String[] args) {
+        return hasArg(args, "-d");
+    }
+
+    public static boolean showCodeStats(String[] args) {
+        return hasArg(args, "-stats");
+    }
+
+    public static int getBoundsMode(String[] args) {
+        String mode = getArgValue(args, "-bounds", "inline");
+        switch (mode) {
+            case "inline":
+                return CodeGenerator.BOUNDS_INLINE;
+            case "vm":
+                return CodeGenerator.BOUNDS_VM;
+            case "off":
+                return CodeGenerator.BOUNDS_OFF;
+            default:
+                System.err.println("Error: Unknown bounds check mode \"" + mode + "\" (use inline, vm or off).");
+                System.exit(1);
+                return CodeGenerator.BOUNDS_INLINE;
+        }
+    }
+
+    public static boolean memoize(String[] args) {
+        return hasArg(args, "-m");
+    }
+
+    // -batch runs the program too, so it does not need -r
+    public static boolean runCode(String[] args) {
+        return hasArg(args, "-r") || getBatchPath(args) != null;
+    }
+
+    public static boolean translateCode(String[] args) {
+        return hasArg(args, "-jit");
+    }
+
+    public static boolean profileCode(String[] args) {
+        return hasArg(args, "-prof");
+    }
+
+    public static boolean fuseInstructions(String[] args) {
+        return !hasArg(args, "-nofuse");
+    }
+
+    public static boolean showFusionReport(String[] args) {
+        return hasArg(args, "-fusion");
+    }
+
+    public static boolean useBufferedIO(String[] args) {
+        return hasArg(args, "-bufio") || getArgValue(args, "-in", null) != null;
+    }
+
+    // Input values for buffered I/O: the file given with -in, a comma-separated list of values, or standard input
+    public static TMInput getInputValues(String[] args) throws IOException {
+        String source = getArgValue(args, "-in", null);
+        if (source == null) {
+            return TMInput.read(System.in);
+        }
+        if (new File(source).isFile()) {
+            try (InputStream stream = new FileInputStream(source)) {
+                return TMInput.read(stream);
+            }
+        }
+        String[] parts = source.split(",");
+        int[] values = new int[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = Integer.parseInt(parts[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("\"" + source + "\" is neither an input file nor a list of values");
+        }
+        return new TMInput(values);
+    }
+
+    public static String getBatchPath(String[] args) {
+        return getArgValue(args, "-batch", null);
+    }
+
+    public static int getThreadCount(String[] args) {
+        return Integer.parseInt(getArgValue(args, "-threads", "0"));
+    }
+
+    public static boolean useExtendedISA(String[] args) {
+        return hasArg(args, "-ext");
+    }
+
+    public static boolean registerMetrics(String[] args) {
+        return hasArg(args, "-metrics");
+    }
+
+    public static String getMetricsLogFile(String[] args) {
+        return getArgValue(args, "-metricslog", null);
+    }
+
+    public static long getMetricsInterval(String[] args) {
+        return Long.parseLong(getArgValue(args, "-metricsinterval", "1000"));
+    }
+
+    public static boolean collectMetrics(String[] args) {
+        return registerMetrics(args) || getMetricsLogFile(args) != null;
+    }
+
+    // Opens the JSON lines log for -metricslog, or returns null
+    public static PrintStream openMetricsLog(String[] args) {
+        String file = getMetricsLogFile(args);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return new PrintStream(new FileOutputStream(file), true);
+        } catch (IOException e) {
+            System.err.println("Failed to open the metrics log \"" + file + "\".");
+            return null;
+        }
+    }
+
+    // Charset of the source file
+    public static java.nio.charset.Charset getCharset(String[] args) {
+        String name = getArgValue(args, "-charset", null);
+        if (name == null) {
+            return SourceReader.DEFAULT_CHARSET;
+        }
+        try {
+            return java.nio.charset.Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: Unknown charset \"" + name + "\".");
+            System.exit(1);
+            return SourceReader.DEFAULT_CHARSET;
+        }
+    }
+
+    public static boolean useDescentParser(String[] args) {
+        return hasArg(args, "-rd");
+    }
+
+    public static boolean pipelineLexer(String[] args) {
+        return hasArg(args, "-pipeline");
+    }
+
+    // Runs the lexer on its own thread with -pipeline
+    public static java_cup.runtime.Scanner openLexer(String inputFileName, String[] args) throws IOException {
+        Lexer lexer = new Lexer(SourceReader.open(inputFileName, getCharset(args)));
+        return pipelineLexer(args) ? new PipelinedLexer(lexer) : lexer;
+    }
+
+    // Parses with the recursive descent parser if asked, leaving syntax errors to the CUP parser
+    public static Absyn parseSource(String inputFileName, String[] args) throws Exception {
+        if (useDescentParser(args)) {
+            java_cup.runtime.Scanner lexer = openLexer(inputFileName, args);
+            DecList result = new DescentParser(lexer).parse();
+            if (result != null) {
+                return result;
+            }
+            if (lexer instanceof PipelinedLexer) {
+                ((PipelinedLexer) lexer).close();
+            }
+        }
+        return (Absyn) new parser(openLexer(inputFileName, args)).parse().value;
+    }
+
+    public static boolean useCodeCache(String[] args) {
+        return hasArg(args, "-cache");
+    }
+
+    // Opens the code cache of a program for -cache, or returns null; folded tells builds with -stream apart
+    public static CodeCache openCodeCache(String inputFilePrefix, boolean folded, String[] args) {
+        if (!useCodeCache(args)) {
+            return null;
+        }
+        if (memoize(args)) {
+            System.err.println("-cache is not used with -m.");
+            return null;
+        }
+        CodeCache cache = new CodeCache("bounds=" + getBoundsMode(args) + " extended=" + useExtendedISA(args)
+                + " folded=" + folded);
+        try {
+            cache.open(inputFilePrefix + ".cache");
+            return cache;
+        } catch (IOException e) {
+            System.err.println("Failed to open the code cache \"" + inputFilePrefix + ".cache\".");
+            return null;
+        }
+    }
+
+    public static void saveCodeCache(CodeCache cache, String inputFilePrefix) {
+        try {
+            cache.save();
+            System.out.println("Code cache: reused " + cache.getNumReused() + " of " + cache.getNumFunctions()
+                    + " functions.");
+        } catch (IOException e) {
+            System.err.println("Failed to write the code cache \"" + inputFilePrefix + ".cache\".");
+        }
+    }
+
+    public static boolean streamCompile(String[] args) {
+        return hasArg(args, "-stream");
+    }
+
+    /*
+     * Compiles one top-level declaration at a time with -stream. Returns false
+     * if it cannot be used with the other options or the program has a syntax
+     * error, in which case the whole program should be parsed as usual.
+     */
+    public static boolean compileStreaming(String inputFileName, String inputFilePrefix, String symbolTableFile,
+            String codeGenFile, String[] args) throws Exception {
+        if (showSyntaxTree(args) || memoize(args) || runTree(args) || compileToClass(args)
+                || compileToNative(args)) {
+            System.err.println("-stream is not used with -a, -m, -tree, -jvm or -x86.");
+            return false;
+        }
+        boolean generate = generateTMCode(args);
+        if (!generate && !showSymbolTable(args)) {
+            return false;
+        }
+        SemanticAnalyzer semAnalyzer = new SemanticAnalyzer();
+        CodeGenerator codeGenerator = null;
+        if (generate) {
+            codeGenerator = new CodeGenerator();
+            codeGenerator.setBoundsMode(getBoundsMode(args));
+            codeGenerator.setExtendedISA(useExtendedISA(args));
+        }
+        StreamingCompiler compiler = new StreamingCompiler(semAnalyzer, codeGenerator);
+        CodeCache cache = generate ? openCodeCache(inputFilePrefix, false, args) : null;
+        if (cache != null) {
+            compiler.setCache(cache);
+        }
+        java_cup.runtime.Scanner lexer = openLexer(inputFileName, args);
+        if (!compiler.compile(lexer, symbolTableFile, codeGenFile)) {
+            if (lexer instanceof PipelinedLexer) {
+                ((PipelinedLexer) lexer).close();
+            }
+            if (cache != null) {
+                cache.discard();
+            }
+            return false;
+        }
+        if (semAnalyzer.getNumErrors() > 0) {
+            if (cache != null) {
+                cache.discard();
+            }
+            System.out.println("\nErrors in semantic analysis. Aborting code generation.");
+        } else if (codeGenerator != null) {
+            if (cache != null) {
+                saveCodeCache(cache, inputFilePrefix);
+            }
+            useGeneratedCode(codeGenerator, inputFileName, inputFilePrefix, args);
+        }
+        return true;
+    }
+
+    // Writes the binary and reports for generated TM code, and runs it
+    public static void useGeneratedCode(CodeGenerator codeGenerator, String inputFileName, String inputFilePrefix,
+            String[] args) {
+        if (generateBinary(args)) {
+            codeGenerator.writeBinary(inputFilePrefix + ".tmb");
+        }
+        if (showStackReport(args)) {
+            new StackAnalyzer(codeGenerator.getFunctionInfo(), codeGenerator.getGlobalSize())
+                    .writeReport(inputFilePrefix + ".stack");
+        }
+        if (showCodeStats(args)) {
+            CodeStats stats = new CodeStats(codeGenerator.getFunctionInfo(), codeGenerator.getGlobalInfo());
+            System.out.print(stats.getTable());
+            stats.writeJson(inputFilePrefix + ".stats");
+        }
+        if (runCode(args) && !compileToClass(args) && !compileToNative(args)) {
+            if (profileCode(args)) {
+                profileProgram(codeGenerator, inputFileName, inputFilePrefix, args);
+            } else {
+                runProgram(codeGenerator.getProgram(), inputFilePrefix, args);
+            }
+        }
+    }
+
+    public static boolean runTree(String[] args) {
+        return hasArg(args, "-tree");
+    }
+
+    public static boolean compileToClass(String[] args) {
+        return hasArg(args, "-jvm");
+    }
+
+    public static boolean compileToNative(String[] args) {
+        return hasArg(args, "-x86");
+    }
+
+    // TM code is needed for -c and -tmb, and to run the program when -jvm or -x86 does not
+    public static boolean generateTMCode(String[] args) {
+        return generateCode(args) || generateBinary(args)
+                || (runCode(args) && !compileToClass(args) && !compileToNative(args));
+    }
+
+    // Memory size in words, optionally followed by K, M or G
+    public static int getMemorySize(String[] args) {
+        String value = getArgValue(args, "-mem", String.valueOf(TMMachine.DEFAULT_MEMORY_SIZE)).toUpperCase();
+        int shift = 0;
+        if (value.endsWith("K") || value.endsWith("M") || value.endsWith("G")) {
+            shift = value.endsWith("K") ? 10 : value.endsWith("M") ? 20 : 30;
+            value = value.substring(0, value.length() - 1);
+        }
+        long size;
+        try {
+            size = Long.parseLong(value) << shift;
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        if (size < 1 || size > Integer.MAX_VALUE) {
+            System.err.println("Error: The memory size must be between 1 and " + Integer.MAX_VALUE + " words.");
+            System.exit(1);
+        }
+        return (int) size;
+    }
+
+    public static boolean useOffHeapMemory(String[] args) {
+        return hasArg(args, "-offheap") || getMemorySize(args) > TMMachine.MAX_HEAP_MEMORY_SIZE;
+    }
+
+    public static boolean showMemoryReport(String[] args) {
+        return hasArg(args, "-memstats");
+    }
+
+    public static void runProgram(TMProgram program, String inputFilePrefix, String[] args) {
+        if (getBatchPath(args) != null) {
+            runBatch(program, args);
+        } else {
+            runProgram(program, inputFilePrefix, args, null);
+        }
+    }
+
+    // Runs the program once for each input file in a directory, or listed in a file, one name per line
+    public static void runBatch(TMProgram program, String[] args) {
+        File path = new File(getBatchPath(args));
+        List<File> inputs = new ArrayList<File>();
+        try {
+            if (path.isDirectory()) {
+                File[] files = path.listFiles((dir, name) -> !name.endsWith(".out"));
+                Arrays.sort(files);
+                for (File file : files) {
+                    if (file.isFile()) {
+                        inputs.add(file);
+                    }
+                }
+            } else {
+                for (String line : Files.readAllLines(path.toPath())) {
+                    if (!line.trim().isEmpty()) {
+                        inputs.add(new File(line.trim()));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error: Failed to read the batch input list \"" + path + "\".");
+            return;
+        }
+
+        TMBatch batch = new TMBatch(program, getMemorySize(args), useOffHeapMemory(args), fuseInstructions(args));
+        batch.setBufferedIO(hasArg(args, "-bufio"));
+        PrintStream metricsLog = openMetricsLog(args);
+        if (collectMetrics(args)) {
+            batch.setMetrics(registerMetrics(args), metricsLog, getMetricsInterval(args));
+        }
+        if (translateCode(args)) {
+            TMTranslator translator = new TMTranslator(program);
+            java.lang.reflect.Method entry = translator.translate();
+            if (entry == null) {
+                System.err.println(translator.getErrorMessage() + "; using the interpreter.");
+            }
+            batch.setEntry(entry);
+        }
+        ExecutorService executor = TMBatch.newExecutor(getThreadCount(args));
+        try {
+            long start = System.nanoTime();
+            List<TMBatch.Result> results = batch.run(inputs, executor);
+            System.out.print(TMBatch.getReport(results, System.nanoTime() - start));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+            if (metricsLog != null) {
+                metricsLog.close();
+            }
+        }
+    }
+
+    public static void runProgram(TMProgram program, String inputFilePrefix, String[] args, TMProfiler profiler) {
+        TMMachine machine = new TMMachine(program, getMemorySize(args), useOffHeapMemory(args),
+                new BufferedReader(new InputStreamReader(System.in)), System.out);
+        machine.setProfiler(profiler);
+        machine.setFusion(fuseInstructions(args));
+        if (useBufferedIO(args)) {
+            try {
+                machine.setBufferedIO(getInputValues(args), new TMOutput(System.out));
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+                return;
+            }
+        }
+        TMMetrics metrics = null;
+        PrintStream metricsLog = null;
+        if (collectMetrics(args)) {
+            metrics = new TMMetrics(inputFilePrefix, program);
+            if (registerMetrics(args)) {
+                metrics.register();
+            }
+            metricsLog = openMetricsLog(args);
+            if (metricsLog != null) {
+                metrics.startLog(metricsLog, getMetricsInterval(args));
+            }
+            machine.setMetrics(metrics);
+        }
+        java.lang.reflect.Method entry = null;
+        if (translateCode(args) && machine.isOffHeap()) {
+            System.err.println("Translated code cannot use off-heap memory; using the interpreter.");
+        } else if (translateCode(args) && metrics != null) {
+            System.err.println("Metrics are only collected by the interpreter; using the interpreter.");
+        } else if (translateCode(args) && profiler == null) {
+            TMTranslator translator = new TMTranslator(program);
+            entry = translator.translate();
+            if (entry == null) {
+                System.err.println(translator.getErrorMessage() + "; using the interpreter.");
+            }
+        }
+        if (entry != null) {
+            machine.run(entry);
+        } else {
+            machine.run();
+        }
+        System.out.flush();
+        if (metrics != null) {
+            metrics.stopLog();
+            metrics.unregister();
+            if (metricsLog != null) {
+                metricsLog.close();
+            }
+        }
+        if (machine.getStatus() != TMMachine.STATUS_OK) {
+            System.err.println(machine.getErrorMessage());
+        }
+        if (profiler != null) {
+            profiler.finish();
+        }
+        if (showMemoryReport(args) && machine.getMemoryReport() != null) {
+            System.err.println(machine.getMemoryReport());
+        }
+        if (showFusionReport(args) && machine.getFusionReport() != null) {
+            TMFusion.writeReport(machine.getFusionReport(), inputFilePrefix + ".fusion");
+        }
+    }
+
+    // Runs the program in the interpreter, then writes its profile next to the input file
+    public static void profileProgram(CodeGenerator codeGenerator, String inputFileName, String inputFilePrefix,
+            String[] args) {
+        TMProgram program = codeGenerator.getProgram();
+        TMProfiler profiler = new TMProfiler(program, codeGenerator.getFunctionInfo());
+        profiler.addRoutine("input", codeGenerator.getInputLoc(), codeGenerator.getOutputLoc());
+        profiler.addRoutine("output", codeGenerator.getOutputLoc(), codeGenerator.getIOEndLoc());
+        try {
+            profiler.setSource(Files.readAllLines(new File(inputFileName).toPath()));
+        } catch (IOException e) {
+            // The profile is still useful without the source text
+        }
+        runProgram(program, inputFilePrefix, args, profiler);
+        profiler.writeReports(inputFilePrefix + ".prof", inputFilePrefix + ".folded");
+    }
+
+    // Compiles to a JVM class, then writes it next to the input file or runs it
+    public static void compileClass(DecList tree, String inputFilePrefix, String[] args) {
+        JVMGenerator generator = new JVMGenerator();
+        String className = "CMCompiled";
+        if (!runCode(args)) {
+            className = new File(inputFilePrefix).getName().replaceAll("[^A-Za-z0-9_]", "_");
+            if (className.isEmpty() || !Character.isJavaIdentifierStart(className.charAt(0))) {
+                className = "_" + className;
+            }
+        }
+        byte[] bytes;
+        try {
+            bytes = generator.generate(tree, className);
+        } catch (IllegalStateException e) {
+            System.err.println("Error: " + e.getMessage() + ".");
+            return;
+        }
+        if (!runCode(args)) {
+            String classFile = new File(new File(inputFilePrefix).getParent(), className + ".class").getPath();
+            if (generator.writeFile(bytes, classFile)) {
+                System.out.println("Class file written to \"" + classFile + "\".");
+            }
+            return;
+        }
+
+        try {
+            java.lang.reflect.Method execute = JVMGenerator.load(className, bytes);
+            int error = (Integer) execute.invoke(null, new BufferedReader(new InputStreamReader(System.in)),
+                    System.out);
+            if (error != 0) {
+                System.err.println("Runtime error " + error + ": " + TMMachine.getRuntimeErrorName(error));
+            }
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            System.out.flush();
+            if (e.getCause() instanceof NumberFormatException) {
+                System.err.println("Invalid or missing input");
+            } else if (e.getCause() instanceof StackOverflowError) {
+                System.err.println("Stack overflow");
+            } else {
+                e.getCause().printStackTrace();
+            }
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Runs the program straight from the syntax tree, without generating code
+    public static void interpretTree(DecList tree) {
+        TreeInterpreter interpreter = new TreeInterpreter();
+        interpreter.compile(tree);
+        try {
+            int error = interpreter.execute(new BufferedReader(new InputStreamReader(System.in)), System.out);
+            if (error != 0) {
+                System.err.println("Runtime error " + error + ": " + TMMachine.getRuntimeErrorName(error));
+            }
+        } catch (NumberFormatException e) {
+            System.out.flush();
+            System.err.println("Invalid or missing input");
+        } catch (StackOverflowError e) {
+            System.out.flush();
+            System.err.println("Stack overflow");
+        }
+    }
+
+    // Compiles to x86-64 assembly and links it into an executable named after the input file
+    public static void compileNative(DecList tree, String inputFilePrefix, String[] args) {
+        X86Generator generator = new X86Generator();
+        String assemblyFile = inputFilePrefix + ".s";
+        if (!generator.writeFile(generator.generate(tree), assemblyFile)
+                || !X86Generator.link(assemblyFile, inputFilePrefix)) {
+            System.err.println("Failed to build the executable \"" + inputFilePrefix + "\".");
+            return;
+        }
+        if (!runCode(args)) {
+            System.out.println("Executable written to \"" + inputFilePrefix + "\".");
+            return;
+        }
+
+        try {
+            System.out.flush();
+            int status = new ProcessBuilder(new File(inputFilePrefix).getAbsolutePath()).inheritIO().start()
+                    .waitFor();
+            if (status > 128) {
+                System.err.println("Program terminated by signal " + (status - 128));
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Failed to run \"" + inputFilePrefix + "\": " + e.getMessage());
+        }
+    }
+
     static public void main(String args[]) {
         String inputFileName = args[0];
         String inputFilePrefix = inputFileName.split("[.]")[0];
@@ -35,10 +609,24 @@ class CM {
         String symbolTableFile = showSymbolTable(args) ? inputFilePrefix + ".sym" : null;
         String codeGenFile = generateCode(args) ? inputFilePrefix + ".tm" : null;
 
+        // Run an already generated program
+        if (inputFileName.endsWith(".tm") || inputFileName.endsWith(".tmb")) {
+            try {
+                runProgram(inputFileName.endsWith(".tmb") ? TMBinary.load(inputFileName, false)
+                        : new TMLoader(inputFileName).load(), inputFilePrefix, args);
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+            return;
+        }
+
         /* Start the parser */
         try {
-            parser p = new parser(new Lexer(new FileReader(inputFileName)));
-            Absyn result = (Absyn) (p.parse().value);
+            if (streamCompile(args)
+                    && compileStreaming(inputFileName, inputFilePrefix, symbolTableFile, codeGenFile, args)) {
+                return;
+            }
+            Absyn result = parseSource(inputFileName, args);
             ShowTreeVisitor treeVisitor = new ShowTreeVisitor();
             SemanticAnalyzer semAnalyzer = new SemanticAnalyzer();
             CodeGenerator codeGenerator = new CodeGenerator();
@@ -48,12 +636,44 @@ class CM {
                     treeVisitor.showTree(result, syntaxTreeFile);
                 }
 
-                if ((showSymbolTable(args) || generateCode(args)) && result instanceof DecList) {
+                if ((showSymbolTable(args) || generateCode(args) || generateBinary(args) || runCode(args)
+                        || runTree(args) || compileToClass(args) || compileToNative(args))
+                        && result instanceof DecList) {
                     semAnalyzer.analyze((DecList) result, symbolTableFile);
                 }
 
-                if (generateCode(args) && semAnalyzer.getNumErrors() == 0) {
-                    codeGenerator.generate(result, codeGenFile);
+                if (runTree(args) && semAnalyzer.getNumErrors() == 0) {
+                    interpretTree((DecList) result);
+                }
+
+                if ((generateCode(args) || generateBinary(args) || runCode(args) || compileToClass(args)
+                        || compileToNative(args)) && semAnalyzer.getNumErrors() == 0) {
+                    new ConstantFolder().fold((DecList) result);
+                    if (compileToClass(args)) {
+                        compileClass((DecList) result, inputFilePrefix, args);
+                    }
+                    if (compileToNative(args)) {
+                        compileNative((DecList) result, inputFilePrefix, args);
+                    }
+                    if (generateTMCode(args)) {
+                        if (memoize(args)) {
+                            PurityAnalyzer purity = new PurityAnalyzer();
+                            purity.analyze((DecList) result);
+                            codeGenerator.enableMemoization(purity);
+                        }
+                        codeGenerator.setBoundsMode(getBoundsMode(args));
+                        codeGenerator.setExtendedISA(useExtendedISA(args));
+                        CodeCache cache = openCodeCache(inputFilePrefix, true, args);
+                        if (cache != null) {
+                            cache.addProgram((DecList) result);
+                            codeGenerator.setCache(cache);
+                        }
+                        codeGenerator.generate(result, codeGenFile);
+                        if (cache != null) {
+                            saveCodeCache(cache, inputFilePrefix);
+                        }
+                        useGeneratedCode(codeGenerator, inputFileName, inputFilePrefix, args);
+                    }
                 } else if (semAnalyzer.getNumErrors() > 0) {
                     System.out.println("\nErrors in semantic analysis. Aborting code generation.");
                 }
@@ -0,0 +1,560 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A small writer for JVM class files, enough to generate classes with static
+ * fields and static methods. Classes use version 49 so that no stack map frames
+ * are needed, which keeps the bytecode emitters simple.
+ */
+public class ClassFileWriter {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private static final int CLASS_VERSION = 49;
+
+    // Constant pool tags
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private ByteArrayOutputStream pool;
+    private DataOutputStream poolOut;
+    private Map<String, Integer> poolIndices;
+    private int poolCount;
+
+    private String className;
+    private int thisClass, superClass;
+    private List<byte[]> fields;
+    private List<byte[]> methods;
+
+    public ClassFileWriter(String className, String superName) {
+        this.className = className;
+        pool = new ByteArrayOutputStream();
+        poolOut = new DataOutputStream(pool);
+        poolIndices = new HashMap<String, Integer>();
+        poolCount = 1;
+        fields = new ArrayList<byte[]>();
+        methods = new ArrayList<byte[]>();
+        thisClass = classRef(className);
+        superClass = classRef(superName);
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    private int addConstant(String key, int tag, int a, int b, String utf8) {
+        Integer index = poolIndices.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(tag);
+            if (tag == CONSTANT_UTF8) {
+                poolOut.writeUTF(utf8);
+            } else if (tag == CONSTANT_INTEGER) {
+                poolOut.writeInt(a);
+            } else if (tag == CONSTANT_CLASS || tag == CONSTANT_STRING) {
+                poolOut.writeShort(a);
+            } else {
+                poolOut.writeShort(a);
+                poolOut.writeShort(b);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndices.put(key, poolCount);
+        return poolCount++;
+    }
+
+    public int utf8(String s) {
+        return addConstant("U" + s, CONSTANT_UTF8, 0, 0, s);
+    }
+
+    public int intConst(int value) {
+        return addConstant("I" + value, CONSTANT_INTEGER, value, 0, null);
+    }
+
+    public int stringConst(String s) {
+        return addConstant("S" + s, CONSTANT_STRING, utf8(s), 0, null);
+    }
+
+    public int classRef(String name) {
+        return addConstant("C" + name, CONSTANT_CLASS, utf8(name), 0, null);
+    }
+
+    private int nameAndType(String name, String desc) {
+        return addConstant("N" + name + " " + desc, CONSTANT_NAME_AND_TYPE, utf8(name), utf8(desc), null);
+    }
+
+    public int fieldRef(String owner, String name, String desc) {
+        return addConstant("F" + owner + "." + name + " " + desc, CONSTANT_FIELDREF, classRef(owner),
+                nameAndType(name, desc), null);
+    }
+
+    public int methodRef(String owner, String name, String desc) {
+        return addConstant("M" + owner + "." + name + desc, CONSTANT_METHODREF, classRef(owner),
+                nameAndType(name, desc), null);
+    }
+
+    public void addField(int access, String name, String desc) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(desc));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    public void addMethod(int access, String name, String desc, Code code) {
+        code.resolve();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(desc));
+            out.writeShort(1);
+
+            byte[] body = code.toByteArray();
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + body.length + 8 * code.handlers.size());
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(code.handlers.size());
+            for (int[] handler : code.handlers) {
+                out.writeShort(handler[0]);
+                out.writeShort(handler[1]);
+                out.writeShort(handler[2]);
+                out.writeShort(handler[3]);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Loads generated classes into the running JVM
+    public static class Loader extends ClassLoader {
+        public Loader() {
+            super(ClassFileWriter.class.getClassLoader());
+        }
+
+        public Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    public static class Label {
+        private int pos = -1;
+        private int stack = -1; // Operand stack depth on entry, if known
+        private List<int[]> fixups = new ArrayList<int[]>(); // {branch position, patch position, width}
+    }
+
+    /*
+     * Bytecode for a single method. Tracks the operand stack depth as instructions
+     * are added so that max_stack can be computed.
+     */
+    public static class Code {
+        // Opcodes
+        public static final int ICONST_0 = 3;
+        public static final int BIPUSH = 16;
+        public static final int SIPUSH = 17;
+        public static final int LDC = 18;
+        public static final int LDC_W = 19;
+        public static final int ILOAD = 21;
+        public static final int ALOAD = 25;
+        public static final int IALOAD = 46;
+        public static final int ISTORE = 54;
+        public static final int ASTORE = 58;
+        public static final int IASTORE = 79;
+        public static final int POP = 87;
+        public static final int DUP = 89;
+        public static final int DUP_X2 = 91;
+        public static final int SWAP = 95;
+        public static final int IADD = 96;
+        public static final int ISUB = 100;
+        public static final int IMUL = 104;
+        public static final int IDIV = 108;
+        public static final int INEG = 116;
+        public static final int IAND = 126;
+        public static final int IOR = 128;
+        public static final int IXOR = 130;
+        public static final int IINC = 132;
+        public static final int IFEQ = 153;
+        public static final int IFNE = 154;
+        public static final int IFLT = 155;
+        public static final int IFGE = 156;
+        public static final int IFGT = 157;
+        public static final int IFLE = 158;
+        public static final int IF_ICMPEQ = 159;
+        public static final int IF_ICMPNE = 160;
+        public static final int IF_ICMPLT = 161;
+        public static final int IF_ICMPGE = 162;
+        public static final int IF_ICMPGT = 163;
+        public static final int IF_ICMPLE = 164;
+        public static final int GOTO = 167;
+        public static final int TABLESWITCH = 170;
+        public static final int IRETURN = 172;
+        public static final int ARETURN = 176;
+        public static final int RETURN = 177;
+        public static final int GETSTATIC = 178;
+        public static final int PUTSTATIC = 179;
+        public static final int INVOKEVIRTUAL = 182;
+        public static final int INVOKESPECIAL = 183;
+        public static final int INVOKESTATIC = 184;
+        public static final int NEW = 187;
+        public static final int NEWARRAY = 188;
+        public static final int ARRAYLENGTH = 190;
+        public static final int ATHROW = 191;
+        public static final int WIDE = 196;
+        public static final int IFNULL = 198;
+        public static final int IFNONNULL = 199;
+        public static final int GOTO_W = 200;
+
+        public static final int T_INT = 10;
+
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private List<Label> labels = new ArrayList<Label>();
+        private List<int[]> handlers = new ArrayList<int[]>();
+        private List<Label[]> handlerLabels = new ArrayList<Label[]>();
+        private ClassFileWriter owner;
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+        private boolean longJumps; // Whether branches can reach anywhere in the method
+
+        public Code(ClassFileWriter owner, int maxLocals) {
+            this.owner = owner;
+            this.maxLocals = maxLocals;
+        }
+
+        public int size() {
+            return bytes.size();
+        }
+
+        // Branches only reach 32 KB either way, so longer methods need long jumps
+        public void setLongJumps(boolean longJumps) {
+            this.longJumps = longJumps;
+        }
+
+        public void setMaxLocals(int maxLocals) {
+            this.maxLocals = Math.max(this.maxLocals, maxLocals);
+        }
+
+        private void adjustStack(int delta) {
+            stack += delta;
+            if (stack > maxStack) {
+                maxStack = stack;
+            }
+        }
+
+        private void writeByte(int b) {
+            bytes.write(b);
+        }
+
+        private void writeShort(int s) {
+            bytes.write(s >> 8);
+            bytes.write(s);
+        }
+
+        private void writeInt(int i) {
+            writeShort(i >> 16);
+            writeShort(i);
+        }
+
+        // Emits an instruction without operands
+        public void op(int opcode, int stackDelta) {
+            writeByte(opcode);
+            adjustStack(stackDelta);
+            if (opcode == ATHROW || (opcode >= IRETURN && opcode <= RETURN)) {
+                stack = -1;
+            }
+        }
+
+        public void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                writeByte(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                writeByte(BIPUSH);
+                writeByte(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                writeByte(SIPUSH);
+                writeShort(value);
+            } else {
+                int index = owner.intConst(value);
+                if (index < 256) {
+                    writeByte(LDC);
+                    writeByte(index);
+                } else {
+                    writeByte(LDC_W);
+                    writeShort(index);
+                }
+            }
+            adjustStack(1);
+        }
+
+        public void pushString(String value) {
+            int index = owner.stringConst(value);
+            if (index < 256) {
+                writeByte(LDC);
+                writeByte(index);
+            } else {
+                writeByte(LDC_W);
+                writeShort(index);
+            }
+            adjustStack(1);
+        }
+
+        private void localOp(int opcode, int index, int stackDelta) {
+            if (index > 255) {
+                writeByte(WIDE);
+                writeByte(opcode);
+                writeShort(index);
+            } else {
+                writeByte(opcode);
+                writeByte(index);
+            }
+            adjustStack(stackDelta);
+            setMaxLocals(index + 1);
+        }
+
+        public void iload(int index) {
+            localOp(ILOAD, index, 1);
+        }
+
+        public void istore(int index) {
+            localOp(ISTORE, index, -1);
+        }
+
+        public void aload(int index) {
+            localOp(ALOAD, index, 1);
+        }
+
+        public void astore(int index) {
+            localOp(ASTORE, index, -1);
+        }
+
+        public void iinc(int index, int amount) {
+            if (index > 255 || amount < Byte.MIN_VALUE || amount > Byte.MAX_VALUE) {
+                writeByte(WIDE);
+                writeByte(IINC);
+                writeShort(index);
+                writeShort(amount);
+            } else {
+                writeByte(IINC);
+                writeByte(index);
+                writeByte(amount);
+            }
+            setMaxLocals(index + 1);
+        }
+
+        public void newIntArray() {
+            writeByte(NEWARRAY);
+            writeByte(T_INT);
+        }
+
+        public void field(int opcode, String owner, String name, String desc) {
+            writeByte(opcode);
+            writeShort(this.owner.fieldRef(owner, name, desc));
+            int size = 1;
+            adjustStack(opcode == GETSTATIC ? size : -size);
+        }
+
+        public void invoke(int opcode, String owner, String name, String desc) {
+            writeByte(opcode);
+            writeShort(this.owner.methodRef(owner, name, desc));
+            int delta = opcode == INVOKESTATIC ? 0 : -1;
+            int i = 1;
+            while (desc.charAt(i) != ')') {
+                delta--;
+                if (desc.charAt(i) == 'L') {
+                    i = desc.indexOf(';', i);
+                } else if (desc.charAt(i) == '[') {
+                    while (desc.charAt(i) == '[') {
+                        i++;
+                    }
+                    if (desc.charAt(i) == 'L') {
+                        i = desc.indexOf(';', i);
+                    }
+                }
+                i++;
+            }
+            if (desc.charAt(i + 1) != 'V') {
+                delta++;
+            }
+            adjustStack(delta);
+        }
+
+        public void newObject(String className) {
+            writeByte(NEW);
+            writeShort(owner.classRef(className));
+            adjustStack(1);
+        }
+
+        public Label newLabel() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        public void bind(Label label) {
+            label.pos = bytes.size();
+            if (stack < 0) {
+                stack = Math.max(label.stack, 0);
+            } else if (label.stack < 0) {
+                label.stack = stack;
+            }
+        }
+
+        private void branchTarget(Label label, int branchPos, int width) {
+            label.fixups.add(new int[] { branchPos, bytes.size(), width });
+            if (label.stack < 0) {
+                label.stack = stack;
+            }
+            if (width == 2) {
+                writeShort(0);
+            } else {
+                writeInt(0);
+            }
+        }
+
+        /*
+         * Emits a conditional or unconditional branch. With long jumps, GOTO becomes
+         * GOTO_W and a conditional branch becomes the opposite branch over a GOTO_W.
+         */
+        public void jump(int opcode, Label label) {
+            if (longJumps && opcode != GOTO) {
+                // The opposite of each branch is its neighbour in the pairs EQ/NE, LT/GE and GT/LE
+                int first = opcode >= IFNULL ? IFNULL : opcode >= IF_ICMPEQ ? IF_ICMPEQ : IFEQ;
+                writeByte(first + ((opcode - first) ^ 1));
+                writeShort(8);
+            } else {
+                writeByte(longJumps ? GOTO_W : opcode);
+            }
+            if ((opcode >= IFEQ && opcode <= IFLE) || opcode == IFNULL || opcode == IFNONNULL) {
+                adjustStack(-1);
+            } else if (opcode >= IF_ICMPEQ && opcode <= IF_ICMPLE) {
+                adjustStack(-2);
+            }
+            if (longJumps && opcode != GOTO) {
+                int branchPos = bytes.size();
+                writeByte(GOTO_W);
+                branchTarget(label, branchPos, 4);
+            } else {
+                branchTarget(label, bytes.size() - 1, longJumps ? 4 : 2);
+            }
+            if (opcode == GOTO) {
+                stack = -1;
+            }
+        }
+
+        public void tableSwitch(int low, Label defaultLabel, Label[] targets) {
+            int branchPos = bytes.size();
+            writeByte(TABLESWITCH);
+            adjustStack(-1);
+            while (bytes.size() % 4 != 0) {
+                writeByte(0);
+            }
+            branchTarget(defaultLabel, branchPos, 4);
+            writeInt(low);
+            writeInt(low + targets.length - 1);
+            for (Label target : targets) {
+                branchTarget(target, branchPos, 4);
+            }
+            stack = -1;
+        }
+
+        // Catches exceptions of the given class (or any, if null) thrown between the labels
+        public void addHandler(Label start, Label end, Label handler, String exceptionClass) {
+            handlers.add(new int[] { -1, -1, -1, exceptionClass == null ? 0 : owner.classRef(exceptionClass) });
+            handlerLabels.add(new Label[] { start, end, handler });
+            handler.stack = 1;
+        }
+
+        private void resolve() {
+            byte[] code = bytes.toByteArray();
+            for (Label label : labels) {
+                for (int[] fixup : label.fixups) {
+                    if (label.pos < 0) {
+                        throw new IllegalStateException("Unbound label");
+                    }
+                    int offset = label.pos - fixup[0];
+                    if (fixup[2] == 2) {
+                        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                            throw new IllegalStateException("Branch offset too large");
+                        }
+                        code[fixup[1]] = (byte) (offset >> 8);
+                        code[fixup[1] + 1] = (byte) offset;
+                    } else {
+                        code[fixup[1]] = (byte) (offset >> 24);
+                        code[fixup[1] + 1] = (byte) (offset >> 16);
+                        code[fixup[1] + 2] = (byte) (offset >> 8);
+                        code[fixup[1] + 3] = (byte) offset;
+                    }
+                }
+                label.fixups.clear();
+            }
+            bytes.reset();
+            bytes.write(code, 0, code.length);
+
+            for (int i = 0; i < handlerLabels.size(); i++) {
+                int[] handler = handlers.get(i);
+                handler[0] = handlerLabels.get(i)[0].pos;
+                handler[1] = handlerLabels.get(i)[1].pos;
+                handler[2] = handlerLabels.get(i)[2].pos;
+            }
+        }
+
+        private byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
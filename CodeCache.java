@@ -0,0 +1,682 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import absyn.*;
+
+/*
+ * On-disk cache of the code generated for each function, for -cache. A
+ * function is keyed by a SHA-256 hash of its syntax tree, the headers of every
+ * top-level declaration before it and the code generator options. The headers
+ * fix the global layout and the symbols the function can see, so a function
+ * with the same key analyzes the same way and compiles to the same code,
+ * wherever it now starts. Its code is kept as a fragment that records each
+ * comment and instruction in the order they were generated, with locations
+ * and source lines relative to the start of the function, so it can be
+ * replayed at a new location instead of being generated again.
+ *
+ * The cache file is written anew on each build, with the fragments of that
+ * build only. Fragments are read straight from the mapped old file when they
+ * are reused, and copied unchanged into the new one.
+ */
+public class CodeCache {
+    private static final int MAGIC = 0x544d4343; // "TMCC"
+    private static final int VERSION = 1; // Changed with the layout of the file or the order of OpCode
+    private static final int KEY_SIZE = 32;
+
+    // Kinds of relocation
+    public static final int TARGET = 1; // An absolute jump target outside the function, made PC-relative
+    public static final int ADDRESS = 2; // A code address inside the function
+
+    private static final int NUM_OP_CODES = OpCode.values().length;
+    private static final int NUM_COLUMNS = 7;
+
+    private String options;
+    private byte[] environment = new byte[KEY_SIZE]; // Chained hash of the top-level headers so far
+    private Map<FunctionDec, Entry> entries = new IdentityHashMap<FunctionDec, Entry>();
+    private MessageDigest digest;
+    private ByteSink hashed = new ByteSink(); // What is hashed next, to update the digest all at once
+    private TreeHasher hasher = new TreeHasher();
+
+    // The previous build
+    private ByteBuffer oldData;
+    private Map<ByteBuffer, int[]> oldIndex = new HashMap<ByteBuffer, int[]>(); // Offset and length of each fragment
+    private String[] oldStrings = new String[0];
+
+    // The build being written
+    private File file, partialFile;
+    private DataOutputStream out;
+    private long outSize;
+    private List<String> strings = new ArrayList<String>();
+    private Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+    private List<byte[]> newKeys = new ArrayList<byte[]>();
+    private List<long[]> newOffsets = new ArrayList<long[]>();
+    private int numReused, numGenerated;
+    private IOException failure;
+
+    private static class Entry {
+        byte[] key;
+        String symbolText = "";
+    }
+
+    /*
+     * The cached code of a function. The instructions are kept as columns
+     * like those of TMProgram, so they are copied into place in bulk, and
+     * only the few instructions that depend on where the function starts are
+     * changed afterwards. The text is only rebuilt from them if it is needed.
+     */
+    public static class Fragment {
+        public int length; // Instructions, from the start of the function
+        public int frameSize, numTemps;
+        public int numInstructions, numBoundsChecks, numTraps;
+        public int[] opCounts = new int[NUM_OP_CODES];
+        public List<FunctionInfo.CallSite> calls = new ArrayList<FunctionInfo.CallSite>();
+        public String symbolText; // What the semantic analyzer displayed for the function, for -stream
+
+        private ByteBuffer data;
+        private String[] strings;
+        private int relocations, text, columns; // Offsets in data
+
+        // Fills in the code of the function for it to start at start, with its source starting at row
+        public void place(TMProgram program, int start, int row) {
+            program.reserve(start + length);
+            column(0).get(program.ops, start, length);
+            column(1).get(program.rs, start, length);
+            column(2).get(program.ss, start, length);
+            column(3).get(program.ts, start, length);
+            IntBuffer comments = column(4);
+            IntBuffer lines = column(5);
+            for (int i = 0; i < length; i++) {
+                int id = comments.get();
+                program.comments[start + i] = id < 0 ? null : strings[id];
+                int line = lines.get();
+                program.lines[start + i] = line == 0 ? 0 : line + row;
+            }
+            column(6).get(program.columns, start, length);
+
+            for (int i = data.getInt(relocations), p = relocations + 4; i > 0; i--, p += 8) {
+                int loc = start + data.getInt(p);
+                if (data.getInt(p + 4) == TARGET) {
+                    program.ss[loc] -= loc + 1;
+                } else {
+                    program.ss[loc] += start;
+                }
+            }
+        }
+
+        // The lines of text in order: the location of an instruction from the start, or ~ a comment
+        public int[] getText() {
+            int[] entries = new int[data.getInt(text)];
+            data.duplicate().position(text + 4).asIntBuffer().get(entries);
+            return entries;
+        }
+
+        public String getComment(int entry) {
+            return strings[~entry];
+        }
+
+        private IntBuffer column(int index) {
+            return data.duplicate().position(columns + index * length * 4).asIntBuffer();
+        }
+    }
+
+    // Keeps what the code generator did while generating a function, that its instructions do not show
+    public class Recorder {
+        private ByteSink text = new ByteSink();
+        private ByteSink relocations = new ByteSink();
+
+        public void comment(String c) {
+            text.putInt(~stringId(c));
+        }
+
+        public void instruction(int loc) {
+            text.putInt(loc);
+        }
+
+        public void relocate(int loc, int kind) {
+            relocations.putInt(loc);
+            relocations.putInt(kind);
+        }
+    }
+
+    public CodeCache(String options) {
+        this.options = options;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Reads the previous build, if any, and starts writing the new one
+    public void open(String fileName) throws IOException {
+        file = new File(fileName);
+        if (file.isFile()) {
+            try {
+                load();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Ignoring the unreadable code cache \"" + fileName + "\".");
+                oldData = null;
+                oldIndex.clear();
+                oldStrings = new String[0];
+            }
+        }
+        // Strings keep their numbers, so that reused fragments can be copied as they are
+        for (String s : oldStrings) {
+            stringId(s);
+        }
+        partialFile = new File(fileName + ".part");
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partialFile), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, options);
+        while (out.size() % 4 != 0) {
+            out.write(0);
+        }
+        outSize = out.size();
+    }
+
+    private void load() throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            long size = input.length();
+            if (size < 12 || size > Integer.MAX_VALUE) {
+                return;
+            }
+            ByteBuffer data = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getInt((int) size - 4) != MAGIC) {
+                return;
+            }
+            data.position(8);
+            if (!readString(data).equals(options)) {
+                return;
+            }
+            data.position((int) data.getLong((int) size - 12));
+            String[] strings = new String[data.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(data);
+            }
+            int count = data.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[KEY_SIZE];
+                data.get(key);
+                oldIndex.put(ByteBuffer.wrap(key), new int[] { (int) data.getLong(), data.getInt() });
+            }
+            oldStrings = strings;
+            oldData = data;
+        }
+    }
+
+    // Hashes a top-level declaration, in program order, before it is analyzed or generated
+    public void addDeclaration(Dec dec) {
+        if (dec instanceof FunctionDec && !(((FunctionDec) dec).body instanceof NilExp)) {
+            FunctionDec functionDec = (FunctionDec) dec;
+            Entry entry = new Entry();
+            hashed.size = 0;
+            putString(options);
+            hashed.put(environment, environment.length);
+            hasher.hash(functionDec);
+            entry.key = digest(hashed);
+            entries.put(functionDec, entry);
+        }
+        hashed.size = 0;
+        hashed.put(environment, environment.length);
+        hasher.hashHeader(dec);
+        environment = digest(hashed);
+    }
+
+    private byte[] digest(ByteSink input) {
+        digest.update(input.bytes, 0, input.size);
+        return digest.digest();
+    }
+
+    public void addProgram(DecList program) {
+        for (DecList list = program; list != null && list.head != null; list = list.tail) {
+            addDeclaration(list.head);
+        }
+    }
+
+    // The cached code of a function, or null if it has changed or was not seen before
+    public Fragment find(FunctionDec dec) {
+        Entry entry = entries.get(dec);
+        int[] location = entry != null && oldData != null ? oldIndex.get(ByteBuffer.wrap(entry.key)) : null;
+        if (location == null) {
+            return null;
+        }
+        Fragment fragment = new Fragment();
+        ByteBuffer data = oldData.duplicate();
+        data.position(location[0]);
+        fragment.length = data.getInt();
+        fragment.frameSize = data.getInt();
+        fragment.numTemps = data.getInt();
+        fragment.numInstructions = data.getInt();
+        fragment.numBoundsChecks = data.getInt();
+        fragment.numTraps = data.getInt();
+        for (int i = 0; i < NUM_OP_CODES; i++) {
+            fragment.opCounts[i] = data.getInt();
+        }
+        for (int i = data.getInt(); i > 0; i--) {
+            String func = oldStrings[data.getInt()];
+            fragment.calls.add(new FunctionInfo.CallSite(func, data.getInt()));
+        }
+        byte[] symbolText = new byte[data.getInt()];
+        data.get(symbolText);
+        fragment.symbolText = new String(symbolText, StandardCharsets.UTF_8);
+        fragment.relocations = align(data.position());
+        fragment.text = fragment.relocations + 4 + data.getInt(fragment.relocations) * 8;
+        fragment.columns = fragment.text + 4 + data.getInt(fragment.text) * 4;
+        fragment.data = oldData;
+        fragment.strings = oldStrings;
+        return fragment;
+    }
+
+    // Keeps what the semantic analyzer displayed for a function that is about to be stored
+    public void setSymbolText(FunctionDec dec, String text) {
+        Entry entry = entries.get(dec);
+        if (entry != null) {
+            entry.symbolText = text;
+        }
+    }
+
+    // Copies the fragment of a function that find() returned into the new build
+    public void reuse(FunctionDec dec) {
+        Entry entry = entries.remove(dec);
+        int[] location = oldIndex.get(ByteBuffer.wrap(entry.key));
+        byte[] bytes = new byte[location[1]];
+        ByteBuffer data = oldData.duplicate();
+        data.position(location[0]);
+        data.get(bytes);
+        write(entry.key, bytes, bytes.length);
+        numReused++;
+    }
+
+    public Recorder startRecording() {
+        return new Recorder();
+    }
+
+    // Stores the newly generated code of a function, from start in program, with its source starting at row
+    public void store(FunctionDec dec, Recorder recorder, TMProgram program, int start, int length, int row,
+            FunctionInfo info) {
+        Entry entry = entries.remove(dec);
+        if (entry == null) {
+            return;
+        }
+        byte[] symbolText = entry.symbolText.getBytes(StandardCharsets.UTF_8);
+        int size = 4 * (8 + NUM_OP_CODES + 2 * info.calls.size()) + align(symbolText.length)
+                + 4 + recorder.relocations.size + 4 + recorder.text.size + 4 * NUM_COLUMNS * length;
+        ByteBuffer blob = ByteBuffer.allocate(size);
+        blob.putInt(length).putInt(info.frameSize).putInt(info.numTemps);
+        blob.putInt(info.numInstructions).putInt(info.numBoundsChecks).putInt(info.numTraps);
+        for (int count : info.opCounts) {
+            blob.putInt(count);
+        }
+        blob.putInt(info.calls.size());
+        for (FunctionInfo.CallSite call : info.calls) {
+            blob.putInt(stringId(call.func)).putInt(call.frameOffset);
+        }
+        blob.putInt(symbolText.length).put(symbolText);
+        blob.position(align(blob.position()));
+
+        // Jump targets outside the function are kept absolute, and addresses inside it from its start
+        int[] ss = Arrays.copyOfRange(program.ss, start, start + length);
+        ByteBuffer relocations = ByteBuffer.wrap(recorder.relocations.bytes);
+        for (int p = 0; p < recorder.relocations.size; p += 8) {
+            int loc = relocations.getInt(p);
+            if (relocations.getInt(p + 4) == TARGET) {
+                ss[loc] += start + loc + 1;
+            } else {
+                ss[loc] -= start;
+            }
+        }
+        blob.putInt(recorder.relocations.size / 8).put(recorder.relocations.bytes, 0, recorder.relocations.size);
+        blob.putInt(recorder.text.size / 4).put(recorder.text.bytes, 0, recorder.text.size);
+
+        IntBuffer columns = blob.asIntBuffer();
+        columns.put(program.ops, start, length);
+        columns.put(program.rs, start, length);
+        columns.put(ss);
+        columns.put(program.ts, start, length);
+        for (int i = start; i < start + length; i++) {
+            columns.put(program.comments[i] == null ? -1 : stringId(program.comments[i]));
+        }
+        for (int i = start; i < start + length; i++) {
+            columns.put(program.lines[i] == 0 ? 0 : program.lines[i] - row);
+        }
+        columns.put(program.columns, start, length);
+        write(entry.key, blob.array(), size);
+        numGenerated++;
+    }
+
+    // A failure is kept for save() to report, so the code generator need not stop
+    private void write(byte[] key, byte[] bytes, int length) {
+        if (failure != null) {
+            return;
+        }
+        try {
+            out.write(bytes, 0, length);
+        } catch (IOException e) {
+            failure = e;
+            return;
+        }
+        newKeys.add(key);
+        newOffsets.add(new long[] { outSize, length });
+        outSize += length;
+    }
+
+    // Writes the index and replaces the previous build
+    public void save() throws IOException {
+        if (failure != null) {
+            discard();
+            throw failure;
+        }
+        long trailer = outSize;
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            writeString(out, s);
+        }
+        out.writeInt(newKeys.size());
+        for (int i = 0; i < newKeys.size(); i++) {
+            out.write(newKeys.get(i));
+            out.writeLong(newOffsets.get(i)[0]);
+            out.writeInt((int) newOffsets.get(i)[1]);
+        }
+        out.writeLong(trailer);
+        out.writeInt(MAGIC);
+        out.close();
+        oldData = null;
+        Files.move(partialFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Keeps the previous build, for a program that was not compiled
+    public void discard() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // The file is deleted anyway
+        }
+        partialFile.delete();
+    }
+
+    public int getNumReused() {
+        return numReused;
+    }
+
+    public int getNumFunctions() {
+        return numReused + numGenerated;
+    }
+
+    private int stringId(String s) {
+        Integer id = stringIndex.get(s);
+        if (id == null) {
+            id = strings.size();
+            strings.add(s);
+            stringIndex.put(s, id);
+        }
+        return id;
+    }
+
+    // Fragments are kept in whole words
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer data) {
+        byte[] bytes = new byte[data.getInt()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8).intern();
+    }
+
+    private void putInt(int value) {
+        hashed.putSigned(value);
+    }
+
+    private void putString(String s) {
+        hashed.putVarint(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            hashed.putVarint(s.charAt(i));
+        }
+    }
+
+    // A growable byte array with variable-length integers
+    private static class ByteSink {
+        byte[] bytes = new byte[256];
+        int size;
+
+        void put(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        void put(byte[] b, int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+            }
+            System.arraycopy(b, 0, bytes, size, length);
+            size += length;
+        }
+
+        void putInt(int value) {
+            put(value >> 24);
+            put(value >> 16);
+            put(value >> 8);
+            put(value);
+        }
+
+        void putVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                put((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            put(value);
+        }
+
+        void putSigned(int value) {
+            putVarint((value << 1) ^ (value >> 31));
+        }
+    }
+
+    /*
+     * Feeds the parts of a function that can change its code or its analysis
+     * into the digest. Lines are taken relative to the function, so a function
+     * that only moved still matches, while columns are kept as they are.
+     */
+    private class TreeHasher implements AbsynVisitor {
+        private static final int NULL = 0, NO_POSITION = -1;
+        private int baseRow;
+
+        void hash(FunctionDec dec) {
+            baseRow = dec.row;
+            node(dec);
+        }
+
+        void hashHeader(Dec dec) {
+            if (dec instanceof FunctionDec) {
+                FunctionDec functionDec = (FunctionDec) dec;
+                putInt(1);
+                putString(functionDec.func);
+                putInt(functionDec.result.type);
+                putInt(functionDec.body instanceof NilExp ? 1 : 0);
+                for (VarDecList params = functionDec.params; params != null && params.head != null;
+                        params = params.tail) {
+                    varDec(params.head);
+                }
+            } else if (dec instanceof VarDec) {
+                putInt(2);
+                varDec((VarDec) dec);
+            }
+            putInt(NULL);
+        }
+
+        private void varDec(VarDec dec) {
+            putInt(dec instanceof ArrayDec ? 3 : 4);
+            putString(dec.name);
+            putInt(dec.type.type);
+            putInt(dec instanceof ArrayDec ? ((ArrayDec) dec).size : 0);
+        }
+
+        private void node(Absyn node) {
+            if (node == null) {
+                putInt(NULL);
+            } else {
+                node.accept(this, 0, false);
+            }
+        }
+
+        private void start(int kind, Absyn node) {
+            putInt(kind);
+            if (node.row < 0) {
+                putInt(NO_POSITION);
+            } else {
+                putInt(node.row - baseRow);
+                putInt(node.col);
+            }
+        }
+
+        public void visit(NameTy type, int level, boolean isAddress) {
+            start(1, type);
+            putInt(type.type);
+        }
+
+        public void visit(IndexVar var, int level, boolean isAddress) {
+            start(2, var);
+            putString(var.name);
+            node(var.index);
+        }
+
+        public void visit(SimpleVar var, int level, boolean isAddress) {
+            start(3, var);
+            putString(var.name);
+        }
+
+        public void visit(AssignExp exp, int level, boolean isAddress) {
+            start(4, exp);
+            node(exp.lhs);
+            node(exp.rhs);
+        }
+
+        public void visit(BoolExp exp, int level, boolean isAddress) {
+            start(5, exp);
+            putInt(exp.value ? 1 : 0);
+        }
+
+        public void visit(CallExp exp, int level, boolean isAddress) {
+            start(6, exp);
+            putString(exp.func);
+            node(exp.args);
+        }
+
+        public void visit(CompoundExp exp, int level, boolean isAddress) {
+            start(7, exp);
+            node(exp.decs);
+            node(exp.exps);
+        }
+
+        public void visit(IfExp exp, int level, boolean isAddress) {
+            start(8, exp);
+            node(exp.test);
+            node(exp.thenpart);
+            node(exp.elsepart);
+        }
+
+        public void visit(IntExp exp, int level, boolean isAddress) {
+            start(9, exp);
+            putInt(exp.value);
+        }
+
+        public void visit(NilExp exp, int level, boolean isAddress) {
+            start(10, exp);
+        }
+
+        public void visit(OpExp exp, int level, boolean isAddress) {
+            start(11, exp);
+            putInt(exp.op);
+            node(exp.left);
+            node(exp.right);
+        }
+
+        public void visit(ReturnExp exp, int level, boolean isAddress) {
+            start(12, exp);
+            node(exp.exp);
+        }
+
+        public void visit(VarExp exp, int level, boolean isAddress) {
+            start(13, exp);
+            node(exp.var);
+        }
+
+        public void visit(WhileExp exp, int level, boolean isAddress) {
+            start(14, exp);
+            node(exp.test);
+            node(exp.body);
+        }
+
+        public void visit(ExpList expList, int level, boolean isAddress) {
+            putInt(15);
+            for (; expList != null && expList.head != null; expList = expList.tail) {
+                node(expList.head);
+            }
+            putInt(NULL);
+        }
+
+        public void visit(DecList decList, int level, boolean isAddress) {
+            putInt(16);
+            for (; decList != null && decList.head != null; decList = decList.tail) {
+                node(decList.head);
+            }
+            putInt(NULL);
+        }
+
+        public void visit(VarDecList varDecList, int level, boolean isAddress) {
+            putInt(17);
+            for (; varDecList != null && varDecList.head != null; varDecList = varDecList.tail) {
+                node(varDecList.head);
+            }
+            putInt(NULL);
+        }
+
+        public void visit(FunctionDec dec, int level, boolean isAddress) {
+            start(18, dec);
+            node(dec.result);
+            putString(dec.func);
+            node(dec.params);
+            node(dec.body);
+        }
+
+        public void visit(ArrayDec varDec, int level, boolean isAddress) {
+            start(19, varDec);
+            node(varDec.type);
+            putString(varDec.name);
+            putInt(varDec.size);
+        }
+
+        public void visit(SimpleDec varDec, int level, boolean isAddress) {
+            start(20, varDec);
+            node(varDec.type);
+            putString(varDec.name);
+        }
+    }
+}
@@ -3,9 +3,15 @@
  * File Name: CodeGenerator.java
  */
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -15,16 +21,43 @@ import absyn.*;
 
 public class CodeGenerator implements AbsynVisitor {
     private StringBuilder output;
+    private Writer partialWriter; // Text already moved out of output, see flushText()
+    private File partialFile;
+    private boolean isTextOutput = true; // Whether the text form of the code is needed
+    private TMProgram program; // Decoded copy of the generated instructions
     private int mainEntry, globalOffset;
-    private int inputLoc, outputLoc;
+    private int inputLoc, outputLoc, ioEndLoc;
     private int emitLoc = 0; // Current instruction being generated
     private int highEmitLoc = 0; // Next available space (for next instruction)
 
     private FunctionDec currentFunc = null;
+    private FunctionInfo currentInfo = null;
+    private List<FunctionInfo> functionInfo; // Layout of each generated function
+    private FunctionInfo globalInfo; // Code generated outside of any function
+    private boolean isBoundsCheck = false, isTrap = false;
+    private int currentRow = -1, currentCol = -1; // Source position of the code being generated
     private Map<FunctionDec, Integer> fpOffsets; // Offsets for each function
     private List<Temp> temporaries; // Temporary memory addresses for calculations
     private Map<String, Integer> functionAddrs;
 
+    // Reuse of the code generated for unchanged functions, see CodeCache
+    private CodeCache cache = null;
+    private CodeCache.Recorder recorder = null; // Records the function being generated
+    private int fragmentStart, fragmentRow;
+    private boolean isCodeAddress = false; // Whether the next instruction loads an address in the function
+    private static final OpCode[] OP_CODES = OpCode.values();
+
+    // Memoization of pure recursive functions
+    private static final int MEMO_TABLE_SIZE = 64; // Maximum entries in a memo table
+    private PurityAnalyzer purity = null;
+    private Map<FunctionDec, MemoTable> memoTables;
+
+    private static class MemoTable {
+        int domain; // Each parameter must be in [0, domain)
+        int flagBase, valueBase; // GP offsets of the flag and value tables
+        int slot; // FP offset of the saved entry address
+    }
+
     // Registers
     private int AC = 0;
     private int AC1 = 1;
@@ -38,37 +71,156 @@ public class CodeGenerator implements AbsynVisitor {
     private int TRUE = 1;
     private int FALSE = 0;
 
+    // How array indexes are checked
+    public static final int BOUNDS_INLINE = 0; // Compare and trap in the generated code
+    public static final int BOUNDS_VM = 1; // Use the LDB and LDAB instructions, which TMMachine checks
+    public static final int BOUNDS_OFF = 2; // No checks, for trusted programs
+    private int boundsMode = BOUNDS_INLINE;
+    private boolean isExtended = false; // Use CALL, RET, LDX and STX, which TMMachine runs
+
     // Runtime error codes
-    private int OUT_OF_RANGE_BELOW_ERROR = -1000000;
-    private int OUT_OF_RANGE_ABOVE_ERROR = -2000000;
-    private int DIV_BY_ZERO_ERROR = -3000000;
+    public static final int OUT_OF_RANGE_BELOW_ERROR = -1000000;
+    public static final int OUT_OF_RANGE_ABOVE_ERROR = -2000000;
+    public static final int DIV_BY_ZERO_ERROR = -3000000;
 
     public CodeGenerator() {
         output = new StringBuilder();
+        program = new TMProgram();
         fpOffsets = new HashMap<FunctionDec, Integer>();
         temporaries = new ArrayList<Temp>();
         functionAddrs = new HashMap<String, Integer>();
+        memoTables = new HashMap<FunctionDec, MemoTable>();
+        functionInfo = new ArrayList<FunctionInfo>();
+        globalInfo = new FunctionInfo("(global)");
+    }
+
+    public void enableMemoization(PurityAnalyzer purity) {
+        this.purity = purity;
+    }
+
+    public void setBoundsMode(int boundsMode) {
+        this.boundsMode = boundsMode;
+    }
+
+    public void setExtendedISA(boolean isExtended) {
+        this.isExtended = isExtended;
+    }
+
+    // The cache must be given each top-level declaration before it is generated
+    public void setCache(CodeCache cache) {
+        this.cache = cache;
     }
 
     public void generate(Absyn tree, String outputFile) {
+        startProgram(outputFile);
+        tree.accept(this, 0, false);
+        finishProgram(outputFile);
+    }
+
+    // generate() in steps, for code generated one top-level declaration at a time
+    public void startProgram(String outputFile) {
+        isTextOutput = outputFile != null;
         generatePrelude();
         generateIORoutines();
+    }
 
-        tree.accept(this, 0, false);
+    public void generateDeclaration(Dec dec) {
+        acceptAt(dec, 0);
+    }
 
+    public void finishProgram(String outputFile) {
         generateFinale();
-        if (writeFile(outputFile)) {
+        program.trim();
+        if (outputFile != null && isTextOutput && writeFile(outputFile)) {
             System.out.println("Generated code written to \"" + outputFile + "\".");
         }
     }
 
+    // Moves the text generated so far out of memory, into a file that finishProgram() renames to the output file
+    public void flushText(String outputFile) {
+        if (!isTextOutput) {
+            return;
+        }
+        try {
+            if (partialWriter == null) {
+                partialFile = new File(outputFile + ".part");
+                partialWriter = new BufferedWriter(new FileWriter(partialFile));
+            }
+            partialWriter.append(output);
+            output.setLength(0);
+        } catch (IOException e) {
+            System.err.println("Failed to write generated code to \"" + outputFile + "\".");
+            abandonProgram();
+            isTextOutput = false;
+        }
+    }
+
+    // Deletes the text flushed for a program that will not be finished
+    public void abandonProgram() {
+        if (partialWriter != null) {
+            try {
+                partialWriter.close();
+            } catch (IOException e) {
+                // The file is deleted anyway
+            }
+            partialFile.delete();
+            partialWriter = null;
+        }
+    }
+
+    public TMProgram getProgram() {
+        return program;
+    }
+
+    public void writeBinary(String outputFile) {
+        try {
+            TMBinary.write(program, outputFile);
+            System.out.println("Binary code written to \"" + outputFile + "\".");
+        } catch (IOException e) {
+            System.err.println("Failed to write binary code to \"" + outputFile + "\".");
+        }
+    }
+
+    public int getInputLoc() {
+        return inputLoc;
+    }
+
+    public int getOutputLoc() {
+        return outputLoc;
+    }
+
+    // The location just past the output routine
+    public int getIOEndLoc() {
+        return ioEndLoc;
+    }
+
+    public List<FunctionInfo> getFunctionInfo() {
+        return functionInfo;
+    }
+
+    public FunctionInfo getGlobalInfo() {
+        return globalInfo;
+    }
+
+    public int getGlobalSize() {
+        return -globalOffset;
+    }
+
     private boolean writeFile(String outputFile) {
         try {
+            if (partialWriter != null) {
+                partialWriter.append(output);
+                partialWriter.close();
+                partialWriter = null;
+                Files.move(partialFile.toPath(), Paths.get(outputFile), StandardCopyOption.REPLACE_EXISTING);
+                return true;
+            }
             FileOutputStream outputStream = new FileOutputStream(new File(outputFile));
             outputStream.write(output.toString().getBytes());
             outputStream.close();
             return true;
         } catch (IOException e) {
+            abandonProgram();
             System.err.println("Failed to write generated code to \"" + outputFile + "\".");
             return false;
         }
@@ -94,28 +246,49 @@ public class CodeGenerator implements AbsynVisitor {
         emitComment("Input routine");
         backpatch("Jump over I/O routines", 1, () -> {
             inputLoc = emitLoc;
-            emitRM(OpCode.ST, AC, -1, FP, "Store return address");
+            emitStoreReturnAddress();
             emitRO(OpCode.IN, 0, 0, 0, "Get input");
-            emitRM(OpCode.LD, PC, -1, FP, "Return back to caller");
+            emitReturn();
             emitComment("Output routine");
             outputLoc = emitLoc;
-            emitRM(OpCode.ST, AC, -1, FP, "Store return address");
+            emitStoreReturnAddress();
             emitRM(OpCode.LD, AC, -2, FP, "Load output value");
             emitRO(OpCode.OUT, 0, 0, 0, "Display output");
-            emitRM(OpCode.LD, PC, -1, FP, "Return back to caller");
+            emitReturn();
+            ioEndLoc = emitLoc;
         });
     }
 
     private void generateFinale() {
         emitComment("Finale");
-        emitRM(OpCode.ST, FP, globalOffset, FP, "Push old frame pointer");
-        emitRM(OpCode.LDA, FP, globalOffset, FP, "Push frame");
-        emitRM(OpCode.LDA, AC, 1, PC, "Load AC with return pointer");
-        emitRMAbs(OpCode.LDA, PC, mainEntry, "Jump to main location");
-        emitRM(OpCode.LD, FP, 0, FP, "Pop frame");
+        if (isExtended) {
+            emitRM(OpCode.LDC, AC1, mainEntry, 0, "Load main location into AC1");
+            emitRM(OpCode.CALL, AC1, globalOffset, FP, "Push frame and call main");
+        } else {
+            emitRM(OpCode.ST, FP, globalOffset, FP, "Push old frame pointer");
+            emitRM(OpCode.LDA, FP, globalOffset, FP, "Push frame");
+            emitRM(OpCode.LDA, AC, 1, PC, "Load AC with return pointer");
+            emitRMAbs(OpCode.LDA, PC, mainEntry, "Jump to main location");
+            emitRM(OpCode.LD, FP, 0, FP, "Pop frame");
+        }
         emitRO(OpCode.HALT, 0, 0, 0, "");
     }
 
+    // CALL stores the return address in the new frame itself
+    private void emitStoreReturnAddress() {
+        if (!isExtended) {
+            emitRM(OpCode.ST, AC, -1, FP, "Store return address");
+        }
+    }
+
+    private void emitReturn() {
+        if (isExtended) {
+            emitRO(OpCode.RET, 0, 0, 0, "Return back to caller");
+        } else {
+            emitRM(OpCode.LD, PC, -1, FP, "Return back to caller");
+        }
+    }
+
     private void emitRO(OpCode code, int r, int s, int t, String c) {
         emit(code, OpType.RO, r, s, t, c, false);
     }
@@ -128,6 +301,14 @@ public class CodeGenerator implements AbsynVisitor {
         emit(code, OpType.RM, r, a, 0, c, true);
     }
 
+    private void emitRuntimeError(int errorCode) {
+        isTrap = true;
+        emitRM(OpCode.LDC, AC, errorCode, 0, "Load runtime error code into AC");
+        emitRO(OpCode.OUT, AC, 0, 0, "Display runtime error code");
+        emitRO(OpCode.HALT, 0, 0, 0, "Runtime error");
+        isTrap = false;
+    }
+
     private int emitSkip(int distance) {
         int i = emitLoc;
         emitLoc += distance;
@@ -149,31 +330,105 @@ public class CodeGenerator implements AbsynVisitor {
     }
 
     private void emitComment(String c) {
-        output.append(String.format("* %s\n", c));
+        if (recorder != null) {
+            recorder.comment(c);
+        }
+        if (isTextOutput) {
+            output.append("* ").append(c).append("\n");
+        }
     }
 
     private void emit(OpCode code, OpType type, int r, int s, int t, String c, boolean isAbsolute) {
-        String tempOut = null;
+        int arg2 = s, arg3 = t;
+        if (type == OpType.RM && isAbsolute) {
+            arg2 = s - (emitLoc + 1);
+            arg3 = PC;
+        }
+        if (recorder != null) {
+            recorder.instruction(emitLoc - fragmentStart);
+            if (type == OpType.RM && isAbsolute && s < fragmentStart) {
+                recorder.relocate(emitLoc - fragmentStart, CodeCache.TARGET);
+            } else if (isCodeAddress) {
+                recorder.relocate(emitLoc - fragmentStart, CodeCache.ADDRESS);
+            }
+        }
+        program.setInstruction(emitLoc, code, r, arg2, arg3);
+        program.setComment(emitLoc, c);
+        program.setPosition(emitLoc, currentRow + 1, currentCol + 1);
+
+        if (isTextOutput) {
+            appendInstruction(emitLoc, code, type, r, arg2, arg3, c);
+        }
+        emitLoc++;
+
+        FunctionInfo info = currentInfo != null ? currentInfo : globalInfo;
+        info.numInstructions++;
+        info.opCounts[code.ordinal()]++;
+        if (isBoundsCheck) {
+            info.numBoundsChecks++;
+        }
+        if (isTrap) {
+            info.numTraps++;
+        }
+
+        if (highEmitLoc < emitLoc) {
+            highEmitLoc = emitLoc;
+        }
+    }
+
+    // Same text as String.format("%3d: %5s  %d,%d,%d") for RO, or "%d,%d(%d)" for RM, without the formatter
+    private void appendInstruction(int loc, OpCode code, OpType type, int r, int arg2, int arg3, String c) {
+        int start = output.length();
+        for (int width = loc < 10 ? 1 : loc < 100 ? 2 : 3; width < 3; width++) {
+            output.append(' ');
+        }
+        output.append(loc).append(": ");
+        String name = code.toString();
+        for (int width = name.length(); width < 5; width++) {
+            output.append(' ');
+        }
+        output.append(name).append("  ").append(r).append(',').append(arg2);
         if (type == OpType.RO) {
-            tempOut = String.format("%3d: %5s  %d,%d,%d", emitLoc, code.toString(), r, s, t);
-        } else if (type == OpType.RM) {
-            int arg2 = isAbsolute ? s - (emitLoc + 1) : s;
-            int arg3 = isAbsolute ? PC : t;
-            tempOut = String.format("%3d: %5s  %d,%d(%d)", emitLoc, code.toString(), r, arg2, arg3);
+            output.append(',').append(arg3);
+        } else {
+            output.append('(').append(arg3).append(')');
         }
-        output.append(tempOut);
 
         // Calculate uniform spacing between instruction and comment
         final int MAX_SPACING = 22;
-        int spaces = Math.max(MAX_SPACING - tempOut.length(), 2);
+        int spaces = Math.max(MAX_SPACING - (output.length() - start), 2);
         for (int i = 0; i < spaces; i++) {
-            output.append(" ");
+            output.append(' ');
         }
-        output.append(String.format("%s\n", c));
-        emitLoc++;
+        output.append(c).append('\n');
+    }
 
-        if (highEmitLoc < emitLoc) {
-            highEmitLoc = emitLoc;
+    // Places the cached code of the current function at emitLoc
+    private void replay(CodeCache.Fragment fragment, int row) {
+        int start = emitLoc;
+        fragment.place(program, start, row);
+        if (isTextOutput) {
+            for (int entry : fragment.getText()) {
+                if (entry < 0) {
+                    output.append("* ").append(fragment.getComment(entry)).append("\n");
+                } else {
+                    int loc = start + entry;
+                    int op = program.ops[loc];
+                    appendInstruction(loc, OP_CODES[op], TMProgram.isRegisterOnly(op) ? OpType.RO : OpType.RM,
+                            program.rs[loc], program.ss[loc], program.ts[loc], program.comments[loc]);
+                }
+            }
+        }
+        emitSkip(fragment.length);
+
+        currentInfo.frameSize = fragment.frameSize;
+        currentInfo.numTemps = fragment.numTemps;
+        currentInfo.calls.addAll(fragment.calls);
+        currentInfo.numInstructions += fragment.numInstructions;
+        currentInfo.numBoundsChecks += fragment.numBoundsChecks;
+        currentInfo.numTraps += fragment.numTraps;
+        for (int i = 0; i < OP_CODES.length; i++) {
+            currentInfo.opCounts[i] += fragment.opCounts[i];
         }
     }
 
@@ -210,6 +465,13 @@ public class CodeGenerator implements AbsynVisitor {
 
     private void setFpOffset(int offset) {
         fpOffsets.put(currentFunc, offset);
+        trackFrameOffset(offset + 1);
+    }
+
+    private void trackFrameOffset(int offset) {
+        if (currentInfo != null && 1 - offset > currentInfo.frameSize) {
+            currentInfo.frameSize = 1 - offset;
+        }
     }
 
     private int getFunctionAddrOffset(String name) {
@@ -227,6 +489,10 @@ public class CodeGenerator implements AbsynVisitor {
 
     private Temp getNextTempOffset() {
         temporaries.add(0, new Temp(getFpOffset() - temporaries.size() - 1, Temp.LOCAL_SCOPE));
+        trackFrameOffset(temporaries.get(0).offset);
+        if (currentInfo != null && temporaries.size() > currentInfo.numTemps) {
+            currentInfo.numTemps = temporaries.size();
+        }
         return temporaries.get(0);
     }
 
@@ -240,6 +506,110 @@ public class CodeGenerator implements AbsynVisitor {
         temporaries.clear();
     }
 
+    private int getMemoDomain(FunctionDec dec) {
+        if (purity == null || dec.result.type != NameTy.INT || !purity.isPure(dec.func)
+                || !purity.isRecursive(dec.func)) {
+            return 0;
+        }
+
+        int numParams = 0;
+        for (VarDecList params = dec.params; params != null && params.head != null; params = params.tail) {
+            if (!(params.head instanceof SimpleDec) || params.head.type.type != NameTy.INT) {
+                return 0;
+            }
+            numParams++;
+        }
+        if (numParams == 0) {
+            return 0;
+        }
+
+        // Largest domain whose combined table size stays within the bound
+        int domain = 1;
+        while (Math.pow(domain + 1, numParams) <= MEMO_TABLE_SIZE) {
+            domain++;
+        }
+        return domain >= 2 ? domain : 0;
+    }
+
+    private void allocateMemoTable(FunctionDec dec, int domain) {
+        int numParams = 0;
+        for (VarDecList params = dec.params; params != null && params.head != null; params = params.tail) {
+            numParams++;
+        }
+        int size = (int) Math.pow(domain, numParams);
+
+        emitComment("Allocating memo table for " + dec.func);
+        MemoTable table = new MemoTable();
+        table.domain = domain;
+        table.flagBase = globalOffset;
+        globalOffset -= size;
+        table.valueBase = globalOffset;
+        globalOffset -= size;
+        memoTables.put(dec, table);
+    }
+
+    private void generateMemoLookup(FunctionDec dec) {
+        MemoTable table = memoTables.get(dec);
+        List<Integer> rangeJumps = new ArrayList<Integer>();
+
+        emitComment("Memo table lookup");
+        table.slot = getFpOffset();
+        setFpOffset(table.slot - 1);
+        emitRM(OpCode.LDC, AC1, 0, 0, "Initialize memo index");
+        emitRM(OpCode.ST, AC1, table.slot, FP, "Clear memo entry address");
+
+        for (VarDecList params = dec.params; params != null && params.head != null; params = params.tail) {
+            emitRM(OpCode.LD, AC2, params.head.offset, FP, "Load parameter " + params.head.name);
+            rangeJumps.add(emitSkip(1));
+            emitRM(OpCode.LDC, AC3, table.domain, 0, "Load memo domain size");
+            emitRO(OpCode.SUB, AC3, AC2, AC3, "Subtract domain size from parameter");
+            rangeJumps.add(emitSkip(1));
+            emitRM(OpCode.LDC, AC3, table.domain, 0, "Load memo domain size");
+            emitRO(OpCode.MUL, AC1, AC1, AC3, "Scale memo index");
+            emitRO(OpCode.ADD, AC1, AC1, AC2, "Add parameter to memo index");
+        }
+
+        emitRO(OpCode.SUB, AC1, GP, AC1, "Calculate memo entry address");
+        emitRM(OpCode.ST, AC1, table.slot, FP, "Save memo entry address");
+        emitRM(OpCode.LD, AC2, table.flagBase, AC1, "Load memo flag");
+        emitRM(OpCode.JEQ, AC2, 2, PC, "Jump to function body if not memoized");
+        emitRM(OpCode.LD, AC, table.valueBase, AC1, "Load memoized result");
+        emitReturn();
+
+        // Arguments outside the table fall back to the normal path
+        int bodyLoc = emitSkip(0);
+        for (int i = 0; i < rangeJumps.size(); i++) {
+            emitBackup(rangeJumps.get(i));
+            if (i % 2 == 0) {
+                emitRMAbs(OpCode.JLT, AC2, bodyLoc, "Skip memo table if parameter is below range");
+            } else {
+                emitRMAbs(OpCode.JGE, AC3, bodyLoc, "Skip memo table if parameter is above range");
+            }
+        }
+        emitRestore();
+    }
+
+    private void generateMemoStore() {
+        MemoTable table = memoTables.get(currentFunc);
+        emitRM(OpCode.LD, AC1, table.slot, FP, "Load memo entry address");
+        emitRM(OpCode.JEQ, AC1, 3, PC, "Skip memo table if parameters are out of range");
+        emitRM(OpCode.ST, AC, table.valueBase, AC1, "Store result in memo table");
+        emitRM(OpCode.LDC, AC2, 1, 0, "Load 1 into AC2");
+        emitRM(OpCode.ST, AC2, table.flagBase, AC1, "Mark memo entry as filled");
+    }
+
+    // Attributes the code generated for a node to its source position
+    private void acceptAt(Absyn node, int offset) {
+        int savedRow = currentRow, savedCol = currentCol;
+        if (node.row >= 0) {
+            currentRow = node.row;
+            currentCol = node.col;
+        }
+        node.accept(this, offset, false);
+        currentRow = savedRow;
+        currentCol = savedCol;
+    }
+
     public void visit(NameTy type, int level, boolean isAddress) {
     }
 
@@ -264,7 +634,9 @@ public class CodeGenerator implements AbsynVisitor {
             var.index.accept(this, offset, false);
             boolean isAddr = !(var.index instanceof IntExp || var.index instanceof BoolExp);
 
-            if (dec instanceof ArrayDec && ((ArrayDec) dec).size == ArrayDec.UNKNOWN_SIZE) {
+            if (boundsMode != BOUNDS_INLINE) {
+                emitElementAddress(dec, var.index, isAddr);
+            } else if (dec instanceof ArrayDec && ((ArrayDec) dec).size == ArrayDec.UNKNOWN_SIZE) {
                 // Load address by reference
                 emitRM(OpCode.LD, AC1, dec.offset, dec.nestLevel > 0 ? FP : GP, "Load current offset into AC");
                 emitRM(OpCode.LDC, AC2, 1, 0, "Load 1 into AC2");
@@ -280,13 +652,19 @@ public class CodeGenerator implements AbsynVisitor {
                         var.index.temp.scope == Temp.LOCAL_SCOPE ? FP : GP,
                         "Load index offset into AC2");
                 emitRO(OpCode.SUB, AC, AC1, AC2, "Subtract current and index offsets and store result in AC");
-                emitRM(OpCode.LDA, AC1, 0, dec.nestLevel > 0 ? FP : GP, "Load FP into AC1");
-                emitRO(OpCode.ADD, AC2, AC1, AC, "Add AC1 and FP");
+                if (!isExtended) {
+                    emitRM(OpCode.LDA, AC1, 0, dec.nestLevel > 0 ? FP : GP, "Load FP into AC1");
+                    emitRO(OpCode.ADD, AC2, AC1, AC, "Add AC1 and FP");
+                }
             }
             emitRM(isRightAddr ? OpCode.LD : OpCode.LDC, AC1, exp.rhs.temp.offset,
                     exp.rhs.temp.scope == Temp.LOCAL_SCOPE ? FP : GP,
                     "Load right operand into AC1");
-            emitRM(OpCode.ST, AC1, 0, AC2, "Store AC1 in address at AC2");
+            if (isExtended && boundsMode == BOUNDS_INLINE && ((ArrayDec) dec).size != ArrayDec.UNKNOWN_SIZE) {
+                emitRO(OpCode.STX, AC1, dec.nestLevel > 0 ? FP : GP, AC, "Store AC1 at FP/GP plus AC");
+            } else {
+                emitRM(OpCode.ST, AC1, 0, AC2, "Store AC1 in address at AC2");
+            }
         } else {
             emitRM(isRightAddr ? OpCode.LD : OpCode.LDC, AC, exp.rhs.temp.offset,
                     exp.rhs.temp.scope == Temp.LOCAL_SCOPE ? FP : GP,
@@ -310,8 +688,7 @@ public class CodeGenerator implements AbsynVisitor {
 
         emitComment("Call to " + exp.func);
 
-        // Push arguments onto the stack
-        int futureFpOffset = fpOffset - 2;
+        // Evaluate arguments into temporaries
         FunctionDec functionDec = (FunctionDec) exp.dtype;
         VarDecList params = functionDec.params;
         ExpList args = exp.args;
@@ -324,21 +701,49 @@ public class CodeGenerator implements AbsynVisitor {
                 paramDec.nestLevel = argDec.nestLevel;
                 paramDec.offset = argDec.offset;
             }
-            args.head.accept(this, futureFpOffset--, true);
+            args.head.accept(this, offset, false);
             args = args.tail;
             params = params.tail;
         }
 
-        emitRM(OpCode.ST, FP, fpOffset, FP, "Store old FP in stackframe");
-        emitRM(OpCode.LDA, FP, fpOffset, FP, "Load new FP");
+        // The new frame starts below all locals and live temporaries
+        for (Temp temp : temporaries) {
+            fpOffset = Math.min(fpOffset, temp.offset - 1);
+        }
+
+        // Push arguments onto the stack
+        int futureFpOffset = fpOffset - 2;
+        args = exp.args;
+        while (args != null && args.head != null) {
+            boolean isArgAddr = !(args.head instanceof IntExp || args.head instanceof BoolExp);
+            emitRM(isArgAddr ? OpCode.LD : OpCode.LDC, AC, args.head.temp.offset, FP, "Load argument into AC");
+            emitRM(OpCode.ST, AC, futureFpOffset--, FP, "Store argument in new stackframe");
+            args = args.tail;
+        }
+
+        if (currentInfo != null) {
+            currentInfo.calls.add(new FunctionInfo.CallSite(exp.func, fpOffset));
+        }
 
-        emitRM(OpCode.LDA, AC, 1, PC, "Load return address into AC");
-        if (callerAddr > 0) {
-            emitRMAbs(OpCode.LDA, PC, callerAddr, "Jump to caller address");
+        if (isExtended) {
+            if (callerAddr > 0) {
+                emitRM(OpCode.LDC, AC1, callerAddr, 0, "Load caller address into AC1");
+            } else {
+                emitRM(OpCode.LD, AC1, callerAddrOffset, GP, "Load caller address into AC1");
+            }
+            emitRM(OpCode.CALL, AC1, fpOffset, FP, "Push new stackframe and jump to caller address");
         } else {
-            emitRM(OpCode.LD, PC, callerAddrOffset, GP, "Jump to caller address");
+            emitRM(OpCode.ST, FP, fpOffset, FP, "Store old FP in stackframe");
+            emitRM(OpCode.LDA, FP, fpOffset, FP, "Load new FP");
+
+            emitRM(OpCode.LDA, AC, 1, PC, "Load return address into AC");
+            if (callerAddr > 0) {
+                emitRMAbs(OpCode.LDA, PC, callerAddr, "Jump to caller address");
+            } else {
+                emitRM(OpCode.LD, PC, callerAddrOffset, GP, "Jump to caller address");
+            }
+            emitRM(OpCode.LD, FP, 0, FP, "Load old FP");
         }
-        emitRM(OpCode.LD, FP, 0, FP, "Load old FP");
 
         // Store result in a new temporary
         Temp resultTemp = getNextTempOffset();
@@ -362,15 +767,16 @@ public class CodeGenerator implements AbsynVisitor {
         exp.test.accept(this, offset, false);
 
         int testLoc = emitSkip(2);
-        exp.thenpart.accept(this, offset, false);
+        acceptAt(exp.thenpart, offset);
 
         int thenLoc = emitSkip(0);
         int elseLocStart = emitSkip(1);
-        exp.elsepart.accept(this, offset, false);
+        acceptAt(exp.elsepart, offset);
 
         int elseLocEnd = emitSkip(0);
+        boolean isTestAddr = !(exp.test instanceof IntExp || exp.test instanceof BoolExp);
         emitBackup(testLoc);
-        emitRM(OpCode.LD, AC, exp.test.temp.offset, FP, "Load test into AC");
+        emitRM(isTestAddr ? OpCode.LD : OpCode.LDC, AC, exp.test.temp.offset, FP, "Load test into AC");
         emitRMAbs(OpCode.JEQ, AC, elseLocStart + 1, "Jump to elsepart if FALSE");
         emitBackup(elseLocStart);
         emitRMAbs(OpCode.LDA, PC, elseLocEnd, "Jump to end of IF block");
@@ -414,9 +820,7 @@ public class CodeGenerator implements AbsynVisitor {
                 break;
             case OpExp.DIV:
                 emitRM(OpCode.JNE, AC2, 3, PC, "Jump over runtime error code if divisor is not 0");
-                emitRM(OpCode.LDC, AC, DIV_BY_ZERO_ERROR, 0, "Load error code into AC");
-                emitRO(OpCode.OUT, AC, 0, 0, "Display error code");
-                emitRO(OpCode.HALT, 0, 0, 0, "Runtime error");
+                emitRuntimeError(DIV_BY_ZERO_ERROR);
                 emitRO(OpCode.DIV, AC, AC1, AC2, "Perform division");
                 break;
             case OpExp.MULT:
@@ -426,6 +830,9 @@ public class CodeGenerator implements AbsynVisitor {
                 emitRM(OpCode.LDC, AC1, -1, 0, "Load -1 into AC1");
                 emitRO(OpCode.MUL, AC, AC1, AC2, "Perform negation");
                 break;
+            // Relational operators subtract the operands and test the sign of the difference, which wraps
+            // around on overflow (so -2147483648 < 1 is false). The other backends and ConstantEvaluator
+            // compare the same way, so that they all give the same results.
             case OpExp.LT:
                 emitRO(OpCode.SUB, AC, AC1, AC2, "Subtract operands");
                 emitRM(OpCode.JLT, AC, 2, PC, "Jump to TRUE if <");
@@ -456,10 +863,10 @@ public class CodeGenerator implements AbsynVisitor {
                 break;
             case OpExp.OR:
                 emitRM(OpCode.JNE, AC1, 3, PC, "Jump to TRUE if first operand == TRUE");
-                emitRM(OpCode.JEQ, AC2, 2, PC, "Jump to TRUE if second operand == TRUE");
+                emitRM(OpCode.JNE, AC2, 2, PC, "Jump to TRUE if second operand == TRUE");
                 break;
             case OpExp.BNOT:
-                emitRM(OpCode.JEQ, AC1, 0, PC, "Jump to opposite value");
+                emitRM(OpCode.JEQ, AC2, 2, PC, "Jump to TRUE if operand == FALSE");
                 break;
         }
 
@@ -483,6 +890,27 @@ public class CodeGenerator implements AbsynVisitor {
         }
     }
 
+    // Loads the address of an array element into AC2, checked by LDAB unless bounds checks are off
+    private void emitElementAddress(VarDec dec, Exp index, boolean isAddr) {
+        int base = dec.nestLevel > 0 ? FP : GP;
+        boolean isReference = ((ArrayDec) dec).size == ArrayDec.UNKNOWN_SIZE;
+        if (isReference) {
+            emitRM(OpCode.LD, AC1, dec.offset, base, "Load array address into AC1");
+        }
+        emitRM(isAddr ? OpCode.LD : OpCode.LDC, AC2, index.temp.offset,
+                index.temp.scope == Temp.LOCAL_SCOPE ? FP : GP, "Load index into AC2");
+        if (boundsMode == BOUNDS_VM) {
+            isBoundsCheck = true;
+            emitRM(OpCode.LDAB, AC2, isReference ? 0 : dec.offset, isReference ? AC1 : base,
+                    "Load element address into AC2, checking the index");
+            isBoundsCheck = false;
+        } else {
+            emitRM(OpCode.LDA, AC1, isReference ? -1 : dec.offset - 1, isReference ? AC1 : base,
+                    "Load address of the first element into AC1");
+            emitRO(OpCode.SUB, AC2, AC1, AC2, "Subtract index from the first element address");
+        }
+    }
+
     public void visit(ReturnExp exp, int offset, boolean isAddress) {
         exp.exp.accept(this, offset, false);
 
@@ -490,8 +918,11 @@ public class CodeGenerator implements AbsynVisitor {
 
         if (!(exp.exp instanceof NilExp)) {
             emitRM(isExpAddr ? OpCode.LD : OpCode.LDC, AC, exp.exp.temp.offset, FP, "Load return value into AC");
+            if (memoTables.containsKey(currentFunc)) {
+                generateMemoStore();
+            }
         }
-        emitRM(OpCode.LD, PC, -1, FP, "Return back to caller");
+        emitReturn();
     }
 
     public void visit(VarExp exp, int offset, boolean isAddress) {
@@ -502,10 +933,28 @@ public class CodeGenerator implements AbsynVisitor {
             var.index.accept(this, offset, false);
             boolean isAddr = !(var.index instanceof IntExp || var.index instanceof BoolExp);
 
-            if (dec instanceof ArrayDec && ((ArrayDec) dec).size == ArrayDec.UNKNOWN_SIZE) {
+            if (boundsMode == BOUNDS_VM) {
+                int base = dec.nestLevel > 0 ? FP : GP;
+                int sizeOffset = dec.offset;
+                if (((ArrayDec) dec).size == ArrayDec.UNKNOWN_SIZE) {
+                    emitRM(OpCode.LD, AC1, dec.offset, base, "Load array address into AC1");
+                    base = AC1;
+                    sizeOffset = 0;
+                }
+                emitRM(isAddr ? OpCode.LD : OpCode.LDC, AC, var.index.temp.offset,
+                        var.index.temp.scope == Temp.LOCAL_SCOPE ? FP : GP, "Load index into AC");
+                isBoundsCheck = true;
+                emitRM(OpCode.LDB, AC, sizeOffset, base, "Load var into AC, checking the index");
+                isBoundsCheck = false;
+            } else if (boundsMode == BOUNDS_OFF) {
+                emitElementAddress(dec, var.index, isAddr);
+                emitRM(OpCode.LD, AC, 0, AC2, "Load var into AC");
+            } else if (dec instanceof ArrayDec && ((ArrayDec) dec).size == ArrayDec.UNKNOWN_SIZE) {
                 // Load by reference
                 emitRM(OpCode.LD, AC, dec.offset, dec.nestLevel > 0 ? FP : GP, "Load current offset into AC");
+                isBoundsCheck = true;
                 emitRM(OpCode.LD, AC3, 0, AC, "Load array size into AC3");
+                isBoundsCheck = false;
                 emitRM(OpCode.LDC, AC2, 1, 0, "Load 1 into AC2");
                 emitRO(OpCode.SUB, AC1, AC, AC2, "Subtract 1 from current offset");
                 emitRM(isAddr ? OpCode.LD : OpCode.LDC, AC2, var.index.temp.offset,
@@ -513,20 +962,20 @@ public class CodeGenerator implements AbsynVisitor {
                         "Load index offset into AC2");
 
                 // Check lower bound
+                isBoundsCheck = true;
                 emitRM(OpCode.JGE, AC2, 3, PC, "Jump over runtime error code if index is above min bound");
-                emitRM(OpCode.LDC, AC, OUT_OF_RANGE_BELOW_ERROR, 0, "Load runtime error code into AC");
-                emitRO(OpCode.OUT, AC, 0, 0, "Display runtime error code");
-                emitRO(OpCode.HALT, 0, 0, 0, "Runtime error");
+                isBoundsCheck = false;
+                emitRuntimeError(OUT_OF_RANGE_BELOW_ERROR);
 
                 emitRO(OpCode.SUB, AC, AC1, AC2, "Subtract current and index offsets and store result in AC");
 
                 // Check upper bound
+                isBoundsCheck = true;
                 emitRO(OpCode.SUB, AC3, AC1, AC3, "Calculate max array address");
                 emitRO(OpCode.SUB, AC2, AC, AC3, "Subtract max index from index");
                 emitRM(OpCode.JGT, AC2, 3, PC, "Jump over runtime error code if index is below max bound");
-                emitRM(OpCode.LDC, AC, OUT_OF_RANGE_ABOVE_ERROR, 0, "Load runtime error code into AC");
-                emitRO(OpCode.OUT, AC, 0, 0, "Display runtime error code");
-                emitRO(OpCode.HALT, 0, 0, 0, "Runtime error");
+                isBoundsCheck = false;
+                emitRuntimeError(OUT_OF_RANGE_ABOVE_ERROR);
 
                 emitRM(OpCode.LD, AC, 0, AC, "Load var into AC");
             } else {
@@ -538,28 +987,31 @@ public class CodeGenerator implements AbsynVisitor {
                 emitRO(OpCode.SUB, AC, AC1, AC2, "Subtract current and index offsets and store result in AC");
 
                 // Check lower bound
+                isBoundsCheck = true;
                 emitRM(OpCode.JGE, AC2, 3, PC, "Jump over runtime error code if index is above min bound");
-                emitRM(OpCode.LDC, AC, OUT_OF_RANGE_BELOW_ERROR, 0, "Load runtime error code into AC");
-                emitRO(OpCode.OUT, AC, 0, 0, "Display runtime error code");
-                emitRO(OpCode.HALT, 0, 0, 0, "Runtime error");
+                isBoundsCheck = false;
+                emitRuntimeError(OUT_OF_RANGE_BELOW_ERROR);
 
                 // Check upper bound
-                emitRO(OpCode.LD, AC3, dec.offset, dec.nestLevel > 0 ? FP : GP, "Load max array size into AC3");
+                isBoundsCheck = true;
+                emitRM(OpCode.LD, AC3, dec.offset, dec.nestLevel > 0 ? FP : GP, "Load max array size into AC3");
                 emitRO(OpCode.SUB, AC1, AC2, AC3, "Subtract max index from index");
                 emitRM(OpCode.JLT, AC1, 3, PC, "Jump over runtime error code if index is below max bound");
-                emitRM(OpCode.LDC, AC, OUT_OF_RANGE_ABOVE_ERROR, 0, "Load runtime error code into AC");
-                emitRO(OpCode.OUT, AC, 0, 0, "Display runtime error code");
-                emitRO(OpCode.HALT, 0, 0, 0, "Runtime error");
-
-                emitRM(OpCode.LDA, AC1, 0, dec.nestLevel > 0 ? FP : GP, "Load FP/GP into AC1");
-                emitRO(OpCode.ADD, AC2, AC1, AC, "Add AC1 and FP");
-                emitRM(OpCode.LD, AC, 0, AC2, "Load var into AC");
+                isBoundsCheck = false;
+                emitRuntimeError(OUT_OF_RANGE_ABOVE_ERROR);
+
+                if (isExtended) {
+                    emitRO(OpCode.LDX, AC, dec.nestLevel > 0 ? FP : GP, AC, "Load var at FP/GP plus AC into AC");
+                } else {
+                    emitRM(OpCode.LDA, AC1, 0, dec.nestLevel > 0 ? FP : GP, "Load FP/GP into AC1");
+                    emitRO(OpCode.ADD, AC2, AC1, AC, "Add AC1 and FP");
+                    emitRM(OpCode.LD, AC, 0, AC2, "Load var into AC");
+                }
             }
         } else if (dec instanceof ArrayDec && exp.var instanceof SimpleVar
                 && ((ArrayDec) dec).size != ArrayDec.UNKNOWN_SIZE) {
             // Pass by reference
             emitRM(OpCode.LDA, AC, dec.offset, dec.nestLevel > 0 ? FP : GP, "Load array address into AC");
-            emitRM(OpCode.ST, AC, offset, FP, "Store array address in new location");
         } else {
             // Pass by value
             emitRM(OpCode.LD, AC, dec.offset, dec.nestLevel > 0 ? FP : GP, "Load var into AC");
@@ -576,29 +1028,30 @@ public class CodeGenerator implements AbsynVisitor {
         exp.test.accept(this, offset, false);
 
         int testLoc = emitSkip(2);
-        exp.body.accept(this, offset, false);
+        acceptAt(exp.body, offset);
 
         int thenLoc = emitSkip(0);
         int elseLocStart = emitSkip(0);
         emitRMAbs(OpCode.LDA, PC, testStartLoc, "Jump to test");
 
         int locEnd = emitSkip(0);
+        boolean isTestAddr = !(exp.test instanceof IntExp || exp.test instanceof BoolExp);
         emitBackup(testLoc);
-        emitRM(OpCode.LD, AC, exp.test.temp.offset, FP, "Load test into AC");
+        emitRM(isTestAddr ? OpCode.LD : OpCode.LDC, AC, exp.test.temp.offset, FP, "Load test into AC");
         emitRMAbs(OpCode.JEQ, AC, locEnd, "Jump to end of WHILE if FALSE");
         emitRestore();
     }
 
     public void visit(ExpList expList, int level, boolean isAddress) {
         while (expList != null && expList.head != null) {
-            expList.head.accept(this, level, false);
+            acceptAt(expList.head, level);
             expList = expList.tail;
         }
     }
 
     public void visit(DecList decList, int level, boolean isAddress) {
         while (decList != null && decList.head != null) {
-            decList.head.accept(this, level, false);
+            acceptAt(decList.head, level);
             decList = decList.tail;
         }
     }
@@ -619,32 +1072,69 @@ public class CodeGenerator implements AbsynVisitor {
         }
 
         if (!isPrototype) {
-            if (dec.func.equals("main")) {
-                mainEntry = emitLoc + 1;
+            int memoDomain = getMemoDomain(dec);
+            if (memoDomain > 0) {
+                allocateMemoTable(dec, memoDomain);
             }
 
-            emitComment("Processing function: " + dec.func);
-            if (!dec.func.equals("main")) {
-                int funAddrOffset = getFunctionAddrOffset(dec.func);
-                emitRM(OpCode.LDC, AC, emitLoc + 3, 0, "Load function address into AC");
-                emitRM(OpCode.ST, AC, funAddrOffset, GP, "Store function address in global memory");
+            if (dec.func.equals("main")) {
+                mainEntry = emitLoc + 1;
             }
-            currentFunc = dec;
-            setFpOffset(-2);
 
-            backpatch("Jump around function", 1, () -> {
-                emitRM(OpCode.ST, AC, -1, FP, "Store return address");
-                dec.params.accept(this, level + 1, false);
-                dec.body.accept(this, level, false);
+            currentInfo = new FunctionInfo(dec.func);
+            currentInfo.startLoc = emitLoc;
+            currentInfo.entryLoc = dec.func.equals("main") ? emitLoc + 1 : emitLoc + 3;
+            functionInfo.add(currentInfo);
 
-                // Insert automatic return
-                emitRM(OpCode.LD, PC, -1, FP, "Return back to caller");
-            });
+            CodeCache.Fragment fragment = cache != null ? cache.find(dec) : null;
+            if (fragment != null) {
+                replay(fragment, dec.row);
+                cache.reuse(dec);
+            } else {
+                if (cache != null) {
+                    recorder = cache.startRecording();
+                    fragmentStart = emitLoc;
+                    fragmentRow = dec.row;
+                }
+                generateFunction(dec, level);
+                if (recorder != null) {
+                    cache.store(dec, recorder, program, fragmentStart, emitLoc - fragmentStart, fragmentRow, currentInfo);
+                    recorder = null;
+                }
+            }
 
+            currentInfo.endLoc = emitSkip(0);
+            currentInfo = null;
             currentFunc = null;
         }
     }
 
+    private void generateFunction(FunctionDec dec, int level) {
+        emitComment("Processing function: " + dec.func);
+        if (!dec.func.equals("main")) {
+            int funAddrOffset = getFunctionAddrOffset(dec.func);
+            isCodeAddress = true;
+            emitRM(OpCode.LDC, AC, emitLoc + 3, 0, "Load function address into AC");
+            isCodeAddress = false;
+            emitRM(OpCode.ST, AC, funAddrOffset, GP, "Store function address in global memory");
+        }
+        currentFunc = dec;
+        setFpOffset(-2);
+        clearTemporaries();
+
+        backpatch("Jump around function", 1, () -> {
+            emitStoreReturnAddress();
+            dec.params.accept(this, level + 1, false);
+            if (memoTables.containsKey(dec)) {
+                generateMemoLookup(dec);
+            }
+            dec.body.accept(this, level, false);
+
+            // Insert automatic return
+            emitReturn();
+        });
+    }
+
     public void visit(ArrayDec varDec, int level, boolean isAddress) {
         allocateVar(varDec, level, varDec.size != ArrayDec.UNKNOWN_SIZE ? varDec.size + 1 : 1);
         if (varDec.size != ArrayDec.UNKNOWN_SIZE) {
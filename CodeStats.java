@@ -0,0 +1,108 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Reports the code size and instruction mix of each generated function, both as
+ * a table for people and as JSON for tools.
+ */
+public class CodeStats {
+    private List<FunctionInfo> functions;
+    private FunctionInfo total;
+
+    public CodeStats(List<FunctionInfo> functionInfo, FunctionInfo globalInfo) {
+        functions = new ArrayList<FunctionInfo>(functionInfo);
+        functions.add(globalInfo);
+
+        total = new FunctionInfo("(total)");
+        for (FunctionInfo info : functions) {
+            total.numInstructions += info.numInstructions;
+            total.numBoundsChecks += info.numBoundsChecks;
+            total.numTraps += info.numTraps;
+            total.numTemps = Math.max(total.numTemps, info.numTemps);
+            total.frameSize = Math.max(total.frameSize, info.frameSize);
+            for (int i = 0; i < total.opCounts.length; i++) {
+                total.opCounts[i] += info.opCounts[i];
+            }
+        }
+    }
+
+    public String getTable() {
+        StringBuilder output = new StringBuilder();
+        int nameWidth = "Function".length();
+        for (FunctionInfo info : functions) {
+            nameWidth = Math.max(nameWidth, info.name.length());
+        }
+
+        String rowFormat = "%-" + nameWidth + "s %8s %8s %8s %8s %8s\n";
+        output.append(String.format(rowFormat, "Function", "Instrs", "Temps", "Frame", "Bounds", "Traps"));
+        List<FunctionInfo> rows = new ArrayList<FunctionInfo>(functions);
+        rows.add(total);
+        for (FunctionInfo info : rows) {
+            output.append(String.format(rowFormat, info.name, info.numInstructions, info.numTemps,
+                    info.frameSize, info.numBoundsChecks, info.numTraps));
+        }
+
+        // Only show the opcodes that were emitted
+        List<OpCode> codes = new ArrayList<OpCode>();
+        for (OpCode code : OpCode.values()) {
+            if (total.opCounts[code.ordinal()] > 0) {
+                codes.add(code);
+            }
+        }
+        output.append("\n");
+        output.append(String.format("%-" + nameWidth + "s", "Function"));
+        for (OpCode code : codes) {
+            output.append(String.format(" %6s", code));
+        }
+        output.append("\n");
+        for (FunctionInfo info : rows) {
+            output.append(String.format("%-" + nameWidth + "s", info.name));
+            for (OpCode code : codes) {
+                output.append(String.format(" %6d", info.opCounts[code.ordinal()]));
+            }
+            output.append("\n");
+        }
+        return output.toString();
+    }
+
+    private String getJson(FunctionInfo info) {
+        List<String> opCounts = new ArrayList<String>();
+        for (OpCode code : OpCode.values()) {
+            if (info.opCounts[code.ordinal()] > 0) {
+                opCounts.add("\"" + code + "\": " + info.opCounts[code.ordinal()]);
+            }
+        }
+        return "{\"name\": \"" + info.name + "\", \"instructions\": " + info.numInstructions
+                + ", \"temporaries\": " + info.numTemps + ", \"frameWords\": " + info.frameSize
+                + ", \"boundsChecks\": " + info.numBoundsChecks + ", \"traps\": " + info.numTraps
+                + ", \"opcodes\": {" + String.join(", ", opCounts) + "}}";
+    }
+
+    public String getJson() {
+        StringBuilder output = new StringBuilder();
+        output.append("{\n");
+        output.append("  \"functions\": [\n");
+        for (int i = 0; i < functions.size(); i++) {
+            output.append("    " + getJson(functions.get(i)));
+            output.append(i + 1 < functions.size() ? ",\n" : "\n");
+        }
+        output.append("  ],\n");
+        output.append("  \"total\": " + getJson(total) + "\n");
+        output.append("}\n");
+        return output.toString();
+    }
+
+    public void writeJson(String outputFile) {
+        try {
+            FileOutputStream outputStream = new FileOutputStream(new File(outputFile));
+            outputStream.write(getJson().getBytes());
+            outputStream.close();
+            System.out.println("Code statistics written to \"" + outputFile + "\".");
+        } catch (IOException e) {
+            System.err.println("Failed to write code statistics to \"" + outputFile + "\".");
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import absyn.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Evaluates calls to pure functions at compile time. Evaluation is bounded by a
+ * step limit and a recursion limit, and gives up on anything that would behave
+ * differently at runtime (traps, uninitialized reads, missing return values).
+ */
+public class ConstantEvaluator {
+    public static final int MAX_STEPS = 100000;
+    public static final int MAX_DEPTH = 256;
+
+    private PurityAnalyzer purity;
+    private int steps;
+    private int depth;
+
+    private static class EvaluationAbort extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public EvaluationAbort() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static class Frame {
+        Map<VarDec, Integer> scalars = new HashMap<VarDec, Integer>();
+        Map<VarDec, Integer[]> arrays = new HashMap<VarDec, Integer[]>();
+        Integer result = null;
+        boolean returned = false;
+    }
+
+    public ConstantEvaluator(PurityAnalyzer purity) {
+        this.purity = purity;
+    }
+
+    // Returns the result of the call, or null if it can't be evaluated
+    public Integer evaluate(FunctionDec dec, int[] args) {
+        steps = 0;
+        depth = 0;
+        try {
+            return call(dec, args);
+        } catch (EvaluationAbort e) {
+            return null;
+        }
+    }
+
+    private void abort() {
+        throw new EvaluationAbort();
+    }
+
+    private void step() {
+        if (++steps > MAX_STEPS) {
+            abort();
+        }
+    }
+
+    private Integer call(FunctionDec dec, int[] args) {
+        if (dec == null || !purity.isPure(dec.func) || ++depth > MAX_DEPTH) {
+            abort();
+        }
+
+        Frame frame = new Frame();
+        VarDecList params = dec.params;
+        int i = 0;
+        while (params != null && params.head != null) {
+            if (params.head instanceof ArrayDec || i >= args.length) {
+                abort();
+            }
+            frame.scalars.put(params.head, args[i++]);
+            params = params.tail;
+        }
+        if (i != args.length) {
+            abort();
+        }
+
+        exec(dec.body, frame);
+        depth--;
+        return frame.result;
+    }
+
+    private void declare(VarDecList decs, Frame frame) {
+        while (decs != null && decs.head != null) {
+            if (decs.head instanceof ArrayDec) {
+                frame.arrays.put(decs.head, new Integer[((ArrayDec) decs.head).size]);
+            } else {
+                frame.scalars.remove(decs.head);
+            }
+            decs = decs.tail;
+        }
+    }
+
+    private void exec(Exp exp, Frame frame) {
+        step();
+        if (exp instanceof CompoundExp) {
+            CompoundExp compound = (CompoundExp) exp;
+            declare(compound.decs, frame);
+            ExpList exps = compound.exps;
+            while (exps != null && exps.head != null && !frame.returned) {
+                exec(exps.head, frame);
+                exps = exps.tail;
+            }
+        } else if (exp instanceof IfExp) {
+            IfExp ifExp = (IfExp) exp;
+            if (eval(ifExp.test, frame) != 0) {
+                exec(ifExp.thenpart, frame);
+            } else {
+                exec(ifExp.elsepart, frame);
+            }
+        } else if (exp instanceof WhileExp) {
+            WhileExp whileExp = (WhileExp) exp;
+            while (!frame.returned && eval(whileExp.test, frame) != 0) {
+                exec(whileExp.body, frame);
+            }
+        } else if (exp instanceof ReturnExp) {
+            ReturnExp returnExp = (ReturnExp) exp;
+            if (!(returnExp.exp instanceof NilExp)) {
+                frame.result = eval(returnExp.exp, frame);
+            }
+            frame.returned = true;
+        } else if (exp instanceof CallExp) {
+            evalCall((CallExp) exp, frame);
+        } else if (!(exp instanceof NilExp)) {
+            eval(exp, frame);
+        }
+    }
+
+    private int eval(Exp exp, Frame frame) {
+        step();
+        if (exp instanceof IntExp) {
+            return ((IntExp) exp).value;
+        } else if (exp instanceof BoolExp) {
+            return ((BoolExp) exp).value ? 1 : 0;
+        } else if (exp instanceof VarExp) {
+            VarExp varExp = (VarExp) exp;
+            if (varExp.var instanceof IndexVar) {
+                Integer[] arr = frame.arrays.get(varExp.dtype);
+                int index = eval(((IndexVar) varExp.var).index, frame);
+                if (arr == null || index < 0 || index >= arr.length || arr[index] == null) {
+                    abort();
+                }
+                return arr[index];
+            }
+            Integer value = frame.scalars.get(varExp.dtype);
+            if (value == null) {
+                abort();
+            }
+            return value;
+        } else if (exp instanceof AssignExp) {
+            AssignExp assign = (AssignExp) exp;
+            int value = eval(assign.rhs, frame);
+            if (assign.lhs.var instanceof IndexVar) {
+                Integer[] arr = frame.arrays.get(assign.lhs.dtype);
+                int index = eval(((IndexVar) assign.lhs.var).index, frame);
+                if (arr == null || index < 0 || index >= arr.length) {
+                    abort();
+                }
+                arr[index] = value;
+            } else if (assign.lhs.dtype instanceof SimpleDec) {
+                frame.scalars.put((VarDec) assign.lhs.dtype, value);
+            } else {
+                abort();
+            }
+            return value;
+        } else if (exp instanceof CallExp) {
+            Integer value = evalCall((CallExp) exp, frame);
+            if (value == null) {
+                abort();
+            }
+            return value;
+        } else if (exp instanceof OpExp) {
+            return evalOp((OpExp) exp, frame);
+        }
+        abort();
+        return 0;
+    }
+
+    private Integer evalCall(CallExp exp, Frame frame) {
+        int numArgs = 0;
+        ExpList args = exp.args;
+        while (args != null && args.head != null) {
+            numArgs++;
+            args = args.tail;
+        }
+
+        int[] values = new int[numArgs];
+        args = exp.args;
+        for (int i = 0; i < numArgs; i++) {
+            values[i] = eval(args.head, frame);
+            args = args.tail;
+        }
+        return call(purity.getFunction(exp.func), values);
+    }
+
+    // Comparisons follow CodeGenerator.visit(OpExp)
+    private int evalOp(OpExp exp, Frame frame) {
+        int left = exp.left instanceof NilExp ? 0 : eval(exp.left, frame);
+        int right = eval(exp.right, frame);
+
+        switch (exp.op) {
+            case OpExp.ADD:
+                return left + right;
+            case OpExp.SUBT:
+                return left - right;
+            case OpExp.MULT:
+                return left * right;
+            case OpExp.DIV:
+                if (right == 0) {
+                    abort();
+                }
+                return left / right;
+            case OpExp.UMINUS:
+                return -right;
+            case OpExp.LT:
+                return left - right < 0 ? 1 : 0;
+            case OpExp.LTE:
+                return left - right <= 0 ? 1 : 0;
+            case OpExp.GT:
+                return left - right > 0 ? 1 : 0;
+            case OpExp.GTE:
+                return left - right >= 0 ? 1 : 0;
+            case OpExp.EQUAL:
+                return left == right ? 1 : 0;
+            case OpExp.NEQUAL:
+                return left != right ? 1 : 0;
+            case OpExp.AND:
+                return left != 0 && right != 0 ? 1 : 0;
+            case OpExp.OR:
+                return left != 0 || right != 0 ? 1 : 0;
+            case OpExp.BNOT:
+                return right == 0 ? 1 : 0;
+        }
+        abort();
+        return 0;
+    }
+}
@@ -0,0 +1,157 @@
+import absyn.*;
+
+/*
+ * Replaces calls to pure functions that only have constant arguments with the
+ * constant result of the call.
+ */
+public class ConstantFolder implements AbsynVisitor {
+    private PurityAnalyzer purity;
+    private ConstantEvaluator evaluator;
+    private int numFolded;
+
+    public void fold(DecList program) {
+        purity = new PurityAnalyzer();
+        purity.analyze(program);
+        evaluator = new ConstantEvaluator(purity);
+        numFolded = 0;
+        program.accept(this, 0, false);
+    }
+
+    public int getNumFolded() {
+        return numFolded;
+    }
+
+    private Exp fold(Exp exp) {
+        exp.accept(this, 0, false);
+        if (exp instanceof CallExp) {
+            Exp result = evaluateCall((CallExp) exp);
+            if (result != null) {
+                numFolded++;
+                return result;
+            }
+        }
+        return exp;
+    }
+
+    private Exp evaluateCall(CallExp exp) {
+        if (!(exp.dtype instanceof FunctionDec) || !purity.isPure(exp.func)) {
+            return null;
+        }
+
+        int resultType = ((FunctionDec) exp.dtype).result.type;
+        if (resultType == NameTy.VOID) {
+            return null;
+        }
+
+        int numArgs = 0;
+        for (ExpList args = exp.args; args != null && args.head != null; args = args.tail) {
+            if (!(args.head instanceof IntExp || args.head instanceof BoolExp)) {
+                return null;
+            }
+            numArgs++;
+        }
+
+        int[] values = new int[numArgs];
+        ExpList args = exp.args;
+        for (int i = 0; i < numArgs; i++) {
+            values[i] = args.head instanceof IntExp ? ((IntExp) args.head).value
+                    : (((BoolExp) args.head).value ? 1 : 0);
+            args = args.tail;
+        }
+
+        Integer value = evaluator.evaluate(purity.getFunction(exp.func), values);
+        if (value == null) {
+            return null;
+        }
+
+        Exp result = resultType == NameTy.BOOL ? new BoolExp(exp.row, exp.col, value != 0)
+                : new IntExp(exp.row, exp.col, value);
+        result.dtype = new SimpleDec(-1, -1, new NameTy(-1, -1, resultType), null);
+        return result;
+    }
+
+    public void visit(NameTy type, int level, boolean isAddress) {
+    }
+
+    public void visit(IndexVar var, int level, boolean isAddress) {
+        var.index = fold(var.index);
+    }
+
+    public void visit(SimpleVar var, int level, boolean isAddress) {
+    }
+
+    public void visit(AssignExp exp, int level, boolean isAddress) {
+        exp.lhs.accept(this, level, false);
+        exp.rhs = fold(exp.rhs);
+    }
+
+    public void visit(BoolExp exp, int level, boolean isAddress) {
+    }
+
+    public void visit(CallExp exp, int level, boolean isAddress) {
+        exp.args.accept(this, level, false);
+    }
+
+    public void visit(CompoundExp exp, int level, boolean isAddress) {
+        exp.exps.accept(this, level + 1, false);
+    }
+
+    public void visit(IfExp exp, int level, boolean isAddress) {
+        exp.test = fold(exp.test);
+        exp.thenpart = fold(exp.thenpart);
+        exp.elsepart = fold(exp.elsepart);
+    }
+
+    public void visit(IntExp exp, int level, boolean isAddress) {
+    }
+
+    public void visit(NilExp exp, int level, boolean isAddress) {
+    }
+
+    public void visit(OpExp exp, int level, boolean isAddress) {
+        exp.left = fold(exp.left);
+        exp.right = fold(exp.right);
+    }
+
+    public void visit(ReturnExp exp, int level, boolean isAddress) {
+        exp.exp = fold(exp.exp);
+    }
+
+    public void visit(VarExp exp, int level, boolean isAddress) {
+        exp.var.accept(this, level, false);
+    }
+
+    public void visit(WhileExp exp, int level, boolean isAddress) {
+        exp.test = fold(exp.test);
+        exp.body = fold(exp.body);
+    }
+
+    public void visit(ExpList expList, int level, boolean isAddress) {
+        while (expList != null && expList.head != null) {
+            expList.head = fold(expList.head);
+            expList = expList.tail;
+        }
+    }
+
+    public void visit(DecList decList, int level, boolean isAddress) {
+        while (decList != null && decList.head != null) {
+            decList.head.accept(this, level, false);
+            decList = decList.tail;
+        }
+    }
+
+    public void visit(VarDecList varDecList, int level, boolean isAddress) {
+    }
+
+    public void visit(FunctionDec dec, int level, boolean isAddress) {
+        if (!(dec.body instanceof NilExp)) {
+            dec.body.accept(this, level, false);
+        }
+    }
+
+    public void visit(ArrayDec varDec, int level, boolean isAddress) {
+    }
+
+    public void visit(SimpleDec varDec, int level, boolean isAddress) {
+    }
+}
@@ -0,0 +1,476 @@
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java_cup.runtime.Symbol;
+import absyn.*;
+
+/*
+ * Recursive descent parser for C-, as an alternative to the CUP parser. It
+ * builds the same syntax tree, down to the row and column of every node: like
+ * CUP, a node made from a phrase takes the line of the phrase's first token
+ * and the column of its last one. Statements are parsed by recursive descent
+ * and binary operators by precedence climbing, with lists built in order as
+ * they are read.
+ *
+ * Only valid programs are parsed. On a syntax error parse() returns null, and
+ * the program should be parsed again with the CUP parser, which reports the
+ * error and recovers from it.
+ */
+public class DescentParser {
+    private static final int BENCHMARK_ROUNDS = 5;
+
+    // Binary operator levels, from loosest to tightest; relational operators do not associate
+    private static final int OR_LEVEL = 1;
+    private static final int AND_LEVEL = 2;
+    private static final int RELATIONAL_LEVEL = 3;
+    private static final int ADDITIVE_LEVEL = 4;
+    private static final int MULTIPLICATIVE_LEVEL = 5;
+
+    private static final int[] LEVELS = new int[sym.terminalNames.length];
+    private static final int[] OPERATORS = new int[sym.terminalNames.length];
+
+    static {
+        setOperator(sym.OR, OR_LEVEL, OpExp.OR);
+        setOperator(sym.AND, AND_LEVEL, OpExp.AND);
+        setOperator(sym.LT, RELATIONAL_LEVEL, OpExp.LT);
+        setOperator(sym.LTE, RELATIONAL_LEVEL, OpExp.LTE);
+        setOperator(sym.GT, RELATIONAL_LEVEL, OpExp.GT);
+        setOperator(sym.GTE, RELATIONAL_LEVEL, OpExp.GTE);
+        setOperator(sym.EQUAL, RELATIONAL_LEVEL, OpExp.EQUAL);
+        setOperator(sym.NEQUAL, RELATIONAL_LEVEL, OpExp.NEQUAL);
+        setOperator(sym.ADD, ADDITIVE_LEVEL, OpExp.ADD);
+        setOperator(sym.SUBT, ADDITIVE_LEVEL, OpExp.SUBT);
+        setOperator(sym.MULT, MULTIPLICATIVE_LEVEL, OpExp.MULT);
+        setOperator(sym.DIV, MULTIPLICATIVE_LEVEL, OpExp.DIV);
+    }
+
+    private static void setOperator(int token, int level, int op) {
+        LEVELS[token] = level;
+        OPERATORS[token] = op;
+    }
+
+    private static class SyntaxError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SyntaxError() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final SyntaxError SYNTAX_ERROR = new SyntaxError();
+
+    private java_cup.runtime.Scanner lexer;
+    private Symbol token;
+    private int lastColumn; // column of the last token read
+
+    public DescentParser(java_cup.runtime.Scanner lexer) {
+        this.lexer = lexer;
+    }
+
+    // Returns the program, or null if it has a syntax error or is nested too deeply
+    public DecList parse() throws Exception {
+        try {
+            advance();
+            DecList first = new DecList(parseDeclaration(), null);
+            DecList last = first;
+            while (token.sym != sym.EOF) {
+                last = last.tail = new DecList(parseDeclaration(), null);
+            }
+            return first;
+        } catch (SyntaxError | StackOverflowError e) {
+            return null;
+        }
+    }
+
+    // Hands each top-level declaration to the handler as soon as it is read; returns false as parse() returns null
+    public boolean parse(Consumer<Dec> handler) throws Exception {
+        try {
+            advance();
+            do {
+                handler.accept(parseDeclaration());
+            } while (token.sym != sym.EOF);
+            return true;
+        } catch (SyntaxError | StackOverflowError e) {
+            return false;
+        }
+    }
+
+    private void advance() throws Exception {
+        if (token != null) {
+            lastColumn = token.right;
+        }
+        token = lexer.next_token();
+        if (token == null) {
+            token = new Symbol(sym.EOF);
+        }
+    }
+
+    private Symbol expect(int kind) throws Exception {
+        Symbol expected = token;
+        if (expected.sym != kind) {
+            throw SYNTAX_ERROR;
+        }
+        advance();
+        return expected;
+    }
+
+    private boolean isType() {
+        return token.sym == sym.INT || token.sym == sym.BOOL || token.sym == sym.VOID;
+    }
+
+    private NameTy parseType() throws Exception {
+        Symbol type = token;
+        switch (type.sym) {
+            case sym.INT:
+                advance();
+                return new NameTy(type.left, type.right, NameTy.INT);
+            case sym.BOOL:
+                advance();
+                return new NameTy(type.left, type.right, NameTy.BOOL);
+            case sym.VOID:
+                advance();
+                return new NameTy(type.left, type.right, NameTy.VOID);
+            default:
+                throw SYNTAX_ERROR;
+        }
+    }
+
+    private Dec parseDeclaration() throws Exception {
+        NameTy type = parseType();
+        String name = (String) expect(sym.ID).value;
+        if (token.sym != sym.LPAREN) {
+            return parseVarDeclaration(type, name);
+        }
+        advance();
+        VarDecList params = parseParams();
+        Symbol close = expect(sym.RPAREN);
+        if (token.sym == sym.SEMI) {
+            advance();
+            return new FunctionDec(type.row, type.col, type, name, params, new NilExp(close.left, close.right));
+        }
+        return new FunctionDec(type.row, type.col, type, name, params, parseCompound());
+    }
+
+    // Parses the rest of a variable declaration after its name
+    private VarDec parseVarDeclaration(NameTy type, String name) throws Exception {
+        if (token.sym == sym.LSQUARE) {
+            advance();
+            int size = (Integer) expect(sym.NUM).value;
+            expect(sym.RSQUARE);
+            expect(sym.SEMI);
+            return new ArrayDec(type.row, type.col, type, name, size);
+        }
+        expect(sym.SEMI);
+        return new SimpleDec(type.row, type.col, type, name);
+    }
+
+    private VarDecList parseParams() throws Exception {
+        NameTy type;
+        if (token.sym == sym.VOID) {
+            Symbol voidType = token;
+            advance();
+            if (token.sym == sym.RPAREN) {
+                return new VarDecList(null, null);
+            }
+            type = new NameTy(voidType.left, voidType.right, NameTy.VOID);
+        } else {
+            type = parseType();
+        }
+        VarDecList first = new VarDecList(parseParam(type), null);
+        VarDecList last = first;
+        while (token.sym == sym.COMMA) {
+            advance();
+            last = last.tail = new VarDecList(parseParam(parseType()), null);
+        }
+        return first;
+    }
+
+    private VarDec parseParam(NameTy type) throws Exception {
+        String name = (String) expect(sym.ID).value;
+        if (token.sym == sym.LSQUARE) {
+            advance();
+            expect(sym.RSQUARE);
+            return new ArrayDec(type.row, type.col, type, name, ArrayDec.UNKNOWN_SIZE);
+        }
+        return new SimpleDec(type.row, type.col, type, name);
+    }
+
+    private CompoundExp parseCompound() throws Exception {
+        Symbol open = expect(sym.LCURLY);
+        VarDecList decs = new VarDecList(null, null);
+        if (isType()) {
+            NameTy type = parseType();
+            decs.head = parseVarDeclaration(type, (String) expect(sym.ID).value);
+            VarDecList last = decs;
+            while (isType()) {
+                type = parseType();
+                last = last.tail = new VarDecList(parseVarDeclaration(type, (String) expect(sym.ID).value), null);
+            }
+        }
+        ExpList exps = new ExpList(null, null);
+        if (token.sym != sym.RCURLY) {
+            exps.head = parseStatement();
+            ExpList last = exps;
+            while (token.sym != sym.RCURLY) {
+                last = last.tail = new ExpList(parseStatement(), null);
+            }
+        }
+        advance();
+        return new CompoundExp(open.left, open.right, decs, exps);
+    }
+
+    private Exp parseStatement() throws Exception {
+        Symbol start = token;
+        switch (start.sym) {
+            case sym.LCURLY:
+                return parseCompound();
+            case sym.IF: {
+                advance();
+                expect(sym.LPAREN);
+                Exp test = parseExpression();
+                expect(sym.RPAREN);
+                int row = token.left;
+                Exp thenPart = parseStatement();
+                if (token.sym == sym.ELSE) {
+                    advance();
+                    return new IfExp(start.left, start.right, test, thenPart, parseStatement());
+                }
+                return new IfExp(start.left, start.right, test, thenPart, new NilExp(row, lastColumn));
+            }
+            case sym.WHILE: {
+                advance();
+                expect(sym.LPAREN);
+                Exp test = parseExpression();
+                expect(sym.RPAREN);
+                return new WhileExp(start.left, start.right, test, parseStatement());
+            }
+            case sym.RETURN: {
+                advance();
+                if (token.sym == sym.SEMI) {
+                    advance();
+                    return new ReturnExp(start.left, start.right, new NilExp(start.left, start.right));
+                }
+                Exp exp = parseExpression();
+                expect(sym.SEMI);
+                return new ReturnExp(start.left, start.right, exp);
+            }
+            case sym.SEMI:
+                advance();
+                return new NilExp(start.left, start.right);
+            default: {
+                Exp exp = parseExpression();
+                expect(sym.SEMI);
+                return exp;
+            }
+        }
+    }
+
+    // An expression that starts with a variable may be an assignment, which is only known after the variable
+    private Exp parseExpression() throws Exception {
+        if (token.sym != sym.ID) {
+            return parseBinary(OR_LEVEL);
+        }
+        Symbol id = token;
+        advance();
+        if (token.sym == sym.LPAREN) {
+            return climb(OR_LEVEL, id.left, parseCall(id));
+        }
+        Var var = parseVar(id);
+        if (token.sym == sym.ASSIGN) {
+            int col = lastColumn;
+            advance();
+            return new AssignExp(id.left, col, new VarExp(var.row, var.col, var), parseExpression());
+        }
+        return climb(OR_LEVEL, id.left, new VarExp(id.left, lastColumn, var));
+    }
+
+    // Parses operators of the given level or tighter; "~" applies to a relational expression or tighter
+    private Exp parseBinary(int minLevel) throws Exception {
+        Symbol start = token;
+        Exp left;
+        if (start.sym == sym.BNOT) {
+            if (minLevel > RELATIONAL_LEVEL) {
+                throw SYNTAX_ERROR;
+            }
+            advance();
+            left = new OpExp(start.left, start.right, new NilExp(start.left, start.right), OpExp.BNOT,
+                    parseBinary(RELATIONAL_LEVEL));
+        } else {
+            left = parseSignedFactor();
+        }
+        return climb(minLevel, start.left, left);
+    }
+
+    // Extends an operand that starts on the given row with operators of the given level or tighter
+    private Exp climb(int minLevel, int row, Exp left) throws Exception {
+        int level;
+        while ((level = LEVELS[token.sym]) >= minLevel && level > 0) {
+            int op = OPERATORS[token.sym];
+            int col = lastColumn;
+            advance();
+            left = new OpExp(row, col, left, op, parseBinary(level + 1));
+            if (level == RELATIONAL_LEVEL && LEVELS[token.sym] == RELATIONAL_LEVEL) {
+                throw SYNTAX_ERROR;
+            }
+        }
+        return left;
+    }
+
+    private Exp parseSignedFactor() throws Exception {
+        Symbol start = token;
+        if (start.sym == sym.SUBT) {
+            advance();
+            return new OpExp(start.left, start.right, new NilExp(start.left, start.right), OpExp.UMINUS,
+                    parseSignedFactor());
+        }
+        return parseFactor();
+    }
+
+    private Exp parseFactor() throws Exception {
+        Symbol start = token;
+        switch (start.sym) {
+            case sym.LPAREN: {
+                advance();
+                Exp exp = parseExpression();
+                expect(sym.RPAREN);
+                return exp;
+            }
+            case sym.NUM:
+                advance();
+                return new IntExp(start.left, start.right, (Integer) start.value);
+            case sym.TRUTH:
+                advance();
+                return new BoolExp(start.left, start.right, (Boolean) start.value);
+            case sym.ID:
+                advance();
+                if (token.sym == sym.LPAREN) {
+                    return parseCall(start);
+                }
+                Var var = parseVar(start);
+                return new VarExp(start.left, lastColumn, var);
+            default:
+                throw SYNTAX_ERROR;
+        }
+    }
+
+    private Var parseVar(Symbol id) throws Exception {
+        if (token.sym == sym.LSQUARE) {
+            advance();
+            Exp index = parseExpression();
+            expect(sym.RSQUARE);
+            return new IndexVar(id.left, id.right, (String) id.value, index);
+        }
+        return new SimpleVar(id.left, id.right, (String) id.value);
+    }
+
+    private CallExp parseCall(Symbol id) throws Exception {
+        advance();
+        ExpList args = new ExpList(null, null);
+        if (token.sym != sym.RPAREN) {
+            args.head = parseExpression();
+            ExpList last = args;
+            while (token.sym == sym.COMMA) {
+                advance();
+                last = last.tail = new ExpList(parseExpression(), null);
+            }
+        }
+        expect(sym.RPAREN);
+        return new CallExp(id.left, id.right, (String) id.value, args);
+    }
+
+    /*
+     * "-check FILE..." parses each file with both parsers and compares the
+     * trees, including the row and column of every node. "-bench FILE..."
+     * compares their speed, as the best of several rounds after a warmup.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !(args[0].equals("-check") || args[0].equals("-bench"))) {
+            System.err.println("Usage: DescentParser -check|-bench FILE...");
+            System.exit(1);
+        }
+        int failed = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (args[0].equals("-check")) {
+                failed += check(args[i], System.out) ? 0 : 1;
+            } else {
+                benchmark(args[i], System.out);
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static Object parseWithCup(String fileName) throws Exception {
+        return ParseScale.parseWithCup(new Lexer(SourceReader.open(fileName, SourceReader.DEFAULT_CHARSET)));
+    }
+
+    private static DecList parseWithDescent(String fileName) throws Exception {
+        return new DescentParser(new Lexer(SourceReader.open(fileName, SourceReader.DEFAULT_CHARSET))).parse();
+    }
+
+    private static boolean check(String fileName, PrintStream output) throws Exception {
+        DecList tree = parseWithDescent(fileName);
+        if (tree == null) {
+            output.println(fileName + ": syntax error or nesting too deep, left to the CUP parser");
+            return true;
+        }
+        boolean same = sameTree(parseWithCup(fileName), tree);
+        output.println(fileName + (same ? ": same tree" : ": DIFFERENT tree"));
+        return same;
+    }
+
+    // Compares two trees field by field, following list tails in a loop rather than recursively
+    private static boolean sameTree(Object a, Object b) throws IllegalAccessException {
+        while (a != b) {
+            if (a == null || b == null || a.getClass() != b.getClass()) {
+                return false;
+            }
+            if (!(a instanceof Absyn)) {
+                return Objects.deepEquals(a, b);
+            }
+            Object nextA = null;
+            Object nextB = null;
+            for (Class<?> c = a.getClass(); c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    if (field.getName().equals("tail")) {
+                        nextA = field.get(a);
+                        nextB = field.get(b);
+                    } else if (!sameTree(field.get(a), field.get(b))) {
+                        return false;
+                    }
+                }
+            }
+            a = nextA;
+            b = nextB;
+        }
+        return true;
+    }
+
+    private static void benchmark(String fileName, PrintStream output) throws Exception {
+        long size = new java.io.File(fileName).length();
+        parseWithCup(fileName);
+        parseWithDescent(fileName);
+        output.println(fileName + " (" + size / 1024 + " KB)");
+        long[] best = new long[2];
+        for (int mode = 0; mode < 2; mode++) {
+            best[mode] = Long.MAX_VALUE;
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                long start = System.nanoTime();
+                if (mode == 0) {
+                    parseWithCup(fileName);
+                } else {
+                    parseWithDescent(fileName);
+                }
+                best[mode] = Math.min(best[mode], System.nanoTime() - start);
+            }
+            output.println(String.format("  %-8s %9.1f ms %8.1f MB/s", mode == 0 ? "CUP" : "descent",
+                    best[mode] / 1e6, size / (best[mode] / 1e9) / (1 << 20)));
+        }
+        output.println(String.format("  %.1fx faster", (double) best[0] / best[1]));
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Layout information recorded by the code generator for each function.
+ */
+public class FunctionInfo {
+    public String name;
+    public int startLoc; // First instruction generated for the function
+    public int entryLoc; // Instruction that a call jumps to
+    public int endLoc; // One past the last instruction of the function
+    public int frameSize; // Words used at or below FP, including the saved FP
+    public int numTemps; // Peak number of live temporaries
+    public int numInstructions;
+    public int[] opCounts; // Instructions emitted for each OpCode
+    public int numBoundsChecks; // Instructions that check array bounds
+    public int numTraps; // Instructions that report runtime errors
+    public List<CallSite> calls;
+
+    public static class CallSite {
+        public String func;
+        public int frameOffset; // FP offset of the callee's frame
+
+        public CallSite(String func, int frameOffset) {
+            this.func = func;
+            this.frameOffset = frameOffset;
+        }
+    }
+
+    public FunctionInfo(String name) {
+        this.name = name;
+        calls = new ArrayList<CallSite>();
+        opCounts = new int[OpCode.values().length];
+    }
+}
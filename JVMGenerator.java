@@ -0,0 +1,565 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import absyn.*;
+
+/*
+ * Compiles the annotated syntax tree directly to a JVM class. Each function
+ * becomes a static method with its variables in JVM locals, global variables
+ * become static fields, and arrays become int[]. Runtime errors print the same
+ * codes as the TM code and stop the program.
+ */
+public class JVMGenerator implements AbsynVisitor {
+    private static final String INPUT_FIELD = "$in";
+    private static final String OUTPUT_FIELD = "$out";
+    private static final String ERROR_FIELD = "$error";
+    private static final String READER = "java/io/BufferedReader";
+    private static final String PRINT_STREAM = "java/io/PrintStream";
+    private static final String EXECUTE_DESC = "(L" + READER + ";L" + PRINT_STREAM + ";)I";
+
+    private ClassFileWriter writer;
+    private ClassFileWriter.Code code;
+    private String className;
+    private Map<VarDec, Integer> locals; // JVM local of each variable in the current function
+    private List<VarDec> globals;
+    private FunctionDec currentFunc;
+    private FunctionDec mainFunc;
+    private boolean hasValue; // Whether the last expression left a value on the stack
+
+    public JVMGenerator() {
+        locals = new IdentityHashMap<VarDec, Integer>();
+        globals = new ArrayList<VarDec>();
+    }
+
+    public byte[] generate(DecList tree, String className) {
+        this.className = className;
+        writer = new ClassFileWriter(className, "java/lang/Object");
+        int access = ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC;
+        writer.addField(access, INPUT_FIELD, "L" + READER + ";");
+        writer.addField(access, OUTPUT_FIELD, "L" + PRINT_STREAM + ";");
+        writer.addField(access, ERROR_FIELD, "I");
+
+        tree.accept(this, 0, false);
+
+        generateRuntime();
+        generateExecute();
+        generateMain();
+        return writer.toByteArray();
+    }
+
+    public boolean writeFile(byte[] bytes, String outputFile) {
+        try {
+            FileOutputStream outputStream = new FileOutputStream(new File(outputFile));
+            outputStream.write(bytes);
+            outputStream.close();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to write class file to \"" + outputFile + "\".");
+            return false;
+        }
+    }
+
+    // Returns the static int execute(BufferedReader, PrintStream) method of a generated class
+    public static Method load(String className, byte[] bytes) throws ReflectiveOperationException {
+        Class<?> c = new ClassFileWriter.Loader().define(className, bytes);
+        return c.getMethod("execute", BufferedReader.class, PrintStream.class);
+    }
+
+    private static String getDescriptor(VarDec dec) {
+        return dec instanceof ArrayDec ? "[I" : "I";
+    }
+
+    private static String getDescriptor(FunctionDec dec) {
+        StringBuilder desc = new StringBuilder("(");
+        VarDecList params = dec.params;
+        while (params != null && params.head != null) {
+            desc.append(getDescriptor(params.head));
+            params = params.tail;
+        }
+        desc.append(dec.result.type == NameTy.VOID ? ")V" : ")I");
+        return desc.toString();
+    }
+
+    private void generateRuntime() {
+        int access = ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC;
+        ClassFileWriter.Label loop, fail, ok;
+
+        // Reads one integer per line, skipping blank lines
+        code = new ClassFileWriter.Code(writer, 1);
+        loop = code.newLabel();
+        fail = code.newLabel();
+        code.bind(loop);
+        code.field(ClassFileWriter.Code.GETSTATIC, className, INPUT_FIELD, "L" + READER + ";");
+        code.invoke(ClassFileWriter.Code.INVOKEVIRTUAL, READER, "readLine", "()Ljava/lang/String;");
+        code.astore(0);
+        code.aload(0);
+        code.jump(ClassFileWriter.Code.IFNULL, fail);
+        code.aload(0);
+        code.invoke(ClassFileWriter.Code.INVOKEVIRTUAL, "java/lang/String", "trim", "()Ljava/lang/String;");
+        code.astore(0);
+        code.aload(0);
+        code.invoke(ClassFileWriter.Code.INVOKEVIRTUAL, "java/lang/String", "isEmpty", "()Z");
+        code.jump(ClassFileWriter.Code.IFNE, loop);
+        code.aload(0);
+        code.invoke(ClassFileWriter.Code.INVOKESTATIC, "java/lang/Integer", "parseInt", "(Ljava/lang/String;)I");
+        code.op(ClassFileWriter.Code.IRETURN, -1);
+        code.bind(fail);
+        code.newObject("java/lang/NumberFormatException");
+        code.op(ClassFileWriter.Code.DUP, 1);
+        code.pushString("End of input");
+        code.invoke(ClassFileWriter.Code.INVOKESPECIAL, "java/lang/NumberFormatException", "<init>",
+                "(Ljava/lang/String;)V");
+        code.op(ClassFileWriter.Code.ATHROW, -1);
+        writer.addMethod(access, "input", "()I", code);
+
+        code = new ClassFileWriter.Code(writer, 1);
+        code.field(ClassFileWriter.Code.GETSTATIC, className, OUTPUT_FIELD, "L" + PRINT_STREAM + ";");
+        code.iload(0);
+        code.invoke(ClassFileWriter.Code.INVOKEVIRTUAL, PRINT_STREAM, "println", "(I)V");
+        code.op(ClassFileWriter.Code.RETURN, 0);
+        writer.addMethod(access, "output", "(I)V", code);
+
+        // Prints a runtime error code and stops the program
+        code = new ClassFileWriter.Code(writer, 1);
+        code.iload(0);
+        code.invoke(ClassFileWriter.Code.INVOKESTATIC, className, "output", "(I)V");
+        code.iload(0);
+        code.field(ClassFileWriter.Code.PUTSTATIC, className, ERROR_FIELD, "I");
+        code.newObject("java/lang/RuntimeException");
+        code.op(ClassFileWriter.Code.DUP, 1);
+        code.invoke(ClassFileWriter.Code.INVOKESPECIAL, "java/lang/RuntimeException", "<init>", "()V");
+        code.op(ClassFileWriter.Code.ATHROW, -1);
+        writer.addMethod(access, "$trap", "(I)V", code);
+
+        // Returns the index if it is within the array
+        code = new ClassFileWriter.Code(writer, 2);
+        ok = code.newLabel();
+        code.iload(1);
+        code.jump(ClassFileWriter.Code.IFGE, ok);
+        code.pushInt(CodeGenerator.OUT_OF_RANGE_BELOW_ERROR);
+        code.invoke(ClassFileWriter.Code.INVOKESTATIC, className, "$trap", "(I)V");
+        code.bind(ok);
+        ok = code.newLabel();
+        code.iload(1);
+        code.aload(0);
+        code.op(ClassFileWriter.Code.ARRAYLENGTH, 0);
+        code.jump(ClassFileWriter.Code.IF_ICMPLT, ok);
+        code.pushInt(CodeGenerator.OUT_OF_RANGE_ABOVE_ERROR);
+        code.invoke(ClassFileWriter.Code.INVOKESTATIC, className, "$trap", "(I)V");
+        code.bind(ok);
+        code.iload(1);
+        code.op(ClassFileWriter.Code.IRETURN, -1);
+        writer.addMethod(access, "$check", "([II)I", code);
+
+        code = new ClassFileWriter.Code(writer, 2);
+        ok = code.newLabel();
+        code.iload(1);
+        code.jump(ClassFileWriter.Code.IFNE, ok);
+        code.pushInt(CodeGenerator.DIV_BY_ZERO_ERROR);
+        code.invoke(ClassFileWriter.Code.INVOKESTATIC, className, "$trap", "(I)V");
+        code.bind(ok);
+        code.iload(0);
+        code.iload(1);
+        code.op(ClassFileWriter.Code.IDIV, -1);
+        code.op(ClassFileWriter.Code.IRETURN, -1);
+        writer.addMethod(access, "$div", "(II)I", code);
+    }
+
+    /*
+     * execute(in, out) runs the program and returns 0, or the runtime error code
+     * that stopped it.
+     */
+    private void generateExecute() {
+        code = new ClassFileWriter.Code(writer, 3);
+        code.aload(0);
+        code.field(ClassFileWriter.Code.PUTSTATIC, className, INPUT_FIELD, "L" + READER + ";");
+        code.aload(1);
+        code.field(ClassFileWriter.Code.PUTSTATIC, className, OUTPUT_FIELD, "L" + PRINT_STREAM + ";");
+        code.pushInt(0);
+        code.field(ClassFileWriter.Code.PUTSTATIC, className, ERROR_FIELD, "I");
+        for (VarDec dec : globals) {
+            if (dec instanceof ArrayDec) {
+                code.pushInt(((ArrayDec) dec).size);
+                code.newIntArray();
+            } else {
+                code.pushInt(0);
+            }
+            code.field(ClassFileWriter.Code.PUTSTATIC, className, dec.name, getDescriptor(dec));
+        }
+
+        ClassFileWriter.Label start = code.newLabel();
+        ClassFileWriter.Label end = code.newLabel();
+        ClassFileWriter.Label handler = code.newLabel();
+        ClassFileWriter.Label rethrow = code.newLabel();
+        code.bind(start);
+        if (mainFunc != null) {
+            code.invoke(ClassFileWriter.Code.INVOKESTATIC, className, "main", getDescriptor(mainFunc));
+            if (mainFunc.result.type != NameTy.VOID) {
+                code.op(ClassFileWriter.Code.POP, -1);
+            }
+        }
+        code.bind(end);
+        code.aload(1);
+        code.invoke(ClassFileWriter.Code.INVOKEVIRTUAL, PRINT_STREAM, "flush", "()V");
+        code.pushInt(0);
+        code.op(ClassFileWriter.Code.IRETURN, -1);
+
+        code.addHandler(start, end, handler, "java/lang/RuntimeException");
+        code.bind(handler);
+        code.astore(2);
+        code.aload(1);
+        code.invoke(ClassFileWriter.Code.INVOKEVIRTUAL, PRINT_STREAM, "flush", "()V");
+        code.field(ClassFileWriter.Code.GETSTATIC, className, ERROR_FIELD, "I");
+        code.jump(ClassFileWriter.Code.IFEQ, rethrow);
+        code.field(ClassFileWriter.Code.GETSTATIC, className, ERROR_FIELD, "I");
+        code.op(ClassFileWriter.Code.IRETURN, -1);
+        code.bind(rethrow);
+        code.aload(2);
+        code.op(ClassFileWriter.Code.ATHROW, -1);
+        writer.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "execute", EXECUTE_DESC, code);
+    }
+
+    // main(String[]) runs the program on standard input and output
+    private void generateMain() {
+        code = new ClassFileWriter.Code(writer, 1);
+        ClassFileWriter.Label done = code.newLabel();
+        code.newObject(READER);
+        code.op(ClassFileWriter.Code.DUP, 1);
+        code.newObject("java/io/InputStreamReader");
+        code.op(ClassFileWriter.Code.DUP, 1);
+        code.field(ClassFileWriter.Code.GETSTATIC, "java/lang/System", "in", "Ljava/io/InputStream;");
+        code.invoke(ClassFileWriter.Code.INVOKESPECIAL, "java/io/InputStreamReader", "<init>",
+                "(Ljava/io/InputStream;)V");
+        code.invoke(ClassFileWriter.Code.INVOKESPECIAL, READER, "<init>", "(Ljava/io/Reader;)V");
+        code.field(ClassFileWriter.Code.GETSTATIC, "java/lang/System", "out", "L" + PRINT_STREAM + ";");
+        code.invoke(ClassFileWriter.Code.INVOKESTATIC, className, "execute", EXECUTE_DESC);
+        code.jump(ClassFileWriter.Code.IFEQ, done);
+        code.pushInt(1);
+        code.invoke(ClassFileWriter.Code.INVOKESTATIC, "java/lang/System", "exit", "(I)V");
+        code.bind(done);
+        code.op(ClassFileWriter.Code.RETURN, 0);
+        writer.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "main", "([Ljava/lang/String;)V",
+                code);
+    }
+
+    private int allocateLocal(VarDec dec) {
+        int index = locals.size();
+        locals.put(dec, index);
+        return index;
+    }
+
+    // Pushes the value of a variable, or the reference of an array
+    private void loadVariable(VarDec dec) {
+        Integer index = locals.get(dec);
+        if (index == null) {
+            code.field(ClassFileWriter.Code.GETSTATIC, className, dec.name, getDescriptor(dec));
+        } else if (dec instanceof ArrayDec) {
+            code.aload(index);
+        } else {
+            code.iload(index);
+        }
+    }
+
+    private void storeVariable(VarDec dec) {
+        Integer index = locals.get(dec);
+        if (index == null) {
+            code.field(ClassFileWriter.Code.PUTSTATIC, className, dec.name, getDescriptor(dec));
+        } else {
+            code.istore(index);
+        }
+    }
+
+    private void generateStatement(Exp exp) {
+        exp.accept(this, 0, false);
+        if (hasValue) {
+            code.op(ClassFileWriter.Code.POP, -1);
+        }
+        hasValue = false;
+    }
+
+    // Replaces the value on the stack with 1 if it is nonzero, otherwise 0
+    private void generateBoolean(int branch) {
+        ClassFileWriter.Label isTrue = code.newLabel();
+        ClassFileWriter.Label end = code.newLabel();
+        code.jump(branch, isTrue);
+        code.pushInt(0);
+        code.jump(ClassFileWriter.Code.GOTO, end);
+        code.bind(isTrue);
+        code.pushInt(1);
+        code.bind(end);
+    }
+
+    public void visit(NameTy type, int level, boolean isAddress) {
+    }
+
+    public void visit(IndexVar var, int level, boolean isAddress) {
+        VarDec dec = (VarDec) var.dtype;
+        loadVariable(dec);
+        loadVariable(dec);
+        var.index.accept(this, level, false);
+        code.invoke(ClassFileWriter.Code.INVOKESTATIC, className, "$check", "([II)I");
+    }
+
+    public void visit(SimpleVar var, int level, boolean isAddress) {
+        loadVariable((VarDec) var.dtype);
+    }
+
+    public void visit(AssignExp exp, int level, boolean isAddress) {
+        Var var = exp.lhs.var;
+        var.dtype = exp.lhs.dtype;
+        if (var instanceof IndexVar) {
+            var.accept(this, level, false);
+            exp.rhs.accept(this, level, false);
+            code.op(ClassFileWriter.Code.DUP_X2, 1);
+            code.op(ClassFileWriter.Code.IASTORE, -3);
+        } else {
+            exp.rhs.accept(this, level, false);
+            code.op(ClassFileWriter.Code.DUP, 1);
+            storeVariable((VarDec) exp.lhs.dtype);
+        }
+        hasValue = true;
+    }
+
+    public void visit(BoolExp exp, int level, boolean isAddress) {
+        code.pushInt(exp.value ? 1 : 0);
+        hasValue = true;
+    }
+
+    public void visit(CallExp exp, int level, boolean isAddress) {
+        FunctionDec dec = (FunctionDec) exp.dtype;
+        ExpList args = exp.args;
+        while (args != null && args.head != null) {
+            args.head.accept(this, level, false);
+            args = args.tail;
+        }
+        code.invoke(ClassFileWriter.Code.INVOKESTATIC, className, exp.func, getDescriptor(dec));
+        hasValue = dec.result.type != NameTy.VOID;
+    }
+
+    public void visit(CompoundExp exp, int level, boolean isAddress) {
+        exp.decs.accept(this, level + 1, false);
+        exp.exps.accept(this, level + 1, false);
+        hasValue = false;
+    }
+
+    public void visit(IfExp exp, int level, boolean isAddress) {
+        ClassFileWriter.Label elseLabel = code.newLabel();
+        ClassFileWriter.Label end = code.newLabel();
+        exp.test.accept(this, level, false);
+        code.jump(ClassFileWriter.Code.IFEQ, elseLabel);
+        generateStatement(exp.thenpart);
+        code.jump(ClassFileWriter.Code.GOTO, end);
+        code.bind(elseLabel);
+        generateStatement(exp.elsepart);
+        code.bind(end);
+        hasValue = false;
+    }
+
+    public void visit(IntExp exp, int level, boolean isAddress) {
+        code.pushInt(exp.value);
+        hasValue = true;
+    }
+
+    public void visit(NilExp exp, int level, boolean isAddress) {
+        hasValue = false;
+    }
+
+    public void visit(OpExp exp, int level, boolean isAddress) {
+        if (exp.op != OpExp.UMINUS && exp.op != OpExp.BNOT) {
+            exp.left.accept(this, level, false);
+            if (exp.op == OpExp.AND || exp.op == OpExp.OR) {
+                generateBoolean(ClassFileWriter.Code.IFNE);
+            }
+        }
+        exp.right.accept(this, level, false);
+
+        // Comparisons follow CodeGenerator.visit(OpExp)
+        switch (exp.op) {
+            case OpExp.ADD:
+                code.op(ClassFileWriter.Code.IADD, -1);
+                break;
+            case OpExp.SUBT:
+                code.op(ClassFileWriter.Code.ISUB, -1);
+                break;
+            case OpExp.MULT:
+                code.op(ClassFileWriter.Code.IMUL, -1);
+                break;
+            case OpExp.DIV:
+                code.invoke(ClassFileWriter.Code.INVOKESTATIC, className, "$div", "(II)I");
+                break;
+            case OpExp.UMINUS:
+                code.op(ClassFileWriter.Code.INEG, 0);
+                break;
+            case OpExp.LT:
+                code.op(ClassFileWriter.Code.ISUB, -1);
+                generateBoolean(ClassFileWriter.Code.IFLT);
+                break;
+            case OpExp.LTE:
+                code.op(ClassFileWriter.Code.ISUB, -1);
+                generateBoolean(ClassFileWriter.Code.IFLE);
+                break;
+            case OpExp.GT:
+                code.op(ClassFileWriter.Code.ISUB, -1);
+                generateBoolean(ClassFileWriter.Code.IFGT);
+                break;
+            case OpExp.GTE:
+                code.op(ClassFileWriter.Code.ISUB, -1);
+                generateBoolean(ClassFileWriter.Code.IFGE);
+                break;
+            case OpExp.EQUAL:
+                code.op(ClassFileWriter.Code.ISUB, -1);
+                generateBoolean(ClassFileWriter.Code.IFEQ);
+                break;
+            case OpExp.NEQUAL:
+                code.op(ClassFileWriter.Code.ISUB, -1);
+                generateBoolean(ClassFileWriter.Code.IFNE);
+                break;
+            case OpExp.AND:
+                generateBoolean(ClassFileWriter.Code.IFNE);
+                code.op(ClassFileWriter.Code.IAND, -1);
+                break;
+            case OpExp.OR:
+                generateBoolean(ClassFileWriter.Code.IFNE);
+                code.op(ClassFileWriter.Code.IOR, -1);
+                break;
+            case OpExp.BNOT:
+                generateBoolean(ClassFileWriter.Code.IFEQ);
+                break;
+        }
+        hasValue = true;
+    }
+
+    public void visit(ReturnExp exp, int level, boolean isAddress) {
+        exp.exp.accept(this, level, false);
+        if (currentFunc.result.type == NameTy.VOID) {
+            if (hasValue) {
+                code.op(ClassFileWriter.Code.POP, -1);
+            }
+            code.op(ClassFileWriter.Code.RETURN, 0);
+        } else {
+            if (!hasValue) {
+                code.pushInt(0);
+            }
+            code.op(ClassFileWriter.Code.IRETURN, -1);
+        }
+        hasValue = false;
+    }
+
+    public void visit(VarExp exp, int level, boolean isAddress) {
+        exp.var.dtype = exp.dtype;
+        exp.var.accept(this, level, false);
+        if (exp.var instanceof IndexVar) {
+            code.op(ClassFileWriter.Code.IALOAD, -1);
+        }
+        hasValue = true;
+    }
+
+    public void visit(WhileExp exp, int level, boolean isAddress) {
+        ClassFileWriter.Label test = code.newLabel();
+        ClassFileWriter.Label end = code.newLabel();
+        code.bind(test);
+        exp.test.accept(this, level, false);
+        code.jump(ClassFileWriter.Code.IFEQ, end);
+        generateStatement(exp.body);
+        code.jump(ClassFileWriter.Code.GOTO, test);
+        code.bind(end);
+        hasValue = false;
+    }
+
+    public void visit(ExpList expList, int level, boolean isAddress) {
+        while (expList != null && expList.head != null) {
+            generateStatement(expList.head);
+            expList = expList.tail;
+        }
+    }
+
+    public void visit(DecList decList, int level, boolean isAddress) {
+        while (decList != null && decList.head != null) {
+            decList.head.accept(this, level, false);
+            decList = decList.tail;
+        }
+    }
+
+    public void visit(VarDecList varDecList, int level, boolean isAddress) {
+        while (varDecList != null && varDecList.head != null) {
+            varDecList.head.accept(this, level, false);
+            varDecList = varDecList.tail;
+        }
+    }
+
+    public void visit(FunctionDec dec, int level, boolean isAddress) {
+        if (dec.body instanceof NilExp) {
+            return;
+        }
+        if (dec.func.equals("main")) {
+            mainFunc = dec;
+        }
+        currentFunc = dec;
+        generateMethod(dec, false);
+        if (code.size() > Short.MAX_VALUE) {
+            // Some branches may not reach their targets
+            generateMethod(dec, true);
+        }
+        if (code.size() > 0xFFFF) {
+            throw new IllegalStateException("Function \"" + dec.func + "\" is too large for -jvm (" + code.size()
+                    + " bytes of bytecode, at most 65535)");
+        }
+        writer.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, dec.func, getDescriptor(dec), code);
+        currentFunc = null;
+    }
+
+    private void generateMethod(FunctionDec dec, boolean longJumps) {
+        locals.clear();
+        code = new ClassFileWriter.Code(writer, 0);
+        code.setLongJumps(longJumps);
+
+        // Parameters take the first locals, in order
+        VarDecList params = dec.params;
+        while (params != null && params.head != null) {
+            allocateLocal(params.head);
+            params = params.tail;
+        }
+        code.setMaxLocals(locals.size());
+
+        generateStatement(dec.body);
+
+        // Insert automatic return
+        if (dec.result.type == NameTy.VOID) {
+            code.op(ClassFileWriter.Code.RETURN, 0);
+        } else {
+            code.pushInt(0);
+            code.op(ClassFileWriter.Code.IRETURN, -1);
+        }
+    }
+
+    public void visit(ArrayDec varDec, int level, boolean isAddress) {
+        if (currentFunc == null) {
+            globals.add(varDec);
+            writer.addField(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, varDec.name, "[I");
+        } else {
+            int index = allocateLocal(varDec);
+            code.pushInt(varDec.size);
+            code.newIntArray();
+            code.astore(index);
+        }
+    }
+
+    public void visit(SimpleDec varDec, int level, boolean isAddress) {
+        if (currentFunc == null) {
+            globals.add(varDec);
+            writer.addField(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, varDec.name, "I");
+        } else {
+            int index = allocateLocal(varDec);
+            code.pushInt(0);
+            code.istore(index);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Identifier pool for the lexer. Names are looked up straight from the lexer's
+ * buffer, so a String is only made the first time a name is seen, and every
+ * later occurrence shares that String. The pooled Strings are also interned by
+ * the JVM, so they are the same references as the string literals the
+ * compiler uses for built-in names such as "main" and "input".
+ */
+public class NamePool {
+    private static final int INITIAL_CAPACITY = 256; // must be a power of two
+
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int size;
+
+    public String intern(char[] buffer, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        int mask = names.length - 1;
+        int slot = hash & mask;
+        String name;
+        while ((name = names[slot]) != null) {
+            if (hashes[slot] == hash && matches(name, buffer, start, length)) {
+                return name;
+            }
+            slot = (slot + 1) & mask;
+        }
+        name = new String(buffer, start, length).intern();
+        names[slot] = name;
+        hashes[slot] = hash;
+        if (++size * 2 > names.length) {
+            grow();
+        }
+        return name;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static boolean matches(String name, char[] buffer, int start, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != buffer[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow() {
+        String[] oldNames = names;
+        int[] oldHashes = hashes;
+        names = new String[oldNames.length * 2];
+        hashes = new int[oldNames.length * 2];
+        int mask = names.length - 1;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                int slot = oldHashes[i] & mask;
+                while (names[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                names[slot] = oldNames[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+}
@@ -1,4 +1,6 @@
 public enum OpCode {
     HALT, IN, OUT, ADD, SUB, MUL, DIV,
-    LD, LDA, LDC, ST, JLT, JLE, JGT, JGE, JEQ, JNE;
+    LD, LDA, LDC, ST, JLT, JLE, JGT, JGE, JEQ, JNE,
+    LDB, LDAB, // Bounds-checked array element load and address, run by TMMachine
+    CALL, RET, PUSH, POP, LDX, STX; // Extended instructions for calls and indexed access, run by TMMachine
 }
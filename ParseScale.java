@@ -0,0 +1,92 @@
+import java.io.PrintStream;
+import java.io.StringReader;
+import java_cup.runtime.DefaultSymbolFactory;
+
+/*
+ * Checks that parse time grows linearly with the length of the lists the
+ * grammar builds. "ParseScale N" parses generated programs with N, 2N, 4N and
+ * 8N items in each list: global declarations, parameters, local declarations,
+ * statements and call arguments. It reports the time per item, as the best of
+ * several rounds after a warmup, and fails if that time doubles from N to 8N.
+ * "ParseScale -rd N" times the recursive descent parser as well.
+ */
+public class ParseScale {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        boolean descent = args.length == 2 && args[0].equals("-rd");
+        if (args.length != (descent ? 2 : 1)) {
+            System.err.println("Usage: ParseScale [-rd] N");
+            System.exit(1);
+        }
+        System.exit(scale(Integer.parseInt(args[args.length - 1]), descent, System.out) ? 0 : 1);
+    }
+
+    // DefaultSymbolFactory is deprecated, but it is the only factory that accepts the lexer's plain Symbols
+    @SuppressWarnings("deprecation")
+    static Object parseWithCup(java_cup.runtime.Scanner scanner) throws Exception {
+        return new parser(scanner, new DefaultSymbolFactory()).parse().value;
+    }
+
+    private static String generateProgram(int n) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            source.append("int g").append(i).append(";\n");
+        }
+        source.append("int f(");
+        for (int i = 0; i < n; i++) {
+            source.append(i == 0 ? "int p" : ", int p").append(i);
+        }
+        source.append(") {\n");
+        for (int i = 0; i < n; i++) {
+            source.append("  int l").append(i).append(";\n");
+        }
+        for (int i = 0; i < n; i++) {
+            source.append("  l").append(i).append(" = p").append(i).append(";\n");
+        }
+        source.append("  return 0;\n}\nvoid main(void) {\n  f(");
+        for (int i = 0; i < n; i++) {
+            source.append(i == 0 ? "" : ", ").append(i);
+        }
+        return source.append(");\n}\n").toString();
+    }
+
+    private static boolean scale(int n, boolean descent, PrintStream output) throws Exception {
+        int[] sizes = { n, 2 * n, 4 * n, 8 * n };
+        int numParsers = descent ? 2 : 1;
+        double[][] perItem = new double[numParsers][sizes.length];
+        output.println("       N     items  CUP ms  ns/item" + (descent ? "  descent ms  ns/item" : ""));
+        for (int i = 0; i < sizes.length; i++) {
+            String source = generateProgram(sizes[i]);
+            long items = 5L * sizes[i];
+            StringBuilder line = new StringBuilder(String.format("%8d %9d", sizes[i], items));
+            for (int mode = 0; mode < numParsers; mode++) {
+                long best = Long.MAX_VALUE;
+                // The first round only warms up
+                for (int round = 0; round <= ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    Lexer lexer = new Lexer(new StringReader(source));
+                    if ((mode == 0 ? parseWithCup(lexer) : new DescentParser(lexer).parse()) == null) {
+                        throw new IllegalStateException("The generated program did not parse");
+                    }
+                    if (round > 0) {
+                        best = Math.min(best, System.nanoTime() - start);
+                    }
+                }
+                perItem[mode][i] = (double) best / items;
+                String format = mode == 0 ? " %7.0f %8.1f" : " %11.0f %8.1f";
+                line.append(String.format(format, best / 1e6, perItem[mode][i]));
+            }
+            output.println(line);
+        }
+        // Quadratic parsing makes the time per item 8 times larger over the sizes
+        boolean linear = true;
+        for (int mode = 0; mode < numParsers; mode++) {
+            double growth = perItem[mode][sizes.length - 1] / perItem[mode][0];
+            output.println(String.format("%-8s %.2fx the time per item at 8x the size: %s",
+                    mode == 0 ? "CUP" : "descent", growth, growth < 2 ? "linear" : "NOT linear"));
+            linear &= growth < 2;
+        }
+        return linear;
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java_cup.runtime.Symbol;
+
+/*
+ * Runs a Lexer on its own thread, ahead of the parser. Tokens are handed over
+ * through a bounded ring with one producer and one consumer, so neither side
+ * takes a lock: each only advances its own position, and reads the other's
+ * position again only when the ring looks full or empty. The tokens are the
+ * Symbols the lexer made, with their own line, column and value, so the
+ * parser sees exactly what it would have read from the lexer. An exception in
+ * the lexer is thrown by next_token() once the tokens before it are read.
+ */
+public class PipelinedLexer implements java_cup.runtime.Scanner {
+    public static final int RING_SIZE = 1 << 12; // must be a power of two
+    private static final int MASK = RING_SIZE - 1;
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 50_000;
+    private static final int BENCHMARK_ROUNDS = 5;
+
+    private final Symbol[] ring = new Symbol[RING_SIZE];
+    private final AtomicLong head = new AtomicLong(); // next position to read, advanced by the parser
+    private final AtomicLong tail = new AtomicLong(); // next position to write, advanced by the lexer thread
+    private long readPosition;
+    private long cachedTail;
+    private boolean finished;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+
+    public PipelinedLexer(Lexer lexer) {
+        Thread thread = new Thread(() -> produce(lexer), "lexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void produce(Lexer lexer) {
+        long writePosition = 0;
+        long limit = RING_SIZE;
+        Symbol token;
+        do {
+            try {
+                token = lexer.next_token();
+            } catch (Throwable e) {
+                failure = e;
+                token = null;
+            }
+            for (int idle = 0; writePosition == limit; idle++) {
+                limit = head.get() + RING_SIZE;
+                if (writePosition == limit) {
+                    if (closed) {
+                        return;
+                    }
+                    idle(idle);
+                }
+            }
+            ring[(int) writePosition & MASK] = token;
+            tail.lazySet(++writePosition);
+        } while (token != null);
+    }
+
+    // Returns null at the end of input, like the lexer
+    public Symbol next_token() throws IOException {
+        if (finished) {
+            return null;
+        }
+        for (int idle = 0; readPosition == cachedTail; idle++) {
+            cachedTail = tail.get();
+            if (readPosition == cachedTail) {
+                idle(idle);
+            }
+        }
+        int slot = (int) readPosition & MASK;
+        Symbol token = ring[slot];
+        ring[slot] = null;
+        head.lazySet(++readPosition);
+        if (token == null) {
+            finished = true;
+            Throwable e = failure;
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            } else if (e instanceof Error) {
+                throw (Error) e;
+            }
+        }
+        return token;
+    }
+
+    // Stops the lexer thread when the rest of the tokens are not needed
+    public void close() {
+        closed = true;
+    }
+
+    // Spins briefly, then yields, then sleeps, so a waiting side does not hold a core for long
+    private static void idle(int count) {
+        if (count < SPINS) {
+            Thread.onSpinWait();
+        } else if (count < 2 * SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    /*
+     * "-bench FILE..." parses each file with both parsers, reading tokens
+     * straight from the lexer and through the pipeline, and reports the best
+     * of several rounds after a warmup.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !args[0].equals("-bench")) {
+            System.err.println("Usage: PipelinedLexer -bench FILE...");
+            System.exit(1);
+        }
+        for (int i = 1; i < args.length; i++) {
+            benchmark(args[i], System.out);
+        }
+    }
+
+    private static void parse(String fileName, boolean descent, boolean pipelined) throws Exception {
+        Lexer lexer = new Lexer(SourceReader.open(fileName, SourceReader.DEFAULT_CHARSET));
+        java_cup.runtime.Scanner scanner = pipelined ? new PipelinedLexer(lexer) : lexer;
+        if (descent) {
+            new DescentParser(scanner).parse();
+        } else {
+            ParseScale.parseWithCup(scanner);
+        }
+        if (pipelined) {
+            ((PipelinedLexer) scanner).close();
+        }
+    }
+
+    private static void benchmark(String fileName, PrintStream output) throws Exception {
+        long size = new java.io.File(fileName).length();
+        output.println(fileName + " (" + size / 1024 + " KB, " + Runtime.getRuntime().availableProcessors()
+                + " processors)");
+        for (int mode = 0; mode < 4; mode++) {
+            boolean descent = mode >= 2;
+            boolean pipelined = mode % 2 == 1;
+            parse(fileName, descent, pipelined);
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                long start = System.nanoTime();
+                parse(fileName, descent, pipelined);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            output.println(String.format("  %-8s %-10s %9.1f ms %8.1f MB/s", descent ? "descent" : "CUP",
+                    pipelined ? "pipelined" : "inline", best / 1e6, size / (best / 1e9) / (1 << 20)));
+        }
+    }
+}
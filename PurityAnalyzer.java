@@ -0,0 +1,203 @@
+import absyn.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Determines which functions are pure, meaning that their result depends only on
+ * their (non-array) arguments. A pure function performs no I/O, does not read or
+ * write global variables, and only calls other pure functions.
+ */
+public class PurityAnalyzer implements AbsynVisitor {
+    private Map<String, FunctionDec> functions; // Function definitions (with bodies) by name
+    private Map<FunctionDec, Set<String>> callees;
+    private Set<VarDec> globals;
+    private Set<FunctionDec> impure;
+    private FunctionDec currentFunc = null;
+
+    public PurityAnalyzer() {
+        functions = new HashMap<String, FunctionDec>();
+        callees = new HashMap<FunctionDec, Set<String>>();
+        globals = new HashSet<VarDec>();
+        impure = new HashSet<FunctionDec>();
+    }
+
+    public void analyze(DecList program) {
+        DecList decs = program;
+        while (decs != null && decs.head != null) {
+            if (decs.head instanceof VarDec) {
+                globals.add((VarDec) decs.head);
+            } else if (decs.head instanceof FunctionDec && !(((FunctionDec) decs.head).body instanceof NilExp)) {
+                functions.put(((FunctionDec) decs.head).func, (FunctionDec) decs.head);
+            }
+            decs = decs.tail;
+        }
+
+        for (FunctionDec dec : functions.values()) {
+            currentFunc = dec;
+            callees.put(dec, new HashSet<String>());
+            dec.params.accept(this, 0, false);
+            dec.body.accept(this, 0, false);
+        }
+        currentFunc = null;
+
+        // Propagate impurity through the call graph until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FunctionDec dec : functions.values()) {
+                if (impure.contains(dec)) {
+                    continue;
+                }
+                for (String callee : callees.get(dec)) {
+                    FunctionDec calleeDec = functions.get(callee);
+                    if (calleeDec == null || impure.contains(calleeDec)) {
+                        impure.add(dec);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    public boolean isPure(String func) {
+        FunctionDec dec = functions.get(func);
+        return dec != null && !impure.contains(dec);
+    }
+
+    public FunctionDec getFunction(String func) {
+        return functions.get(func);
+    }
+
+    // Checks if the function can reach a call to itself
+    public boolean isRecursive(String func) {
+        FunctionDec dec = functions.get(func);
+        if (dec == null) {
+            return false;
+        }
+
+        Set<String> visited = new HashSet<String>();
+        List<String> pending = new ArrayList<String>(callees.get(dec));
+        while (!pending.isEmpty()) {
+            String callee = pending.remove(pending.size() - 1);
+            if (callee.equals(func)) {
+                return true;
+            }
+            FunctionDec calleeDec = functions.get(callee);
+            if (calleeDec != null && visited.add(callee)) {
+                pending.addAll(callees.get(calleeDec));
+            }
+        }
+        return false;
+    }
+
+    private void markImpure() {
+        if (currentFunc != null) {
+            impure.add(currentFunc);
+        }
+    }
+
+    public void visit(NameTy type, int level, boolean isAddress) {
+    }
+
+    public void visit(IndexVar var, int level, boolean isAddress) {
+        var.index.accept(this, level, false);
+    }
+
+    public void visit(SimpleVar var, int level, boolean isAddress) {
+    }
+
+    public void visit(AssignExp exp, int level, boolean isAddress) {
+        exp.lhs.accept(this, level, false);
+        exp.rhs.accept(this, level, false);
+    }
+
+    public void visit(BoolExp exp, int level, boolean isAddress) {
+    }
+
+    public void visit(CallExp exp, int level, boolean isAddress) {
+        if (exp.func.equals("input") || exp.func.equals("output")) {
+            markImpure();
+        } else if (currentFunc != null) {
+            callees.get(currentFunc).add(exp.func);
+        }
+        exp.args.accept(this, level, false);
+    }
+
+    public void visit(CompoundExp exp, int level, boolean isAddress) {
+        exp.decs.accept(this, level + 1, false);
+        exp.exps.accept(this, level + 1, false);
+    }
+
+    public void visit(IfExp exp, int level, boolean isAddress) {
+        exp.test.accept(this, level, false);
+        exp.thenpart.accept(this, level, false);
+        exp.elsepart.accept(this, level, false);
+    }
+
+    public void visit(IntExp exp, int level, boolean isAddress) {
+    }
+
+    public void visit(NilExp exp, int level, boolean isAddress) {
+    }
+
+    public void visit(OpExp exp, int level, boolean isAddress) {
+        exp.left.accept(this, level, false);
+        exp.right.accept(this, level, false);
+    }
+
+    public void visit(ReturnExp exp, int level, boolean isAddress) {
+        exp.exp.accept(this, level, false);
+    }
+
+    public void visit(VarExp exp, int level, boolean isAddress) {
+        if (globals.contains(exp.dtype)) {
+            markImpure();
+        }
+        exp.var.accept(this, level, false);
+    }
+
+    public void visit(WhileExp exp, int level, boolean isAddress) {
+        exp.test.accept(this, level, false);
+        exp.body.accept(this, level, false);
+    }
+
+    public void visit(ExpList expList, int level, boolean isAddress) {
+        while (expList != null && expList.head != null) {
+            expList.head.accept(this, level, false);
+            expList = expList.tail;
+        }
+    }
+
+    public void visit(DecList decList, int level, boolean isAddress) {
+        while (decList != null && decList.head != null) {
+            decList.head.accept(this, level, false);
+            decList = decList.tail;
+        }
+    }
+
+    public void visit(VarDecList varDecList, int level, boolean isAddress) {
+        while (varDecList != null && varDecList.head != null) {
+            varDecList.head.accept(this, level, false);
+            varDecList = varDecList.tail;
+        }
+    }
+
+    public void visit(FunctionDec dec, int level, boolean isAddress) {
+    }
+
+    public void visit(ArrayDec varDec, int level, boolean isAddress) {
+        // Array parameters refer to the caller's memory
+        if (varDec.size == ArrayDec.UNKNOWN_SIZE) {
+            markImpure();
+        }
+    }
+
+    public void visit(SimpleDec varDec, int level, boolean isAddress) {
+    }
+}
@@ -1,7 +1,11 @@
-import java.io.InputStreamReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
 import java_cup.runtime.Symbol;
 
 public class Scanner {
+    private static final int BENCHMARK_ROUNDS = 5;
+
     private Lexer scanner = null;
 
     public Scanner(Lexer lexer) {
@@ -12,9 +16,18 @@ public class Scanner {
         return scanner.next_token();
     }
 
+    // Lists the tokens of a file, or of standard input; "-bench FILE..." measures the lexer instead
     public static void main(String[] args) {
         try {
-            Scanner scanner = new Scanner(new Lexer(new InputStreamReader(System.in)));
+            if (args.length > 0 && args[0].equals("-bench")) {
+                for (int i = 1; i < args.length; i++) {
+                    benchmark(args[i]);
+                }
+                return;
+            }
+            Reader reader = args.length > 0 ? SourceReader.open(args[0], SourceReader.DEFAULT_CHARSET)
+                    : SourceReader.open(System.in, SourceReader.DEFAULT_CHARSET);
+            Scanner scanner = new Scanner(new Lexer(reader));
             Symbol tok = null;
             while ((tok = scanner.getNextToken()) != null) {
                 System.out.println(sym.terminalNames[tok.sym]);
@@ -24,4 +37,42 @@ public class Scanner {
             e.printStackTrace();
         }
     }
+
+    /*
+     * Compares lexing a file through an unbuffered FileReader, as CM used to,
+     * with SourceReader. The best of several rounds is reported, after one
+     * round of each to warm up.
+     */
+    private static void benchmark(String fileName) throws IOException {
+        long size = new java.io.File(fileName).length();
+        countTokens(new FileReader(fileName));
+        countTokens(SourceReader.open(fileName, SourceReader.DEFAULT_CHARSET));
+        System.out.println(fileName + " (" + size / 1024 + " KB)");
+        for (int mode = 0; mode < 2; mode++) {
+            long best = Long.MAX_VALUE;
+            long tokens = 0;
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                long start = System.nanoTime();
+                tokens = countTokens(mode == 0 ? new FileReader(fileName)
+                        : SourceReader.open(fileName, SourceReader.DEFAULT_CHARSET));
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println(String.format("  %-12s %10d tokens %9.1f ms %12.0f tokens/s %8.1f MB/s",
+                    mode == 0 ? "FileReader" : "SourceReader", tokens, best / 1e6, tokens / (best / 1e9),
+                    size / (best / 1e9) / (1 << 20)));
+        }
+    }
+
+    private static long countTokens(Reader reader) throws IOException {
+        try {
+            Lexer lexer = new Lexer(reader);
+            long count = 0;
+            while (lexer.next_token() != null) {
+                count++;
+            }
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
 }
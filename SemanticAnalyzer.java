@@ -19,6 +19,7 @@ public class SemanticAnalyzer implements AbsynVisitor {
 
     private StringBuilder output;
     private int numErrors;
+    private StringBuilder deferredErrors;
 
     private final int SPACES = 4;
     private final String MAIN_FUNCTION_NAME = "main";
@@ -28,10 +29,48 @@ public class SemanticAnalyzer implements AbsynVisitor {
     }
 
     public void analyze(DecList program, String outputFile) {
+        startProgram(false);
+        program.accept(this, ROOT_LEVEL + 1, false);
+        finishProgram(program, outputFile);
+    }
+
+    /*
+     * analyze() in steps, for a program analyzed one top-level declaration at
+     * a time. Errors can be held back until finishProgram(), so that nothing
+     * is reported for a program that turns out to need parsing again.
+     */
+    public void startProgram(boolean deferErrors) {
         numErrors = 0;
         output = new StringBuilder();
         output.append("Entering the global scope:\n");
-        program.accept(this, ROOT_LEVEL + 1, false);
+        deferredErrors = deferErrors ? new StringBuilder() : null;
+    }
+
+    public void analyzeDeclaration(Dec dec) {
+        dec.accept(this, ROOT_LEVEL + 1, false);
+    }
+
+    // Declares a function already analyzed without errors in an earlier build, see CodeCache
+    public void declareAnalyzed(FunctionDec dec, String symbolText) {
+        addSymbol(dec, ROOT_LEVEL + 1);
+        output.append(symbolText);
+    }
+
+    // The symbol table text displayed so far, to keep what one declaration adds
+    public int getOutputLength() {
+        return output.length();
+    }
+
+    public String getOutput(int start) {
+        return output.substring(start);
+    }
+
+    // Takes the top-level declarations of the whole program, in order
+    public void finishProgram(DecList program, String outputFile) {
+        if (deferredErrors != null) {
+            System.err.print(deferredErrors);
+            deferredErrors = null;
+        }
         removeDecListSymbols(program, ROOT_LEVEL + 1);
         output.append("Leaving the global scope\n");
         if (!isMainDeclared()) {
@@ -84,12 +123,19 @@ public class SemanticAnalyzer implements AbsynVisitor {
     }
 
     private void reportError(int row, int col, String msg) {
-        System.err.println("Error on line " + (row + 1) + ", column " + (col + 1) + ": " + msg);
-        numErrors++;
+        printError("Error on line " + (row + 1) + ", column " + (col + 1) + ": " + msg);
     }
 
     private void reportError(String msg) {
-        System.err.println("Error: " + msg);
+        printError("Error: " + msg);
+    }
+
+    private void printError(String line) {
+        if (deferredErrors != null) {
+            deferredErrors.append(line).append('\n');
+        } else {
+            System.err.println(line);
+        }
         numErrors++;
     }
 
@@ -112,11 +158,10 @@ public class SemanticAnalyzer implements AbsynVisitor {
     private void addSymbol(Dec dec, int level) {
         final String name = dec.getName();
         final NodeType type = new NodeType(name, dec, level);
-        List<NodeType> decStack = null;
+        List<NodeType> decStack = symbolTable.get(name);
         NodeType conflict = null;
 
-        if (symbolTable.containsKey(name)) {
-            decStack = symbolTable.get(name);
+        if (decStack != null) {
             if ((conflict = checkDecConflict(decStack, dec, level)) != null) {
                 Dec conflictDec = conflict.def;
                 if (conflictDec instanceof FunctionDec && ((FunctionDec) conflictDec).body instanceof NilExp
@@ -137,10 +182,9 @@ public class SemanticAnalyzer implements AbsynVisitor {
 
     private boolean removeSymbol(Dec dec) {
         final String name = dec.getName();
-        List<NodeType> decStack = null;
+        List<NodeType> decStack = symbolTable.get(name);
 
-        if (symbolTable.containsKey(name)) {
-            decStack = symbolTable.get(name);
+        if (decStack != null) {
             if (decStack.size() > 0) {
                 decStack.remove(0);
                 return true;
@@ -150,7 +194,7 @@ public class SemanticAnalyzer implements AbsynVisitor {
     }
 
     private Dec getDecType(String decName) {
-        List<NodeType> decStack = symbolTable.getOrDefault(decName, null);
+        List<NodeType> decStack = symbolTable.get(decName);
 
         if (decStack != null && decStack.size() > 0) {
             return decStack.get(0).def;
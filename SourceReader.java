@@ -0,0 +1,59 @@
+import java.io.BufferedReader;
+import java.io.CharArrayReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Opens C- source for the lexer. A file is memory-mapped and decoded in one
+ * pass with an explicit charset, so the lexer reads straight out of a char
+ * array. Files too large to decode at once, and standard input, are decoded
+ * through a large buffer instead. Malformed input is replaced rather than
+ * reported, as FileReader does.
+ */
+public class SourceReader {
+    public static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
+    public static final int BUFFER_SIZE = 1 << 16;
+    private static final long MAX_MAPPED_SIZE = 1 << 26; // 64 MB, decoded to twice that in chars
+
+    public static Reader open(String fileName, Charset charset) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        } catch (FileSystemException e) {
+            throw new FileNotFoundException(fileName);
+        }
+        if (channel.size() > MAX_MAPPED_SIZE) {
+            return new BufferedReader(Channels.newReader(channel, newDecoder(charset), BUFFER_SIZE), BUFFER_SIZE);
+        }
+        try {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CharBuffer chars = newDecoder(charset).decode(bytes);
+            return new CharArrayReader(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+        } finally {
+            channel.close();
+        }
+    }
+
+    public static Reader open(InputStream stream, Charset charset) {
+        return new BufferedReader(new InputStreamReader(stream, newDecoder(charset)), BUFFER_SIZE);
+    }
+
+    private static CharsetDecoder newDecoder(Charset charset) {
+        return charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+}
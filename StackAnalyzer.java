@@ -0,0 +1,161 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Computes the worst-case stack depth of a generated program from the frame
+ * layout of each function and the call graph, and writes it as a JSON report.
+ * Depths are measured in words of TM data memory.
+ */
+public class StackAnalyzer {
+    private static final int INPUT_FRAME_SIZE = 2; // Saved FP and return address
+    private static final int OUTPUT_FRAME_SIZE = 3; // Saved FP, return address and argument
+
+    private Map<String, FunctionInfo> functions;
+    private Map<String, Integer> depths; // Worst-case depth, or null if unbounded
+    private Set<String> recursive;
+    private int globalSize;
+
+    public StackAnalyzer(List<FunctionInfo> functionInfo, int globalSize) {
+        this.globalSize = globalSize;
+        functions = new LinkedHashMap<String, FunctionInfo>();
+        for (FunctionInfo info : functionInfo) {
+            functions.put(info.name, info);
+        }
+        depths = new HashMap<String, Integer>();
+        recursive = new HashSet<String>();
+        findRecursion();
+        for (String func : functions.keySet()) {
+            getDepth(func, new HashSet<String>());
+        }
+    }
+
+    public boolean isRecursive(String func) {
+        return recursive.contains(func);
+    }
+
+    // Words of stack used by a call to the function, or null if unbounded
+    public Integer getDepth(String func) {
+        return depths.get(func);
+    }
+
+    // Words of data memory needed to run the program, or null if unbounded
+    public Integer getRequiredMemory() {
+        Integer mainDepth = depths.get("main");
+        return mainDepth == null ? null : 1 + globalSize + mainDepth;
+    }
+
+    private int getFrameSize(String func) {
+        if (func.equals("input")) {
+            return INPUT_FRAME_SIZE;
+        } else if (func.equals("output")) {
+            return OUTPUT_FRAME_SIZE;
+        }
+        return functions.get(func).frameSize;
+    }
+
+    private List<String> getCallees(String func) {
+        List<String> callees = new ArrayList<String>();
+        FunctionInfo info = functions.get(func);
+        if (info != null) {
+            for (FunctionInfo.CallSite call : info.calls) {
+                callees.add(call.func);
+            }
+        }
+        return callees;
+    }
+
+    // Marks every function that is part of a cycle in the call graph
+    private void findRecursion() {
+        for (String func : functions.keySet()) {
+            Set<String> visited = new HashSet<String>();
+            List<String> pending = new ArrayList<String>(getCallees(func));
+            while (!pending.isEmpty()) {
+                String callee = pending.remove(pending.size() - 1);
+                if (callee.equals(func)) {
+                    recursive.add(func);
+                    break;
+                }
+                if (visited.add(callee)) {
+                    pending.addAll(getCallees(callee));
+                }
+            }
+        }
+    }
+
+    private Integer getDepth(String func, Set<String> active) {
+        if (depths.containsKey(func)) {
+            return depths.get(func);
+        }
+        if (!functions.containsKey(func)) {
+            return getFrameSize(func);
+        }
+        if (recursive.contains(func) || !active.add(func)) {
+            depths.put(func, null);
+            return null;
+        }
+
+        Integer depth = getFrameSize(func);
+        for (FunctionInfo.CallSite call : functions.get(func).calls) {
+            Integer calleeDepth = getDepth(call.func, active);
+            if (calleeDepth == null) {
+                depth = null;
+                break;
+            }
+            depth = Math.max(depth, -call.frameOffset + calleeDepth);
+        }
+        active.remove(func);
+        depths.put(func, depth);
+        return depth;
+    }
+
+    public void writeReport(String outputFile) {
+        StringBuilder output = new StringBuilder();
+        output.append("{\n");
+        output.append("  \"globalWords\": " + globalSize + ",\n");
+        output.append("  \"maxStackWords\": " + depths.get("main") + ",\n");
+        output.append("  \"requiredDataWords\": " + getRequiredMemory() + ",\n");
+
+        List<String> recursiveNames = new ArrayList<String>();
+        for (String func : functions.keySet()) {
+            if (recursive.contains(func)) {
+                recursiveNames.add("\"" + func + "\"");
+            }
+        }
+        output.append("  \"recursive\": [" + String.join(", ", recursiveNames) + "],\n");
+
+        output.append("  \"functions\": [\n");
+        int i = 0;
+        for (FunctionInfo info : functions.values()) {
+            List<String> callees = new ArrayList<String>();
+            for (FunctionInfo.CallSite call : info.calls) {
+                if (!callees.contains("\"" + call.func + "\"")) {
+                    callees.add("\"" + call.func + "\"");
+                }
+            }
+            output.append("    {\"name\": \"" + info.name + "\", \"frameWords\": " + info.frameSize
+                    + ", \"temporaries\": " + info.numTemps + ", \"recursive\": " + recursive.contains(info.name)
+                    + ", \"maxStackWords\": " + depths.get(info.name)
+                    + ", \"calls\": [" + String.join(", ", callees) + "]}");
+            output.append(++i < functions.size() ? ",\n" : "\n");
+        }
+        output.append("  ]\n");
+        output.append("}\n");
+
+        try {
+            FileOutputStream outputStream = new FileOutputStream(new File(outputFile));
+            outputStream.write(output.toString().getBytes());
+            outputStream.close();
+            System.out.println("Stack report written to \"" + outputFile + "\".");
+        } catch (IOException e) {
+            System.err.println("Failed to write stack report to \"" + outputFile + "\".");
+        }
+    }
+}
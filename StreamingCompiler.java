@@ -0,0 +1,91 @@
+import absyn.*;
+
+/*
+ * Compiles a program one top-level declaration at a time, as the recursive
+ * descent parser reads it. Each declaration is analyzed and, while there are
+ * no semantic errors, turned into TM code straight away, after which the body
+ * of a function is dropped. Only the global symbol table, with the headers of
+ * the functions, and the generated code are kept, so memory no longer grows
+ * with the syntax tree of the whole program, and the text of the code is
+ * written out as it is generated. Calls to functions that are not defined yet
+ * already go through their address slots in global memory, so no fixups are
+ * needed at the end.
+ *
+ * Optimizations that need the whole program (constant folding of pure calls
+ * and memoization) are not done.
+ */
+public class StreamingCompiler {
+    private SemanticAnalyzer semAnalyzer;
+    private CodeGenerator codeGenerator;
+    private DecList globals, lastGlobal; // Top-level declarations, without function bodies
+    private String codeGenFile;
+    private CodeCache cache;
+
+    // Only analyzes the program if codeGenerator is null
+    public StreamingCompiler(SemanticAnalyzer semAnalyzer, CodeGenerator codeGenerator) {
+        this.semAnalyzer = semAnalyzer;
+        this.codeGenerator = codeGenerator;
+    }
+
+    // Skips analyzing and generating the functions that are unchanged since the cached build
+    public void setCache(CodeCache cache) {
+        this.cache = cache;
+        codeGenerator.setCache(cache);
+    }
+
+    // Returns false, having reported nothing, if the program has a syntax error
+    public boolean compile(java_cup.runtime.Scanner lexer, String symbolTableFile, String codeGenFile)
+            throws Exception {
+        semAnalyzer.startProgram(true);
+        if (codeGenerator != null) {
+            codeGenerator.startProgram(codeGenFile);
+        }
+        this.codeGenFile = codeGenFile;
+        if (!new DescentParser(lexer).parse(this::compile)) {
+            if (codeGenerator != null) {
+                codeGenerator.abandonProgram();
+            }
+            return false;
+        }
+        semAnalyzer.finishProgram(globals, symbolTableFile);
+        if (codeGenerator != null) {
+            if (semAnalyzer.getNumErrors() == 0) {
+                codeGenerator.finishProgram(codeGenFile);
+            } else {
+                codeGenerator.abandonProgram();
+            }
+        }
+        return true;
+    }
+
+    private void compile(Dec dec) {
+        CodeCache.Fragment fragment = null;
+        if (cache != null) {
+            cache.addDeclaration(dec);
+            if (dec instanceof FunctionDec) {
+                fragment = cache.find((FunctionDec) dec);
+            }
+        }
+        if (fragment != null) {
+            semAnalyzer.declareAnalyzed((FunctionDec) dec, fragment.symbolText);
+        } else if (cache != null && dec instanceof FunctionDec) {
+            int start = semAnalyzer.getOutputLength();
+            semAnalyzer.analyzeDeclaration(dec);
+            cache.setSymbolText((FunctionDec) dec, semAnalyzer.getOutput(start));
+        } else {
+            semAnalyzer.analyzeDeclaration(dec);
+        }
+        if (codeGenerator != null && semAnalyzer.getNumErrors() == 0) {
+            codeGenerator.generateDeclaration(dec);
+            codeGenerator.flushText(codeGenFile);
+        }
+        if (dec instanceof FunctionDec && !(((FunctionDec) dec).body instanceof NilExp)) {
+            ((FunctionDec) dec).body = null;
+        }
+        if (globals == null) {
+            globals = lastGlobal = new DecList(dec, null);
+        } else {
+            lastGlobal = lastGlobal.tail = new DecList(dec, null);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Runs one TM program against many input files at once. The program, its
+ * superinstruction table and its translated code (with -jit) are shared by all
+ * runs, while each run gets its own machine, data memory, input file and
+ * output file ("INPUT.out"). Runs go on virtual threads when the JVM has them,
+ * and on a pool with one thread per core otherwise.
+ */
+public class TMBatch {
+    private TMProgram program;
+    private int memorySize;
+    private boolean offHeap;
+    private boolean fusion;
+    private int[] fused;
+    private Method entry;
+    private boolean bufferedIO;
+    private boolean metrics, registerMetrics;
+    private PrintStream metricsLog;
+    private long metricsInterval;
+
+    public static class Result {
+        public String input;
+        public int status;
+        public String errorMessage;
+        public long steps;
+        public long nanos;
+    }
+
+    public TMBatch(TMProgram program, int memorySize, boolean offHeap, boolean fusion) {
+        this.program = program;
+        this.memorySize = memorySize;
+        this.offHeap = offHeap;
+        this.fusion = fusion;
+        if (fusion) {
+            fused = TMFusion.fuse(program);
+        }
+    }
+
+    // Runs translated code instead of the interpreter; ignored when memory is off-heap
+    public void setEntry(Method entry) {
+        this.entry = offHeap ? null : entry;
+    }
+
+    // Reads each input file up front and buffers the output of each run
+    public void setBufferedIO(boolean bufferedIO) {
+        this.bufferedIO = bufferedIO;
+    }
+
+    // Collects metrics for each run, named after its input file, which turns off translated code
+    public void setMetrics(boolean register, PrintStream log, long intervalMillis) {
+        metrics = true;
+        registerMetrics = register;
+        metricsLog = log;
+        metricsInterval = intervalMillis;
+    }
+
+    // Uses that many platform threads if threads > 0, and otherwise virtual threads if the JVM has them
+    public static ExecutorService newExecutor(int threads) {
+        if (threads <= 0) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    // Returns the results in the same order as the inputs
+    public List<Result> run(List<File> inputs, ExecutorService executor) throws InterruptedException {
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (File input : inputs) {
+            futures.add(executor.submit(() -> run(input)));
+        }
+        List<Result> results = new ArrayList<Result>();
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private Result run(File input) {
+        Result result = new Result();
+        result.input = input.getPath();
+        long start = System.nanoTime();
+        try (BufferedReader reader = new BufferedReader(new FileReader(input));
+                PrintStream output = new PrintStream(
+                        new BufferedOutputStream(new FileOutputStream(input.getPath() + ".out")))) {
+            TMMachine machine = new TMMachine(program, memorySize, offHeap, reader, output);
+            machine.setFusion(fusion);
+            machine.setFusionTable(fused);
+            if (bufferedIO) {
+                try (FileInputStream stream = new FileInputStream(input)) {
+                    machine.setBufferedIO(TMInput.read(stream), new TMOutput(output));
+                }
+            }
+            TMMetrics runMetrics = null;
+            if (metrics) {
+                runMetrics = new TMMetrics(input.getPath(), program);
+                if (registerMetrics) {
+                    runMetrics.register();
+                }
+                if (metricsLog != null) {
+                    runMetrics.startLog(metricsLog, metricsInterval);
+                }
+                machine.setMetrics(runMetrics);
+            }
+            result.status = entry != null && !metrics ? machine.run(entry) : machine.run();
+            result.errorMessage = machine.getErrorMessage();
+            result.steps = machine.getSteps();
+            if (runMetrics != null) {
+                runMetrics.stopLog();
+                runMetrics.unregister();
+            }
+        } catch (IOException e) {
+            result.status = -1;
+            result.errorMessage = e.getMessage();
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    public static String getReport(List<Result> results, long wallNanos) {
+        int width = "Input".length();
+        for (Result result : results) {
+            width = Math.max(width, result.input.length());
+        }
+        StringBuilder output = new StringBuilder();
+        String rowFormat = "%-" + width + "s %12s %10s  %s\n";
+        output.append(String.format(rowFormat, "Input", "Steps", "Time (ms)", "Result"));
+        long totalNanos = 0;
+        int failed = 0;
+        for (Result result : results) {
+            output.append(String.format(rowFormat, result.input, result.steps >= 0 ? result.steps : "",
+                    String.format("%.2f", result.nanos / 1e6), result.errorMessage != null ? result.errorMessage : "OK"));
+            totalNanos += result.nanos;
+            if (result.status != TMMachine.STATUS_OK) {
+                failed++;
+            }
+        }
+        output.append(String.format("\n%d runs, %d failed, %.1f ms total run time in %.1f ms (%.1f runs/s)\n",
+                results.size(), failed, totalNanos / 1e6, wallNanos / 1e6,
+                wallNanos == 0 ? 0.0 : results.size() / (wallNanos / 1e9)));
+        return output.toString();
+    }
+}
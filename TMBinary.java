@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Reads and writes TM programs in the binary .tmb format. All values are little
+ * endian:
+ *
+ *   header     magic "TMB\0", version (2 bytes), flags (2 bytes),
+ *              instruction count (4 bytes), debug section offset (4 bytes)
+ *   code       8 bytes per instruction: opcode, r, t, unused, then s (4 bytes)
+ *   debug      optional; for each instruction its source line and column
+ *              (4 bytes each, 0 if unknown), then its comment as a 2 byte
+ *              length followed by UTF-8 text
+ *
+ * RM instructions keep their displacement in s and their base register in t,
+ * as in TMProgram.
+ */
+public class TMBinary {
+    public static final int MAGIC = 0x00424D54; // "TMB\0"
+    public static final int VERSION = 2;
+    public static final int FLAG_DEBUG = 1;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int INSTRUCTION_SIZE = 8;
+
+    public static void write(TMProgram program, String fileName) throws IOException {
+        int size = program.size();
+        byte[][] comments = null;
+        int debugSize = 0;
+        if (program.comments != null) {
+            comments = new byte[size][];
+            for (int i = 0; i < size; i++) {
+                String comment = program.comments[i] != null ? program.comments[i] : "";
+                comments[i] = comment.getBytes(StandardCharsets.UTF_8);
+                if (comments[i].length > 0xFFFF) {
+                    comments[i] = new byte[0];
+                }
+                debugSize += 10 + comments[i].length;
+            }
+        }
+
+        int codeEnd = HEADER_SIZE + size * INSTRUCTION_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(codeEnd + debugSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) (comments != null ? FLAG_DEBUG : 0));
+        buffer.putInt(size);
+        buffer.putInt(comments != null ? codeEnd : 0);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) program.ops[i]);
+            buffer.put((byte) program.rs[i]);
+            buffer.put((byte) program.ts[i]);
+            buffer.put((byte) 0);
+            buffer.putInt(program.ss[i]);
+        }
+        if (comments != null) {
+            for (int i = 0; i < size; i++) {
+                buffer.putInt(program.lines != null ? program.lines[i] : 0);
+                buffer.putInt(program.columns != null ? program.columns[i] : 0);
+                buffer.putShort((short) comments[i].length);
+                buffer.put(comments[i]);
+            }
+        }
+        buffer.flip();
+
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    // Loads a program, along with its debug section if readDebug is set and it is present
+    public static TMProgram load(String fileName, boolean readDebug) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw error(fileName, "Not a TM binary file");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt() != MAGIC) {
+                throw error(fileName, "Not a TM binary file");
+            }
+            int version = buffer.getShort();
+            if (version != VERSION) {
+                throw error(fileName, "Unsupported version " + version);
+            }
+            int flags = buffer.getShort();
+            int size = buffer.getInt();
+            int debugOffset = buffer.getInt();
+            if (size < 0 || (long) HEADER_SIZE + (long) size * INSTRUCTION_SIZE > buffer.limit()) {
+                throw error(fileName, "Truncated code section");
+            }
+
+            TMProgram program = new TMProgram(size);
+            int[] ops = program.ops, rs = program.rs, ss = program.ss, ts = program.ts;
+            int numOps = OpCode.values().length;
+            for (int i = 0; i < size; i++) {
+                int op = buffer.get();
+                int r = buffer.get();
+                int t = buffer.get();
+                buffer.get();
+                int s = buffer.getInt();
+                if (op < 0 || op >= numOps) {
+                    throw error(fileName, "Invalid opcode at instruction " + i);
+                }
+                if (!TMProgram.isValid(op, r, s, t)) {
+                    throw error(fileName, "Invalid register at instruction " + i);
+                }
+                ops[i] = op;
+                rs[i] = r;
+                ss[i] = s;
+                ts[i] = t;
+            }
+
+            if (readDebug && (flags & FLAG_DEBUG) != 0) {
+                try {
+                    buffer.position(debugOffset);
+                    program.comments = new String[size];
+                    program.lines = new int[size];
+                    program.columns = new int[size];
+                    for (int i = 0; i < size; i++) {
+                        program.lines[i] = buffer.getInt();
+                        program.columns[i] = buffer.getInt();
+                        byte[] comment = new byte[buffer.getShort() & 0xFFFF];
+                        buffer.get(comment);
+                        program.comments[i] = new String(comment, StandardCharsets.UTF_8);
+                    }
+                } catch (RuntimeException e) {
+                    throw error(fileName, "Truncated debug section");
+                }
+            }
+            return program;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static IOException error(String fileName, String msg) {
+        return new IOException(fileName + ": " + msg);
+    }
+}
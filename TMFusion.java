@@ -0,0 +1,165 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+ * Finds the instruction sequences that the code generator emits over and over
+ * and marks them as superinstructions, which TMMachine runs in one dispatch.
+ * Each location gets the longest sequence starting there, so a jump into the
+ * middle of a sequence still runs the instructions from that point on, either
+ * fused or one at a time. Registers used as a base by a memory instruction are
+ * never written earlier in the same sequence, so all addresses can be checked
+ * before anything runs.
+ */
+public class TMFusion {
+    public static final int NONE = 0;
+    public static final int LOAD_ALU_STORE = 1; // LD/LDC, LD/LDC, ADD/SUB/MUL, ST
+    public static final int LOAD_COMPARE = 2; // LD/LDC, LD/LDC, then COMPARE
+    public static final int COMPARE = 3; // SUB, Jcc 2(PC), LDC, LDA 1(PC), LDC
+    public static final int CALL = 4; // ST FP, LDA FP, LDA AC 1(PC), LD/LDA PC
+    public static final int RESTORE_STORE = 5; // LD FP 0(FP), ST
+    public static final int STORE_LOAD = 6; // ST, LD
+    public static final int LOAD_RETURN = 7; // LD, LD PC
+    public static final int LOAD_BRANCH = 8; // LD, Jcc n(PC)
+    public static final int NUM_KINDS = 9;
+
+    public static final String[] NAMES = { "none", "load-alu-store", "load-compare", "compare", "call",
+            "restore-store", "store-load", "load-return", "load-branch" };
+
+    private static final int AC = 0;
+    private static final int FP = 5;
+    private static final int PC = 7;
+
+    // Returns the superinstruction that starts at each location
+    public static int[] fuse(TMProgram program) {
+        int[] fused = new int[program.size()];
+        for (int loc = fused.length - 1; loc >= 0; loc--) {
+            fused[loc] = match(program, loc);
+            // Leave the load to the longer sequence that starts with it
+            if (fused[loc] == STORE_LOAD && loc + 1 < fused.length
+                    && (fused[loc + 1] == LOAD_ALU_STORE || fused[loc + 1] == LOAD_COMPARE)) {
+                fused[loc] = NONE;
+            }
+        }
+        return fused;
+    }
+
+    private static int match(TMProgram p, int loc) {
+        if (isOperandLoad(p, loc) && isOperandLoad(p, loc + 1) && !writes(p, loc, p.ts[loc + 1], p.ops[loc + 1])) {
+            if (isCompare(p, loc + 2)) {
+                return LOAD_COMPARE;
+            }
+            if (isArithmetic(p, loc + 2) && isStore(p, loc + 3) && p.ts[loc + 3] != p.rs[loc]
+                    && p.ts[loc + 3] != p.rs[loc + 1] && p.ts[loc + 3] != p.rs[loc + 2]) {
+                return LOAD_ALU_STORE;
+            }
+        }
+        if (isCompare(p, loc)) {
+            return COMPARE;
+        }
+        if (isCall(p, loc)) {
+            return CALL;
+        }
+        if (isOp(p, loc, TMProgram.LD) && p.rs[loc] == FP && p.ss[loc] == 0 && p.ts[loc] == FP && isStore(p, loc + 1)) {
+            return RESTORE_STORE;
+        }
+        if (isStore(p, loc) && isOp(p, loc + 1, TMProgram.LD) && p.rs[loc + 1] != PC && p.ts[loc + 1] != PC) {
+            return STORE_LOAD;
+        }
+        if (isOp(p, loc, TMProgram.LD) && p.rs[loc] != PC && p.ts[loc] != PC) {
+            if (isOp(p, loc + 1, TMProgram.LD) && p.rs[loc + 1] == PC && p.ts[loc + 1] != PC
+                    && p.ts[loc + 1] != p.rs[loc]) {
+                return LOAD_RETURN;
+            }
+            if (isJump(p, loc + 1) && p.ts[loc + 1] == PC) {
+                return LOAD_BRANCH;
+            }
+        }
+        return NONE;
+    }
+
+    private static boolean isOp(TMProgram p, int loc, int op) {
+        return loc < p.size() && p.ops[loc] == op;
+    }
+
+    private static boolean isJump(TMProgram p, int loc) {
+        return loc < p.size() && p.ops[loc] >= TMProgram.JLT && p.ops[loc] <= TMProgram.JNE;
+    }
+
+    // Whether the instruction at loc writes reg, as seen by an instruction with opcode nextOp that uses it as a base
+    private static boolean writes(TMProgram p, int loc, int reg, int nextOp) {
+        return nextOp != TMProgram.LDC && p.rs[loc] == reg;
+    }
+
+    private static boolean isOperandLoad(TMProgram p, int loc) {
+        return (isOp(p, loc, TMProgram.LD) && p.rs[loc] != PC && p.ts[loc] != PC)
+                || (isOp(p, loc, TMProgram.LDC) && p.rs[loc] != PC);
+    }
+
+    private static boolean isArithmetic(TMProgram p, int loc) {
+        return (isOp(p, loc, TMProgram.ADD) || isOp(p, loc, TMProgram.SUB) || isOp(p, loc, TMProgram.MUL))
+                && p.rs[loc] != PC && p.ss[loc] != PC && p.ts[loc] != PC;
+    }
+
+    private static boolean isStore(TMProgram p, int loc) {
+        return isOp(p, loc, TMProgram.ST) && p.rs[loc] != PC && p.ts[loc] != PC;
+    }
+
+    private static boolean isCompare(TMProgram p, int loc) {
+        if (!isOp(p, loc, TMProgram.SUB) || !isJump(p, loc + 1) || !isOp(p, loc + 2, TMProgram.LDC)
+                || !isOp(p, loc + 3, TMProgram.LDA) || !isOp(p, loc + 4, TMProgram.LDC)) {
+            return false;
+        }
+        int r = p.rs[loc];
+        return r != PC && p.ss[loc] != PC && p.ts[loc] != PC
+                && p.rs[loc + 1] == r && p.ss[loc + 1] == 2 && p.ts[loc + 1] == PC
+                && p.rs[loc + 2] == r && p.rs[loc + 4] == r
+                && p.rs[loc + 3] == PC && p.ss[loc + 3] == 1 && p.ts[loc + 3] == PC;
+    }
+
+    private static boolean isCall(TMProgram p, int loc) {
+        if (!isOp(p, loc, TMProgram.ST) || p.rs[loc] != FP || p.ts[loc] != FP
+                || !isOp(p, loc + 1, TMProgram.LDA) || p.rs[loc + 1] != FP || p.ts[loc + 1] != FP
+                || !isOp(p, loc + 2, TMProgram.LDA) || p.rs[loc + 2] != AC || p.ss[loc + 2] != 1
+                || p.ts[loc + 2] != PC || loc + 3 >= p.size() || p.rs[loc + 3] != PC) {
+            return false;
+        }
+        int op = p.ops[loc + 3];
+        int t = p.ts[loc + 3];
+        return (op == TMProgram.LD && t != PC && t != FP && t != AC) || (op == TMProgram.LDA && t == PC);
+    }
+
+    // Reports how many times each kind of superinstruction ran, and how many instructions those runs covered
+    public static String getReport(int[] fused, long[] runs, long[] covered, long steps) {
+        long[] sites = new long[NUM_KINDS];
+        for (int kind : fused) {
+            sites[kind]++;
+        }
+        long totalCovered = 0;
+        for (int kind = 1; kind < NUM_KINDS; kind++) {
+            totalCovered += covered[kind];
+        }
+
+        StringBuilder output = new StringBuilder();
+        output.append(String.format("Fused instructions: %d of %d executed (%.1f%%)\n\n", totalCovered, steps,
+                steps == 0 ? 0.0 : 100.0 * totalCovered / steps));
+        String rowFormat = "%-16s %8s %12s %14s %7s\n";
+        output.append(String.format(rowFormat, "Superinstruction", "Sites", "Runs", "Instructions", "%"));
+        for (int kind = 1; kind < NUM_KINDS; kind++) {
+            output.append(String.format(rowFormat, NAMES[kind], sites[kind], runs[kind], covered[kind],
+                    String.format("%.1f%%", steps == 0 ? 0.0 : 100.0 * covered[kind] / steps)));
+        }
+        return output.toString();
+    }
+
+    public static void writeReport(String text, String outputFile) {
+        try {
+            FileOutputStream outputStream = new FileOutputStream(new File(outputFile));
+            outputStream.write(text.getBytes());
+            outputStream.close();
+            System.out.println("Fusion report written to \"" + outputFile + "\".");
+        } catch (IOException e) {
+            System.err.println("Failed to write the fusion report to \"" + outputFile + "\".");
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/*
+ * Input values for the IN instruction, parsed ahead of time from a stream or
+ * given as an array. Like the line-by-line reader in TMMachine, each non-blank
+ * line holds one integer. Parsing stops at the first line that is not a valid
+ * integer, and reading past the last value fails in the same way as running
+ * out of input.
+ */
+public class TMInput {
+    private int[] values;
+    private int count;
+    private int position;
+
+    public TMInput(int[] values) {
+        this.values = values;
+        count = values.length;
+    }
+
+    // Reads the whole stream, without closing it
+    public static TMInput read(InputStream stream) throws IOException {
+        byte[] bytes = stream.readAllBytes();
+        int[] values = new int[Math.max(16, bytes.length / 4)];
+        int count = 0;
+        int i = 0;
+        while (i < bytes.length) {
+            int end = i;
+            while (end < bytes.length && bytes[end] != '\n' && bytes[end] != '\r') {
+                end++;
+            }
+            int start = i;
+            i = end + 1;
+            // Trim the line as String.trim does
+            while (start < end && (bytes[start] & 0xFF) <= ' ') {
+                start++;
+            }
+            while (end > start && (bytes[end - 1] & 0xFF) <= ' ') {
+                end--;
+            }
+            if (start == end) {
+                continue;
+            }
+            long value = parse(bytes, start, end);
+            if (value == Long.MIN_VALUE) {
+                break;
+            }
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = (int) value;
+        }
+        TMInput input = new TMInput(values);
+        input.count = count;
+        return input;
+    }
+
+    // Parses an int the way Integer.parseInt does, or returns Long.MIN_VALUE if it is not valid
+    private static long parse(byte[] bytes, int start, int end) {
+        boolean negative = bytes[start] == '-';
+        if (negative || bytes[start] == '+') {
+            start++;
+        }
+        if (start == end || end - start > 10) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+    }
+
+    public boolean hasNext() {
+        return position < count;
+    }
+
+    public int next() throws IOException {
+        if (position == count) {
+            throw new IOException("End of input");
+        }
+        return values[position++];
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/*
+ * Reads a TM program from the text format written by the code generator.
+ * Lines starting with '*' are comments, and anything after the operands of an
+ * instruction is treated as a comment.
+ */
+public class TMLoader {
+    private String fileName;
+    private int lineNum;
+
+    public TMLoader(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public TMProgram load() throws IOException {
+        TMProgram program = new TMProgram();
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            lineNum = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNum++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("*")) {
+                    continue;
+                }
+                parseInstruction(trimmed, program);
+            }
+        } finally {
+            reader.close();
+        }
+        program.trim();
+        return program;
+    }
+
+    private IOException error(String msg) {
+        return new IOException(fileName + ", line " + lineNum + ": " + msg);
+    }
+
+    private void parseInstruction(String line, TMProgram program) throws IOException {
+        int colon = line.indexOf(':');
+        if (colon < 0) {
+            throw error("Missing ':' after instruction address");
+        }
+        int loc = parseInt(line.substring(0, colon).trim());
+        if (loc < 0) {
+            throw error("Negative instruction address");
+        }
+
+        int pos = colon + 1;
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        int start = pos;
+        while (pos < line.length() && Character.isLetter(line.charAt(pos))) {
+            pos++;
+        }
+
+        OpCode code;
+        try {
+            code = OpCode.valueOf(line.substring(start, pos));
+        } catch (IllegalArgumentException e) {
+            throw error("Unknown opcode \"" + line.substring(start, pos) + "\"");
+        }
+
+        // Operands are either r,s,t or r,d(s) and end at the first whitespace
+        int end = pos;
+        while (end < line.length() && Character.isWhitespace(line.charAt(end))) {
+            end++;
+        }
+        while (end < line.length() && !Character.isWhitespace(line.charAt(end))) {
+            end++;
+        }
+        String operands = line.substring(pos, end).trim();
+        boolean isRegisterOnly = TMProgram.isRegisterOnly(code.ordinal());
+
+        int firstComma = operands.indexOf(',');
+        if (firstComma < 0) {
+            throw error("Missing operands");
+        }
+        int r = parseInt(operands.substring(0, firstComma));
+        String rest = operands.substring(firstComma + 1);
+        int s, t;
+        if (isRegisterOnly) {
+            int secondComma = rest.indexOf(',');
+            if (secondComma < 0) {
+                throw error("Expected operands in the form r,s,t");
+            }
+            s = parseInt(rest.substring(0, secondComma));
+            t = parseInt(rest.substring(secondComma + 1));
+        } else {
+            int open = rest.indexOf('(');
+            if (open < 0 || !rest.endsWith(")")) {
+                throw error("Expected operands in the form r,d(s)");
+            }
+            s = parseInt(rest.substring(0, open));
+            t = parseInt(rest.substring(open + 1, rest.length() - 1));
+        }
+
+        if (!TMProgram.isValid(code.ordinal(), r, s, t)) {
+            throw error("Invalid register");
+        }
+        program.setInstruction(loc, code, r, s, t);
+    }
+
+    private int parseInt(String s) throws IOException {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            throw error("Invalid number \"" + s.trim() + "\"");
+        }
+    }
+}
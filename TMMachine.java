@@ -0,0 +1,675 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/*
+ * Executes a decoded TM program. Data memory starts zeroed, except for location
+ * 0 which holds the largest data address, as in the standard TM simulator.
+ */
+public class TMMachine {
+    public static final int DEFAULT_MEMORY_SIZE = 1024;
+    public static final int MAX_HEAP_MEMORY_SIZE = 1 << 24; // Larger memories are always off-heap
+
+    // Execution status
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_RUNTIME_ERROR = 1; // Program reported one of its runtime error codes
+    public static final int STATUS_IMEM_ERROR = 2;
+    public static final int STATUS_DMEM_ERROR = 3;
+    public static final int STATUS_DIV_BY_ZERO = 4;
+    public static final int STATUS_INPUT_ERROR = 5;
+    public static final int STATUS_MEMORY_ERROR = 6; // Off-heap data memory could not be allocated
+
+    private static final int AC = 0;
+    private static final int FP = 5;
+    private static final int PC = 7;
+
+    private TMProgram program;
+    private int[] reg;
+    private int[] mem; // Null when data memory is off-heap
+    private TMMemory memory;
+    private BufferedReader input;
+    private PrintStream output;
+    private TMInput bufferedInput;
+    private TMOutput bufferedOutput;
+
+    private long steps;
+    private int status;
+    private int errorLoc;
+    private int errorCode;
+    private int lastOutLoc, lastOutValue;
+    private TMProfiler profiler;
+    private TMMetrics metrics;
+    private boolean fusion = true;
+    private int[] fused;
+    private long[] fusedRuns, fusedSteps;
+
+    // Thrown by translated code to stop the machine
+    public static class Fault extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public final int status;
+        public final int loc;
+
+        public Fault(int status, int loc) {
+            super(null, null, false, false);
+            this.status = status;
+            this.loc = loc;
+        }
+    }
+
+    public TMMachine(TMProgram program, int memorySize, BufferedReader input, PrintStream output) {
+        this(program, memorySize, memorySize > MAX_HEAP_MEMORY_SIZE, input, output);
+    }
+
+    public TMMachine(TMProgram program, int memorySize, boolean offHeap, BufferedReader input, PrintStream output) {
+        this.program = program;
+        this.input = input;
+        this.output = output;
+        reg = new int[8];
+        if (offHeap) {
+            memory = new TMMemory(memorySize);
+            memory.set(0, memorySize - 1);
+        } else {
+            mem = new int[memorySize];
+            mem[0] = memorySize - 1;
+        }
+    }
+
+    // Whether data memory is off-heap, which translated code cannot use
+    public boolean isOffHeap() {
+        return memory != null;
+    }
+
+    // Describes how much of the off-heap data memory was used, or null if it is on the heap
+    public String getMemoryReport() {
+        return memory != null ? memory.getReport() : null;
+    }
+
+    // Reads IN values from in and buffers OUT values in out until the program stops, instead of the streams
+    public void setBufferedIO(TMInput in, TMOutput out) {
+        bufferedInput = in;
+        bufferedOutput = out;
+    }
+
+    // Reports every instruction to the profiler; only used by the interpreter
+    public void setProfiler(TMProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    // Reports every instruction to live metrics; only used by the interpreter
+    public void setMetrics(TMMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Runs common instruction sequences as superinstructions; only used by the interpreter
+    public void setFusion(boolean fusion) {
+        this.fusion = fusion;
+    }
+
+    // Uses a table made by TMFusion.fuse, so machines running the same program can share it
+    public void setFusionTable(int[] fused) {
+        this.fused = fused;
+    }
+
+    // Dynamic coverage of the superinstructions in the last run, or null if none were used
+    public String getFusionReport() {
+        if (fusedRuns == null) {
+            return null;
+        }
+        return TMFusion.getReport(fused, fusedRuns, fusedSteps, steps);
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getErrorMessage() {
+        switch (status) {
+            case STATUS_OK:
+                return null;
+            case STATUS_RUNTIME_ERROR:
+                return "Runtime error " + errorCode + ": " + getRuntimeErrorName(errorCode);
+            case STATUS_IMEM_ERROR:
+                return "Instruction memory fault at " + errorLoc;
+            case STATUS_DMEM_ERROR:
+                return "Data memory fault at " + errorLoc;
+            case STATUS_DIV_BY_ZERO:
+                return "Division by zero at " + errorLoc;
+            case STATUS_INPUT_ERROR:
+                return "Invalid or missing input at " + errorLoc;
+            case STATUS_MEMORY_ERROR:
+                return "Out of memory for data memory (" + memory.getCommittedBytes() / 1024 + " KB committed)";
+            default:
+                return "Unknown status " + status;
+        }
+    }
+
+    public static boolean isRuntimeErrorCode(int value) {
+        return value == CodeGenerator.OUT_OF_RANGE_BELOW_ERROR || value == CodeGenerator.OUT_OF_RANGE_ABOVE_ERROR
+                || value == CodeGenerator.DIV_BY_ZERO_ERROR;
+    }
+
+    public static String getRuntimeErrorName(int value) {
+        if (value == CodeGenerator.OUT_OF_RANGE_BELOW_ERROR) {
+            return "Index out of bounds (too low)";
+        } else if (value == CodeGenerator.OUT_OF_RANGE_ABOVE_ERROR) {
+            return "Index out of bounds (too high)";
+        } else if (value == CodeGenerator.DIV_BY_ZERO_ERROR) {
+            return "Division by zero";
+        }
+        return "Unknown error";
+    }
+
+    private int fail(int status, int loc) {
+        this.status = status;
+        this.errorLoc = loc;
+        return status;
+    }
+
+    private int readInput() throws IOException {
+        if (bufferedInput != null) {
+            return bufferedInput.next();
+        }
+        String line;
+        while ((line = input.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                return Integer.parseInt(line);
+            }
+        }
+        throw new IOException("End of input");
+    }
+
+    private void writeOutput(int value) {
+        if (bufferedOutput != null) {
+            bufferedOutput.write(value);
+        } else {
+            output.println(value);
+        }
+    }
+
+    public static Fault fault(int status, int loc) {
+        return new Fault(status, loc);
+    }
+
+    // IN instruction for translated code
+    public int input(int loc) {
+        try {
+            return readInput();
+        } catch (IOException | NumberFormatException e) {
+            throw new Fault(STATUS_INPUT_ERROR, loc);
+        }
+    }
+
+    // OUT instruction for translated code
+    public void output(int value, int loc) {
+        writeOutput(value);
+        lastOutLoc = loc;
+        lastOutValue = value;
+    }
+
+    // LDAB instruction for translated code
+    public int checkedAddress(int[] mem, int base, int index, int loc) {
+        if (base < 0 || base >= mem.length) {
+            throw new Fault(STATUS_DMEM_ERROR, loc);
+        }
+        if (index < 0 || index >= mem[base]) {
+            errorCode = index < 0 ? CodeGenerator.OUT_OF_RANGE_BELOW_ERROR : CodeGenerator.OUT_OF_RANGE_ABOVE_ERROR;
+            output(errorCode, loc);
+            throw new Fault(STATUS_RUNTIME_ERROR, loc);
+        }
+        int address = base - 1 - index;
+        if (address < 0) {
+            throw new Fault(STATUS_DMEM_ERROR, loc);
+        }
+        return address;
+    }
+
+    // LDB instruction for translated code
+    public int checkedLoad(int[] mem, int base, int index, int loc) {
+        return mem[checkedAddress(mem, base, index, loc)];
+    }
+
+    /*
+     * Runs the program through a method made by TMTranslator, which returns the
+     * address of the HALT that stopped it. Steps are not counted in this mode.
+     */
+    public int run(Method entry) {
+        try {
+            return runTranslated(entry);
+        } finally {
+            if (bufferedOutput != null) {
+                bufferedOutput.flush();
+            }
+        }
+    }
+
+    private int runTranslated(Method entry) {
+        status = STATUS_OK;
+        lastOutLoc = -1;
+        steps = -1;
+        try {
+            int pc = (Integer) entry.invoke(null, reg, mem, this);
+            if (lastOutLoc == pc - 1 && isRuntimeErrorCode(lastOutValue)) {
+                errorCode = lastOutValue;
+                return fail(STATUS_RUNTIME_ERROR, pc);
+            }
+            return STATUS_OK;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Fault) {
+                Fault f = (Fault) e.getCause();
+                return fail(f.status, f.loc);
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int run() {
+        if (metrics != null) {
+            metrics.start();
+        }
+        try {
+            return interpret();
+        } catch (OutOfMemoryError e) {
+            if (memory == null) {
+                throw e;
+            }
+            steps = -1;
+            return fail(STATUS_MEMORY_ERROR, -1);
+        } finally {
+            if (bufferedOutput != null) {
+                bufferedOutput.flush();
+            }
+            if (metrics != null) {
+                metrics.finish();
+            }
+        }
+    }
+
+    private int interpret() {
+        final int[] ops = program.ops;
+        final int[] rs = program.rs;
+        final int[] ss = program.ss;
+        final int[] ts = program.ts;
+        final int[] reg = this.reg;
+        final int[] mem = this.mem;
+        final int codeSize = program.size();
+        final int memSize = mem != null ? mem.length : memory.size();
+
+        int lastOutLoc = -1, lastOutValue = 0;
+        final TMProfiler profiler = this.profiler;
+        final TMMetrics metrics = this.metrics;
+        long count = 0;
+        status = STATUS_OK;
+
+        final int[] fused;
+        final long[] fusedRuns, fusedSteps;
+        if (fusion && profiler == null && metrics == null) {
+            if (this.fused == null) {
+                this.fused = TMFusion.fuse(program);
+            }
+            fused = this.fused;
+            fusedRuns = this.fusedRuns = new long[TMFusion.NUM_KINDS];
+            fusedSteps = this.fusedSteps = new long[TMFusion.NUM_KINDS];
+        } else {
+            fused = new int[codeSize];
+            fusedRuns = fusedSteps = null;
+        }
+
+        while (true) {
+            int pc = reg[PC];
+            if (pc < 0 || pc >= codeSize) {
+                steps = count;
+                return fail(STATUS_IMEM_ERROR, pc);
+            }
+
+            // Superinstructions check every address first, and leave faults to the single steps below
+            int kind = fused[pc];
+            superinstruction:
+            if (kind != TMFusion.NONE) {
+                int a1, a2, a3, next, n;
+                switch (kind) {
+                    case TMFusion.LOAD_ALU_STORE: {
+                        a1 = ss[pc] + reg[ts[pc]];
+                        a2 = ss[pc + 1] + reg[ts[pc + 1]];
+                        a3 = ss[pc + 3] + reg[ts[pc + 3]];
+                        boolean ld1 = ops[pc] == TMProgram.LD, ld2 = ops[pc + 1] == TMProgram.LD;
+                        if ((ld1 && (a1 < 0 || a1 >= memSize)) || (ld2 && (a2 < 0 || a2 >= memSize))
+                                || a3 < 0 || a3 >= memSize) {
+                            break superinstruction;
+                        }
+                        reg[rs[pc]] = ld1 ? load(mem, a1) : ss[pc];
+                        reg[rs[pc + 1]] = ld2 ? load(mem, a2) : ss[pc + 1];
+                        int x = reg[ss[pc + 2]], y = reg[ts[pc + 2]];
+                        int op = ops[pc + 2];
+                        reg[rs[pc + 2]] = op == TMProgram.ADD ? x + y : op == TMProgram.SUB ? x - y : x * y;
+                        store(mem, a3, reg[rs[pc + 3]]);
+                        next = pc + 4;
+                        n = 4;
+                        break;
+                    }
+                    case TMFusion.LOAD_COMPARE:
+                    case TMFusion.COMPARE: {
+                        int c = pc;
+                        n = 0;
+                        if (kind == TMFusion.LOAD_COMPARE) {
+                            a1 = ss[pc] + reg[ts[pc]];
+                            a2 = ss[pc + 1] + reg[ts[pc + 1]];
+                            boolean ld1 = ops[pc] == TMProgram.LD, ld2 = ops[pc + 1] == TMProgram.LD;
+                            if ((ld1 && (a1 < 0 || a1 >= memSize)) || (ld2 && (a2 < 0 || a2 >= memSize))) {
+                                break superinstruction;
+                            }
+                            reg[rs[pc]] = ld1 ? load(mem, a1) : ss[pc];
+                            reg[rs[pc + 1]] = ld2 ? load(mem, a2) : ss[pc + 1];
+                            c = pc + 2;
+                            n = 2;
+                        }
+                        // SUB, Jcc 2(PC), LDC false, LDA 1(PC), LDC true
+                        if (test(ops[c + 1], reg[ss[c]] - reg[ts[c]])) {
+                            reg[rs[c]] = ss[c + 4];
+                            n += 3;
+                        } else {
+                            reg[rs[c]] = ss[c + 2];
+                            n += 4;
+                        }
+                        next = c + 5;
+                        break;
+                    }
+                    case TMFusion.CALL: {
+                        a1 = ss[pc] + reg[FP];
+                        boolean indirect = ops[pc + 3] == TMProgram.LD;
+                        a2 = ss[pc + 3] + reg[ts[pc + 3]];
+                        if (a1 < 0 || a1 >= memSize || (indirect && (a2 < 0 || a2 >= memSize))) {
+                            break superinstruction;
+                        }
+                        store(mem, a1, reg[FP]);
+                        reg[FP] = ss[pc + 1] + reg[FP];
+                        reg[AC] = pc + 4;
+                        next = indirect ? load(mem, a2) : pc + 4 + ss[pc + 3];
+                        n = 4;
+                        break;
+                    }
+                    case TMFusion.RESTORE_STORE: {
+                        a1 = reg[FP];
+                        if (a1 < 0 || a1 >= memSize) {
+                            break superinstruction;
+                        }
+                        int fp = load(mem, a1);
+                        a2 = ss[pc + 1] + (ts[pc + 1] == FP ? fp : reg[ts[pc + 1]]);
+                        if (a2 < 0 || a2 >= memSize) {
+                            break superinstruction;
+                        }
+                        reg[FP] = fp;
+                        store(mem, a2, reg[rs[pc + 1]]);
+                        next = pc + 2;
+                        n = 2;
+                        break;
+                    }
+                    case TMFusion.STORE_LOAD:
+                        a1 = ss[pc] + reg[ts[pc]];
+                        a2 = ss[pc + 1] + reg[ts[pc + 1]];
+                        if (a1 < 0 || a1 >= memSize || a2 < 0 || a2 >= memSize) {
+                            break superinstruction;
+                        }
+                        store(mem, a1, reg[rs[pc]]);
+                        reg[rs[pc + 1]] = load(mem, a2);
+                        next = pc + 2;
+                        n = 2;
+                        break;
+                    case TMFusion.LOAD_RETURN:
+                        a1 = ss[pc] + reg[ts[pc]];
+                        a2 = ss[pc + 1] + reg[ts[pc + 1]];
+                        if (a1 < 0 || a1 >= memSize || a2 < 0 || a2 >= memSize) {
+                            break superinstruction;
+                        }
+                        reg[rs[pc]] = load(mem, a1);
+                        next = load(mem, a2);
+                        n = 2;
+                        break;
+                    case TMFusion.LOAD_BRANCH:
+                        a1 = ss[pc] + reg[ts[pc]];
+                        if (a1 < 0 || a1 >= memSize) {
+                            break superinstruction;
+                        }
+                        reg[rs[pc]] = load(mem, a1);
+                        next = test(ops[pc + 1], reg[rs[pc + 1]]) ? pc + 2 + ss[pc + 1] : pc + 2;
+                        n = 2;
+                        break;
+                    default:
+                        break superinstruction;
+                }
+                reg[PC] = next;
+                count += n;
+                fusedRuns[kind]++;
+                fusedSteps[kind] += n;
+                continue;
+            }
+
+            reg[PC] = pc + 1;
+            count++;
+            if (profiler != null) {
+                profiler.step(pc, reg[0]);
+            }
+            if (metrics != null) {
+                metrics.step(pc, reg);
+            }
+
+            int r = rs[pc];
+            int s = ss[pc];
+            int t = ts[pc];
+            int a;
+            switch (ops[pc]) {
+                case TMProgram.HALT:
+                    steps = count;
+                    if (lastOutLoc == pc - 1 && isRuntimeErrorCode(lastOutValue)) {
+                        errorCode = lastOutValue;
+                        return fail(STATUS_RUNTIME_ERROR, pc);
+                    }
+                    return STATUS_OK;
+                case TMProgram.IN:
+                    try {
+                        reg[r] = readInput();
+                    } catch (IOException | NumberFormatException e) {
+                        steps = count;
+                        return fail(STATUS_INPUT_ERROR, pc);
+                    }
+                    break;
+                case TMProgram.OUT:
+                    writeOutput(reg[r]);
+                    lastOutLoc = pc;
+                    lastOutValue = reg[r];
+                    break;
+                case TMProgram.ADD:
+                    reg[r] = reg[s] + reg[t];
+                    break;
+                case TMProgram.SUB:
+                    reg[r] = reg[s] - reg[t];
+                    break;
+                case TMProgram.MUL:
+                    reg[r] = reg[s] * reg[t];
+                    break;
+                case TMProgram.DIV:
+                    if (reg[t] == 0) {
+                        steps = count;
+                        return fail(STATUS_DIV_BY_ZERO, pc);
+                    }
+                    reg[r] = reg[s] / reg[t];
+                    break;
+                case TMProgram.LD:
+                    a = s + reg[t];
+                    if (a < 0 || a >= memSize) {
+                        steps = count;
+                        return fail(STATUS_DMEM_ERROR, pc);
+                    }
+                    reg[r] = load(mem, a);
+                    break;
+                case TMProgram.LDA:
+                    reg[r] = s + reg[t];
+                    break;
+                case TMProgram.LDC:
+                    reg[r] = s;
+                    break;
+                case TMProgram.ST:
+                    a = s + reg[t];
+                    if (a < 0 || a >= memSize) {
+                        steps = count;
+                        return fail(STATUS_DMEM_ERROR, pc);
+                    }
+                    store(mem, a, reg[r]);
+                    break;
+                case TMProgram.LDB:
+                case TMProgram.LDAB:
+                    // The size of the array is stored just above its first element
+                    a = s + reg[t];
+                    if (a < 0 || a >= memSize) {
+                        steps = count;
+                        return fail(STATUS_DMEM_ERROR, pc);
+                    }
+                    int index = reg[r];
+                    if (index < 0 || index >= load(mem, a)) {
+                        errorCode = index < 0 ? CodeGenerator.OUT_OF_RANGE_BELOW_ERROR
+                                : CodeGenerator.OUT_OF_RANGE_ABOVE_ERROR;
+                        writeOutput(errorCode);
+                        steps = count;
+                        return fail(STATUS_RUNTIME_ERROR, pc);
+                    }
+                    a = a - 1 - index;
+                    if (a < 0) {
+                        steps = count;
+                        return fail(STATUS_DMEM_ERROR, pc);
+                    }
+                    reg[r] = ops[pc] == TMProgram.LDB ? load(mem, a) : a;
+                    break;
+                case TMProgram.CALL:
+                    a = s + reg[t];
+                    if (a < 1 || a >= memSize) {
+                        steps = count;
+                        return fail(STATUS_DMEM_ERROR, pc);
+                    }
+                    int target = reg[r];
+                    store(mem, a, reg[FP]);
+                    store(mem, a - 1, pc + 1);
+                    reg[FP] = a;
+                    reg[AC] = pc + 1;
+                    reg[PC] = target;
+                    break;
+                case TMProgram.RET:
+                    a = reg[FP];
+                    if (a < 1 || a >= memSize) {
+                        steps = count;
+                        return fail(STATUS_DMEM_ERROR, pc);
+                    }
+                    reg[PC] = load(mem, a - 1);
+                    reg[FP] = load(mem, a);
+                    break;
+                case TMProgram.PUSH:
+                    a = reg[s] - 1;
+                    if (a < 0 || a >= memSize) {
+                        steps = count;
+                        return fail(STATUS_DMEM_ERROR, pc);
+                    }
+                    store(mem, a, reg[r]);
+                    reg[s] = a;
+                    break;
+                case TMProgram.POP:
+                    a = reg[s];
+                    if (a < 0 || a >= memSize) {
+                        steps = count;
+                        return fail(STATUS_DMEM_ERROR, pc);
+                    }
+                    int value = load(mem, a);
+                    reg[s] = a + 1;
+                    reg[r] = value;
+                    break;
+                case TMProgram.LDX:
+                    a = reg[s] + reg[t];
+                    if (a < 0 || a >= memSize) {
+                        steps = count;
+                        return fail(STATUS_DMEM_ERROR, pc);
+                    }
+                    reg[r] = load(mem, a);
+                    break;
+                case TMProgram.STX:
+                    a = reg[s] + reg[t];
+                    if (a < 0 || a >= memSize) {
+                        steps = count;
+                        return fail(STATUS_DMEM_ERROR, pc);
+                    }
+                    store(mem, a, reg[r]);
+                    break;
+                case TMProgram.JLT:
+                    if (reg[r] < 0) {
+                        reg[PC] = s + reg[t];
+                    }
+                    break;
+                case TMProgram.JLE:
+                    if (reg[r] <= 0) {
+                        reg[PC] = s + reg[t];
+                    }
+                    break;
+                case TMProgram.JGT:
+                    if (reg[r] > 0) {
+                        reg[PC] = s + reg[t];
+                    }
+                    break;
+                case TMProgram.JGE:
+                    if (reg[r] >= 0) {
+                        reg[PC] = s + reg[t];
+                    }
+                    break;
+                case TMProgram.JEQ:
+                    if (reg[r] == 0) {
+                        reg[PC] = s + reg[t];
+                    }
+                    break;
+                case TMProgram.JNE:
+                    if (reg[r] != 0) {
+                        reg[PC] = s + reg[t];
+                    }
+                    break;
+                default:
+                    steps = count;
+                    return fail(STATUS_IMEM_ERROR, pc);
+            }
+        }
+    }
+
+    // Data memory accesses, where mem is null if memory is off-heap
+    private int load(int[] mem, int address) {
+        return mem != null ? mem[address] : memory.get(address);
+    }
+
+    private void store(int[] mem, int address, int value) {
+        if (mem != null) {
+            mem[address] = value;
+        } else {
+            memory.set(address, value);
+        }
+    }
+
+    // Whether a conditional jump with the given opcode is taken for value
+    private static boolean test(int op, int value) {
+        switch (op) {
+            case TMProgram.JLT:
+                return value < 0;
+            case TMProgram.JLE:
+                return value <= 0;
+            case TMProgram.JGT:
+                return value > 0;
+            case TMProgram.JGE:
+                return value >= 0;
+            case TMProgram.JEQ:
+                return value == 0;
+            default:
+                return value != 0;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/*
+ * Data memory for TMMachine that lives outside of the Java heap. Memory is split
+ * into pages of direct buffers that are only allocated when first written, so a
+ * program can be given gigabytes of memory while only paying for what it uses.
+ * Reads from a page that was never written return 0.
+ */
+public class TMMemory {
+    public static final int PAGE_BITS = 16; // 64K words (256 KB) per page
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final int size;
+    private final IntBuffer[] pages;
+    private int committedPages;
+    private long committedWords;
+
+    public TMMemory(int size) {
+        this.size = size;
+        pages = new IntBuffer[(int) (((long) size + PAGE_SIZE - 1) >>> PAGE_BITS)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int address) {
+        IntBuffer page = pages[address >>> PAGE_BITS];
+        return page != null ? page.get(address & PAGE_MASK) : 0;
+    }
+
+    public void set(int address, int value) {
+        int index = address >>> PAGE_BITS;
+        IntBuffer page = pages[index];
+        if (page == null) {
+            if (value == 0) {
+                return;
+            }
+            page = allocate(index);
+        }
+        page.put(address & PAGE_MASK, value);
+    }
+
+    private IntBuffer allocate(int index) {
+        // The last page only covers the end of memory
+        int words = (int) Math.min(PAGE_SIZE, size - ((long) index << PAGE_BITS));
+        IntBuffer page = ByteBuffer.allocateDirect(words * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        pages[index] = page;
+        committedPages++;
+        committedWords += words;
+        return page;
+    }
+
+    // Pages are never released, so this is also the high-water mark
+    public int getCommittedPages() {
+        return committedPages;
+    }
+
+    public long getCommittedBytes() {
+        return committedWords * 4;
+    }
+
+    public String getReport() {
+        return String.format("Data memory: %d words off-heap, %d of %d pages committed (%d KB high-water mark)",
+                size, committedPages, pages.length, getCommittedBytes() / 1024);
+    }
+}
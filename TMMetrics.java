@@ -0,0 +1,250 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Live counters for a program running in TMMachine, which can be watched
+ * through JMX and logged as JSON lines while it runs. The machine reports each
+ * instruction before running it, so the outcome of a branch is seen at the next
+ * step. Calls and returns are counted as FP moving down and back up, which
+ * works for both calling conventions, and the stack depth is how far FP is
+ * below the first frame, in words. The counters belong to the machine's thread
+ * and are copied for other threads every few thousand instructions.
+ */
+public class TMMetrics implements TMMetricsMBean {
+    private static final int FP = 5;
+    private static final int PUBLISH_INTERVAL = 1 << 12;
+
+    // Counters, in the order of NAMES
+    private static final int INSTRUCTIONS = 0;
+    private static final int LOADS = 1;
+    private static final int STORES = 2;
+    private static final int BRANCHES = 3;
+    private static final int TAKEN_BRANCHES = 4;
+    private static final int CALLS = 5;
+    private static final int RETURNS = 6;
+    private static final int STACK_DEPTH = 7;
+    private static final int PEAK_STACK_DEPTH = 8;
+    private static final int INPUTS = 9;
+    private static final int OUTPUTS = 10;
+    private static final int NUM_COUNTERS = 11;
+
+    private static final String[] NAMES = { "instructions", "loads", "stores", "branches", "takenBranches", "calls",
+            "returns", "stackDepth", "peakStackDepth", "inputs", "outputs" };
+
+    private static ScheduledExecutorService scheduler;
+
+    private final String name;
+    private final int[] ops;
+    private final long[] counters = new long[NUM_COUNTERS];
+    private volatile long[] published = new long[NUM_COUNTERS];
+    private volatile boolean running;
+    private int sincePublish;
+    private int prevPc = -2;
+    private boolean prevBranch;
+    private int lastFp, topFp;
+
+    private ObjectName objectName;
+    private ScheduledFuture<?> logTask;
+    private PrintStream log;
+
+    public TMMetrics(String name, TMProgram program) {
+        this.name = name;
+        ops = program.ops;
+    }
+
+    public void start() {
+        running = true;
+    }
+
+    public void step(int pc, int[] reg) {
+        long[] counters = this.counters;
+        if (prevBranch && pc != prevPc + 1) {
+            counters[TAKEN_BRANCHES]++;
+        }
+        int fp = reg[FP];
+        if (fp != lastFp) {
+            if (fp < lastFp) {
+                counters[CALLS]++;
+            } else if (lastFp < topFp) {
+                counters[RETURNS]++;
+            }
+            // The prelude moves FP up to the first frame
+            topFp = Math.max(topFp, fp);
+            lastFp = fp;
+            counters[STACK_DEPTH] = topFp - fp;
+            counters[PEAK_STACK_DEPTH] = Math.max(counters[PEAK_STACK_DEPTH], topFp - fp);
+        }
+
+        int op = ops[pc];
+        switch (op) {
+            case TMProgram.LD:
+            case TMProgram.LDB:
+            case TMProgram.LDX:
+            case TMProgram.POP:
+                counters[LOADS]++;
+                break;
+            case TMProgram.ST:
+            case TMProgram.STX:
+            case TMProgram.PUSH:
+                counters[STORES]++;
+                break;
+            case TMProgram.CALL:
+                counters[STORES] += 2;
+                break;
+            case TMProgram.RET:
+                counters[LOADS] += 2;
+                break;
+            case TMProgram.IN:
+                counters[INPUTS]++;
+                break;
+            case TMProgram.OUT:
+                counters[OUTPUTS]++;
+                break;
+        }
+        prevBranch = op >= TMProgram.JLT && op <= TMProgram.JNE;
+        if (prevBranch) {
+            counters[BRANCHES]++;
+        }
+        prevPc = pc;
+        counters[INSTRUCTIONS]++;
+        if (++sincePublish == PUBLISH_INTERVAL) {
+            publish();
+        }
+    }
+
+    private void publish() {
+        sincePublish = 0;
+        published = counters.clone();
+    }
+
+    public void finish() {
+        publish();
+        running = false;
+    }
+
+    /* JMX */
+
+    // Registers these metrics with the platform MBean server, as cminus:type=TMMachine,name=NAME
+    public boolean register() {
+        try {
+            objectName = new ObjectName("cminus:type=TMMachine,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return true;
+        } catch (JMException e) {
+            System.err.println("Failed to register metrics for \"" + name + "\": " + e.getMessage());
+            objectName = null;
+            return false;
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // Already gone
+        }
+        objectName = null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getInstructions() {
+        return published[INSTRUCTIONS];
+    }
+
+    public long getLoads() {
+        return published[LOADS];
+    }
+
+    public long getStores() {
+        return published[STORES];
+    }
+
+    public long getBranches() {
+        return published[BRANCHES];
+    }
+
+    public long getTakenBranches() {
+        return published[TAKEN_BRANCHES];
+    }
+
+    public long getCalls() {
+        return published[CALLS];
+    }
+
+    public long getReturns() {
+        return published[RETURNS];
+    }
+
+    public long getStackDepth() {
+        return published[STACK_DEPTH];
+    }
+
+    public long getPeakStackDepth() {
+        return published[PEAK_STACK_DEPTH];
+    }
+
+    public long getInputs() {
+        return published[INPUTS];
+    }
+
+    public long getOutputs() {
+        return published[OUTPUTS];
+    }
+
+    /* JSON lines */
+
+    public String getJson() {
+        long[] values = published;
+        StringBuilder output = new StringBuilder();
+        output.append("{\"time\": " + System.currentTimeMillis() + ", \"name\": \""
+                + name.replace("\\", "\\\\").replace("\"", "\\\"") + "\", \"running\": " + running);
+        for (int i = 0; i < NUM_COUNTERS; i++) {
+            output.append(", \"" + NAMES[i] + "\": " + values[i]);
+        }
+        output.append("}");
+        return output.toString();
+    }
+
+    // Writes a line to log every intervalMillis until stopLog, which writes the last one
+    public void startLog(PrintStream log, long intervalMillis) {
+        this.log = log;
+        synchronized (TMMetrics.class) {
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                    Thread thread = new Thread(task, "TMMetrics");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            logTask = scheduler.scheduleAtFixedRate(() -> log.println(getJson()), intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stopLog() {
+        if (logTask == null) {
+            return;
+        }
+        logTask.cancel(false);
+        logTask = null;
+        log.println(getJson());
+        log.flush();
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Management interface of TMMetrics, as seen through JMX.
+ */
+public interface TMMetricsMBean {
+    String getName();
+
+    boolean isRunning();
+
+    long getInstructions();
+
+    long getLoads();
+
+    long getStores();
+
+    long getBranches();
+
+    long getTakenBranches();
+
+    long getCalls();
+
+    long getReturns();
+
+    long getStackDepth();
+
+    long getPeakStackDepth();
+
+    long getInputs();
+
+    long getOutputs();
+}
@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Output for the OUT instruction that formats each value into a buffer, which
+ * is only written when it fills up and when the program stops. Like
+ * PrintStream, write errors are remembered instead of thrown; see checkError.
+ */
+public class TMOutput {
+    private static final byte[] DIGITS = "0123456789".getBytes();
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+
+    private OutputStream stream;
+    private byte[] buffer;
+    private int length;
+    private boolean error;
+
+    public TMOutput(OutputStream stream) {
+        this(stream, 1 << 16);
+    }
+
+    public TMOutput(OutputStream stream, int bufferSize) {
+        this.stream = stream;
+        buffer = new byte[Math.max(bufferSize, 32)];
+    }
+
+    // Writes value on its own line
+    public void write(int value) {
+        if (length + 12 + NEWLINE.length > buffer.length) {
+            flush();
+        }
+        long v = value;
+        if (v < 0) {
+            buffer[length++] = '-';
+            v = -v;
+        }
+        int end = length + digitCount(v);
+        for (int i = end - 1; i >= length; i--) {
+            buffer[i] = DIGITS[(int) (v % 10)];
+            v /= 10;
+        }
+        length = end;
+        for (byte b : NEWLINE) {
+            buffer[length++] = b;
+        }
+    }
+
+    private static int digitCount(long v) {
+        int count = 1;
+        while (v >= 10) {
+            v /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    public void flush() {
+        try {
+            stream.write(buffer, 0, length);
+            stream.flush();
+        } catch (IOException e) {
+            error = true;
+        }
+        length = 0;
+    }
+
+    public boolean checkError() {
+        return error;
+    }
+}
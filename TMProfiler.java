@@ -0,0 +1,254 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Collects an execution profile of a TM program. TMMachine reports each
+ * instruction before executing it; every instruction counts as one cycle. Calls
+ * are recognised as jumps to a function's entry, and returns as jumps to the
+ * return address the caller left in AC. The profile is reported per function,
+ * per source line, and as folded call stacks for flame graph tools.
+ */
+public class TMProfiler {
+    private static final int STARTUP = 0; // Code outside of any function
+
+    private TMProgram program;
+    private List<String> names; // Function names, with STARTUP first
+    private int[] functionAt; // Function that each instruction belongs to
+    private int[] entryAt; // Function entered at each instruction, or -1
+    private List<String> source;
+
+    private long[] counts; // Executions of each instruction
+    private long cycles;
+    private int prevPc = -2;
+
+    // Per-function totals
+    private long[] calls;
+    private long[] selfCycles;
+    private long[] totalCycles;
+    private int[] activeFrames;
+
+    // Call stack, with the call tree node of each frame
+    private int depth;
+    private int[] returnAddrs = new int[64];
+    private long[] startCycles = new long[64];
+    private Node[] nodes = new Node[64];
+    private Node root;
+
+    private static class Node {
+        int function;
+        Node parent;
+        long selfCycles;
+        Map<Integer, Node> children = new HashMap<Integer, Node>();
+
+        Node(int function, Node parent) {
+            this.function = function;
+            this.parent = parent;
+        }
+    }
+
+    public TMProfiler(TMProgram program, List<FunctionInfo> functions) {
+        this.program = program;
+        int size = program.size();
+        names = new ArrayList<String>();
+        names.add("(startup)");
+        functionAt = new int[size];
+        entryAt = new int[size];
+        Arrays.fill(entryAt, -1);
+        for (FunctionInfo info : functions) {
+            int id = names.size();
+            names.add(info.name);
+            for (int loc = Math.max(info.startLoc, 0); loc < Math.min(info.endLoc, size); loc++) {
+                functionAt[loc] = id;
+            }
+            if (info.entryLoc >= 0 && info.entryLoc < size) {
+                entryAt[info.entryLoc] = id;
+            }
+        }
+        counts = new long[size];
+        root = new Node(STARTUP, null);
+        nodes[0] = root;
+        depth = 0;
+    }
+
+    // Adds a routine that has no FunctionInfo, such as input and output
+    public void addRoutine(String name, int entryLoc, int endLoc) {
+        int id = names.size();
+        names.add(name);
+        for (int loc = Math.max(entryLoc, 0); loc < Math.min(endLoc, program.size()); loc++) {
+            functionAt[loc] = id;
+        }
+        if (entryLoc >= 0 && entryLoc < program.size()) {
+            entryAt[entryLoc] = id;
+        }
+    }
+
+    // Source lines to show next to the line profile
+    public void setSource(List<String> source) {
+        this.source = source;
+    }
+
+    private void ensureTotals() {
+        if (calls == null || calls.length != names.size()) {
+            calls = new long[names.size()];
+            selfCycles = new long[names.size()];
+            totalCycles = new long[names.size()];
+            activeFrames = new int[names.size()];
+        }
+    }
+
+    // Called with the pc of each instruction before it runs, and the value in AC
+    public void step(int pc, int ac) {
+        if (calls == null) {
+            ensureTotals();
+        }
+        if (pc != prevPc + 1) {
+            if (depth > 0 && pc == returnAddrs[depth]) {
+                popFrame();
+            } else if (entryAt[pc] >= 0) {
+                pushFrame(entryAt[pc], ac);
+            }
+        }
+        Node node = nodes[depth];
+        node.selfCycles++;
+        selfCycles[node.function]++;
+        counts[pc]++;
+        cycles++;
+        prevPc = pc;
+    }
+
+    private void pushFrame(int function, int returnAddr) {
+        if (depth + 1 == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+            returnAddrs = Arrays.copyOf(returnAddrs, returnAddrs.length * 2);
+            startCycles = Arrays.copyOf(startCycles, startCycles.length * 2);
+        }
+        Node parent = nodes[depth];
+        Node node = parent.children.get(function);
+        if (node == null) {
+            node = new Node(function, parent);
+            parent.children.put(function, node);
+        }
+        depth++;
+        nodes[depth] = node;
+        returnAddrs[depth] = returnAddr;
+        startCycles[depth] = cycles;
+        calls[function]++;
+        activeFrames[function]++;
+    }
+
+    // Recursive calls only count towards the total of the outermost one
+    private void popFrame() {
+        int function = nodes[depth].function;
+        if (--activeFrames[function] == 0) {
+            totalCycles[function] += cycles - startCycles[depth];
+        }
+        depth--;
+    }
+
+    // Closes the frames that were still active when the program stopped
+    public void finish() {
+        ensureTotals();
+        while (depth > 0) {
+            popFrame();
+        }
+        totalCycles[STARTUP] = cycles;
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    private static String percent(long part, long whole) {
+        return String.format("%.1f%%", whole == 0 ? 0.0 : 100.0 * part / whole);
+    }
+
+    public String getFlatProfile() {
+        StringBuilder output = new StringBuilder();
+        output.append("Flat profile: " + cycles + " instructions executed\n\n");
+
+        int nameWidth = "Function".length();
+        for (String name : names) {
+            nameWidth = Math.max(nameWidth, name.length());
+        }
+        List<Integer> functions = new ArrayList<Integer>();
+        for (int i = 0; i < names.size(); i++) {
+            if (selfCycles[i] > 0 || calls[i] > 0) {
+                functions.add(i);
+            }
+        }
+        functions.sort((a, b) -> Long.compare(selfCycles[b], selfCycles[a]));
+
+        String rowFormat = "%-" + nameWidth + "s %10s %12s %7s %12s %7s\n";
+        output.append(String.format(rowFormat, "Function", "Calls", "Self", "Self%", "Total", "Total%"));
+        for (int i : functions) {
+            output.append(String.format(rowFormat, names.get(i), i == STARTUP ? "" : calls[i], selfCycles[i],
+                    percent(selfCycles[i], cycles), totalCycles[i], percent(totalCycles[i], cycles)));
+        }
+
+        if (program.lines == null) {
+            return output.toString();
+        }
+
+        // Group instruction counts by source line
+        Map<Integer, Long> lineCounts = new TreeMap<Integer, Long>();
+        Map<Integer, Integer> lineFunctions = new HashMap<Integer, Integer>();
+        for (int loc = 0; loc < counts.length; loc++) {
+            if (counts[loc] > 0 && program.lines[loc] > 0) {
+                lineCounts.merge(program.lines[loc], counts[loc], Long::sum);
+                lineFunctions.putIfAbsent(program.lines[loc], functionAt[loc]);
+            }
+        }
+        List<Integer> lines = new ArrayList<Integer>(lineCounts.keySet());
+        lines.sort((a, b) -> Long.compare(lineCounts.get(b), lineCounts.get(a)));
+
+        output.append("\n");
+        String lineFormat = "%6s %-" + nameWidth + "s %12s %7s  %s\n";
+        output.append(String.format(lineFormat, "Line", "Function", "Count", "Count%", "Source"));
+        for (int line : lines) {
+            String text = source != null && line <= source.size() ? source.get(line - 1).trim() : "";
+            output.append(String.format(lineFormat, line, names.get(lineFunctions.get(line)), lineCounts.get(line),
+                    percent(lineCounts.get(line), cycles), text));
+        }
+        return output.toString();
+    }
+
+    // One line per call stack, e.g. "main;fib;fib 1234", with the cycles spent in its last function
+    public String getFoldedStacks() {
+        StringBuilder output = new StringBuilder();
+        appendFolded(output, root, "");
+        return output.toString();
+    }
+
+    private void appendFolded(StringBuilder output, Node node, String prefix) {
+        String path = node == root ? "" : prefix + (prefix.isEmpty() ? "" : ";") + names.get(node.function);
+        if (node.selfCycles > 0) {
+            output.append(node == root ? names.get(STARTUP) : path).append(" ").append(node.selfCycles).append("\n");
+        }
+        for (Node child : node.children.values()) {
+            appendFolded(output, child, path);
+        }
+    }
+
+    public void writeReports(String profileFile, String foldedFile) {
+        writeFile(getFlatProfile(), profileFile, "Profile");
+        writeFile(getFoldedStacks(), foldedFile, "Folded call stacks");
+    }
+
+    private static void writeFile(String text, String outputFile, String description) {
+        try {
+            FileOutputStream outputStream = new FileOutputStream(new File(outputFile));
+            outputStream.write(text.getBytes());
+            outputStream.close();
+            System.out.println(description + " written to \"" + outputFile + "\".");
+        } catch (IOException e) {
+            System.err.println("Failed to write " + description.toLowerCase() + " to \"" + outputFile + "\".");
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.Arrays;
+
+/*
+ * A TM program decoded into parallel int arrays, indexed by instruction address.
+ * RM instructions keep their displacement in s and their base register in t.
+ */
+public class TMProgram {
+    // Opcodes, in the same order as OpCode
+    public static final int HALT = 0;
+    public static final int IN = 1;
+    public static final int OUT = 2;
+    public static final int ADD = 3;
+    public static final int SUB = 4;
+    public static final int MUL = 5;
+    public static final int DIV = 6;
+    public static final int LD = 7;
+    public static final int LDA = 8;
+    public static final int LDC = 9;
+    public static final int ST = 10;
+    public static final int JLT = 11;
+    public static final int JLE = 12;
+    public static final int JGT = 13;
+    public static final int JGE = 14;
+    public static final int JEQ = 15;
+    public static final int JNE = 16;
+    // Extended instructions that only TMMachine runs
+    public static final int LDB = 17; // reg[r] = element reg[r] of the array whose size is at d+reg[s]
+    public static final int LDAB = 18; // Same as LDB, but loads the address of the element
+    public static final int CALL = 19; // New frame at d+reg[s] holding the old FP and return address, then jump to reg[r]
+    public static final int RET = 20; // Jump to the return address in the frame and restore the old FP
+    public static final int PUSH = 21; // reg[s] = reg[s]-1, then mem[reg[s]] = reg[r]
+    public static final int POP = 22; // reg[r] = mem[reg[s]], then reg[s] = reg[s]+1
+    public static final int LDX = 23; // reg[r] = mem[reg[s]+reg[t]]
+    public static final int STX = 24; // mem[reg[s]+reg[t]] = reg[r]
+
+    public int[] ops;
+    public int[] rs;
+    public int[] ss;
+    public int[] ts;
+    public String[] comments; // Optional comment of each instruction
+    public int[] lines; // Optional source line of each instruction, or 0 if none
+    public int[] columns;
+    private int size;
+
+    public TMProgram() {
+        ops = new int[256];
+        rs = new int[256];
+        ss = new int[256];
+        ts = new int[256];
+        size = 0;
+    }
+
+    // Creates a program of the given size with the arrays ready to be filled in
+    public TMProgram(int size) {
+        ops = new int[size];
+        rs = new int[size];
+        ss = new int[size];
+        ts = new int[size];
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void setInstruction(int loc, OpCode code, int r, int s, int t) {
+        if (loc >= ops.length) {
+            int capacity = Math.max(ops.length * 2, loc + 1);
+            ops = Arrays.copyOf(ops, capacity);
+            rs = Arrays.copyOf(rs, capacity);
+            ss = Arrays.copyOf(ss, capacity);
+            ts = Arrays.copyOf(ts, capacity);
+        }
+        ops[loc] = code.ordinal();
+        rs[loc] = r;
+        ss[loc] = s;
+        ts[loc] = t;
+        size = Math.max(size, loc + 1);
+    }
+
+    // Makes room for instructions up to end, with comments and positions, to be filled in directly
+    public void reserve(int end) {
+        if (end > ops.length) {
+            int capacity = Math.max(ops.length * 2, end);
+            ops = Arrays.copyOf(ops, capacity);
+            rs = Arrays.copyOf(rs, capacity);
+            ss = Arrays.copyOf(ss, capacity);
+            ts = Arrays.copyOf(ts, capacity);
+        }
+        if (comments == null) {
+            comments = new String[ops.length];
+        } else if (end > comments.length) {
+            comments = Arrays.copyOf(comments, ops.length);
+        }
+        if (lines == null) {
+            lines = new int[ops.length];
+            columns = new int[ops.length];
+        } else if (end > lines.length) {
+            lines = Arrays.copyOf(lines, ops.length);
+            columns = Arrays.copyOf(columns, ops.length);
+        }
+        size = Math.max(size, end);
+    }
+
+    public void setComment(int loc, String comment) {
+        if (comments == null) {
+            comments = new String[ops.length];
+        } else if (loc >= comments.length) {
+            comments = Arrays.copyOf(comments, Math.max(comments.length * 2, loc + 1));
+        }
+        comments[loc] = comment;
+    }
+
+    public void setPosition(int loc, int line, int column) {
+        if (lines == null) {
+            lines = new int[ops.length];
+            columns = new int[ops.length];
+        } else if (loc >= lines.length) {
+            int capacity = Math.max(lines.length * 2, loc + 1);
+            lines = Arrays.copyOf(lines, capacity);
+            columns = Arrays.copyOf(columns, capacity);
+        }
+        lines[loc] = line;
+        columns[loc] = column;
+    }
+
+    // Trims the arrays to the program size; unused locations hold HALT 0,0,0
+    public void trim() {
+        ops = Arrays.copyOf(ops, size);
+        rs = Arrays.copyOf(rs, size);
+        ss = Arrays.copyOf(ss, size);
+        ts = Arrays.copyOf(ts, size);
+        if (comments != null) {
+            comments = Arrays.copyOf(comments, size);
+        }
+        if (lines != null) {
+            lines = Arrays.copyOf(lines, size);
+            columns = Arrays.copyOf(columns, size);
+        }
+    }
+
+    public static boolean isRegisterOnly(int op) {
+        return op <= DIV || op >= RET;
+    }
+
+    // Whether the registers of an instruction are valid
+    public static boolean isValid(int op, int r, int s, int t) {
+        if (r < 0 || r > 7 || t < 0 || t > 7 || (isRegisterOnly(op) && (s < 0 || s > 7))) {
+            return false;
+        }
+        // The stack pointer of PUSH and POP cannot be the pc
+        return !((op == PUSH || op == POP) && s == 7);
+    }
+
+    public String toString(int loc) {
+        OpCode code = OpCode.values()[ops[loc]];
+        if (isRegisterOnly(ops[loc])) {
+            return String.format("%3d: %5s  %d,%d,%d", loc, code, rs[loc], ss[loc], ts[loc]);
+        }
+        return String.format("%3d: %5s  %d,%d(%d)", loc, code, rs[loc], ss[loc], ts[loc]);
+    }
+}
@@ -0,0 +1,534 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Translates a TM program into a JVM class so that it runs as compiled code.
+ * The program is split into chunks of consecutive instructions, and each chunk
+ * becomes a static method that keeps the registers in locals and dispatches on
+ * the pc with a tableswitch. Jumps with a known target branch directly; computed
+ * jumps go back through the dispatch, leaving the chunk when the target is in
+ * another one. Chunks are kept small enough for HotSpot to still compile them.
+ */
+public class TMTranslator {
+    private static final int MAX_METHOD_SIZE = 8000;
+    private static final int INITIAL_CHUNK_SIZE = 256;
+
+    private static final String MACHINE = "TMMachine";
+    private static final String FAULT = "TMMachine$Fault";
+    private static final String ENTRY_DESC = "([I[ILTMMachine;)I";
+
+    // Locals of the generated methods
+    private static final int REG = 0;
+    private static final int MEM = 1;
+    private static final int VM = 2;
+    private static final int R0 = 3; // R0 to R6 are registers 0 to 6
+    private static final int PC_LOCAL = 10;
+    private static final int TEMP = 11; // Scratch for the extended instructions of chunks
+
+    private static final int AC = 0;
+    private static final int FP = 5;
+    private static final int PC = 7;
+
+    private static int numClasses = 0;
+
+    private TMProgram program;
+    private List<int[]> chunks;
+    private String errorMessage;
+
+    public TMTranslator(TMProgram program) {
+        this.program = program;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public int getNumChunks() {
+        return chunks == null ? 0 : chunks.size();
+    }
+
+    /*
+     * Returns the entry method run(int[] reg, int[] mem, TMMachine vm), or null if
+     * the program could not be translated.
+     */
+    public Method translate() {
+        String className = "TMCompiled" + (numClasses++);
+        ClassFileWriter writer = new ClassFileWriter(className, "java/lang/Object");
+        chunks = new ArrayList<int[]>();
+        try {
+            for (int start = 0; start < program.size(); start += INITIAL_CHUNK_SIZE) {
+                addChunks(writer, start, Math.min(start + INITIAL_CHUNK_SIZE, program.size()));
+            }
+            ClassFileWriter.Code driver = generateDriver(writer, className);
+            if (driver.size() > 0xFFFF) {
+                errorMessage = "Program too large to translate";
+                return null;
+            }
+            writer.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "run", ENTRY_DESC, driver);
+            Class<?> c = new ClassFileWriter.Loader().define(className, writer.toByteArray());
+            return c.getMethod("run", int[].class, int[].class, TMMachine.class);
+        } catch (IllegalStateException | LinkageError | ReflectiveOperationException e) {
+            errorMessage = "Failed to translate program: " + e;
+            return null;
+        }
+    }
+
+    // Adds the instructions in [start, end) as one or more chunk methods
+    private void addChunks(ClassFileWriter writer, int start, int end) {
+        ClassFileWriter.Code code = generateChunk(writer, start, end);
+        if (code.size() > MAX_METHOD_SIZE && end - start > 1) {
+            int mid = (start + end) / 2;
+            addChunks(writer, start, mid);
+            addChunks(writer, mid, end);
+            return;
+        }
+        writer.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "chunk" + start, ENTRY_DESC, code);
+        chunks.add(new int[] { start, end });
+    }
+
+    private ClassFileWriter.Code generateDriver(ClassFileWriter writer, String className) {
+        ClassFileWriter.Code code = new ClassFileWriter.Code(writer, PC_LOCAL + 1);
+        code.aload(REG);
+        code.pushInt(PC);
+        code.op(ClassFileWriter.Code.IALOAD, -1);
+        code.istore(PC_LOCAL);
+
+        ClassFileWriter.Label loop = code.newLabel();
+        ClassFileWriter.Label next = code.newLabel();
+        ClassFileWriter.Label fault = code.newLabel();
+        code.bind(loop);
+        code.iload(PC_LOCAL);
+        code.jump(ClassFileWriter.Code.IFLT, fault);
+        code.iload(PC_LOCAL);
+        code.pushInt(program.size());
+        code.jump(ClassFileWriter.Code.IF_ICMPGE, fault);
+        generateSelect(code, className, 0, chunks.size() - 1, next);
+
+        // Chunks return the next pc, or -1 - loc after a HALT at loc
+        code.bind(next);
+        code.istore(PC_LOCAL);
+        code.iload(PC_LOCAL);
+        code.jump(ClassFileWriter.Code.IFGE, loop);
+        code.pushInt(-1);
+        code.iload(PC_LOCAL);
+        code.op(ClassFileWriter.Code.ISUB, -1);
+        code.op(ClassFileWriter.Code.IRETURN, -1);
+
+        code.bind(fault);
+        generateFault(code, TMMachine.STATUS_IMEM_ERROR, -1);
+        return code;
+    }
+
+    // Calls the chunk holding the pc with a binary search over chunks lo to hi
+    private void generateSelect(ClassFileWriter.Code code, String className, int lo, int hi,
+            ClassFileWriter.Label next) {
+        if (lo == hi) {
+            code.aload(REG);
+            code.aload(MEM);
+            code.aload(VM);
+            code.invoke(ClassFileWriter.Code.INVOKESTATIC, className, "chunk" + chunks.get(lo)[0], ENTRY_DESC);
+            code.jump(ClassFileWriter.Code.GOTO, next);
+            return;
+        }
+        int mid = (lo + hi + 1) / 2;
+        ClassFileWriter.Label upper = code.newLabel();
+        code.iload(PC_LOCAL);
+        code.pushInt(chunks.get(mid)[0]);
+        code.jump(ClassFileWriter.Code.IF_ICMPGE, upper);
+        generateSelect(code, className, lo, mid - 1, next);
+        code.bind(upper);
+        generateSelect(code, className, mid, hi, next);
+    }
+
+    // Throws a fault; with a negative loc the pc local is used
+    private void generateFault(ClassFileWriter.Code code, int status, int loc) {
+        code.pushInt(status);
+        if (loc < 0) {
+            code.iload(PC_LOCAL);
+        } else {
+            code.pushInt(loc);
+        }
+        code.invoke(ClassFileWriter.Code.INVOKESTATIC, MACHINE, "fault", "(II)L" + FAULT + ";");
+        code.op(ClassFileWriter.Code.ATHROW, -1);
+    }
+
+    /* Chunk generation */
+
+    private ClassFileWriter.Code code;
+    private ClassFileWriter.Label[] labels;
+    private ClassFileWriter.Label dispatch, exit;
+    private int chunkStart, chunkEnd;
+
+    private ClassFileWriter.Code generateChunk(ClassFileWriter writer, int start, int end) {
+        code = new ClassFileWriter.Code(writer, TEMP + 1);
+        chunkStart = start;
+        chunkEnd = end;
+        labels = new ClassFileWriter.Label[end - start];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = code.newLabel();
+        }
+        dispatch = code.newLabel();
+        exit = code.newLabel();
+
+        for (int r = 0; r < PC; r++) {
+            code.aload(REG);
+            code.pushInt(r);
+            code.op(ClassFileWriter.Code.IALOAD, -1);
+            code.istore(R0 + r);
+        }
+        code.aload(REG);
+        code.pushInt(PC);
+        code.op(ClassFileWriter.Code.IALOAD, -1);
+        code.istore(PC_LOCAL);
+
+        code.bind(dispatch);
+        code.iload(PC_LOCAL);
+        code.tableSwitch(start, exit, labels);
+
+        // Leaves the chunk, checking that the next pc is in the program
+        ClassFileWriter.Label fault = code.newLabel();
+        code.bind(exit);
+        code.iload(PC_LOCAL);
+        code.jump(ClassFileWriter.Code.IFLT, fault);
+        code.iload(PC_LOCAL);
+        code.pushInt(program.size());
+        code.jump(ClassFileWriter.Code.IF_ICMPGE, fault);
+        saveRegisters();
+        code.aload(REG);
+        code.pushInt(PC);
+        code.iload(PC_LOCAL);
+        code.op(ClassFileWriter.Code.IASTORE, -3);
+        code.iload(PC_LOCAL);
+        code.op(ClassFileWriter.Code.IRETURN, -1);
+        code.bind(fault);
+        generateFault(code, TMMachine.STATUS_IMEM_ERROR, -1);
+
+        List<Integer> faultLocs = new ArrayList<Integer>();
+        List<ClassFileWriter.Label> faultLabels = new ArrayList<ClassFileWriter.Label>();
+        for (int loc = start; loc < end; loc++) {
+            code.bind(labels[loc - start]);
+            ClassFileWriter.Label handler = generateInstruction(loc);
+            if (handler != null) {
+                faultLocs.add(loc);
+                faultLabels.add(handler);
+            }
+        }
+        jumpTo(end);
+
+        // Memory faults are caught from the array access rather than checked first
+        for (int i = 0; i < faultLabels.size(); i++) {
+            code.bind(faultLabels.get(i));
+            code.op(ClassFileWriter.Code.POP, -1);
+            generateFault(code, TMMachine.STATUS_DMEM_ERROR, faultLocs.get(i));
+        }
+        return code;
+    }
+
+    private void saveRegisters() {
+        for (int r = 0; r < PC; r++) {
+            code.aload(REG);
+            code.pushInt(r);
+            code.iload(R0 + r);
+            code.op(ClassFileWriter.Code.IASTORE, -3);
+        }
+    }
+
+    // Reading the pc gives the address of the next instruction
+    private void loadRegister(int r, int loc) {
+        if (r == PC) {
+            code.pushInt(loc + 1);
+        } else {
+            code.iload(R0 + r);
+        }
+    }
+
+    // Stores the value on the stack, treating a store to the pc as a computed jump
+    private void storeRegister(int r) {
+        if (r == PC) {
+            code.istore(PC_LOCAL);
+            code.jump(ClassFileWriter.Code.GOTO, dispatch);
+        } else {
+            code.istore(R0 + r);
+        }
+    }
+
+    private void jumpTo(int target) {
+        if (target >= chunkStart && target < chunkEnd) {
+            code.jump(ClassFileWriter.Code.GOTO, labels[target - chunkStart]);
+        } else {
+            code.pushInt(target);
+            code.istore(PC_LOCAL);
+            code.jump(ClassFileWriter.Code.GOTO, exit);
+        }
+    }
+
+    private void loadAddress(int s, int t, int loc) {
+        if (t == PC) {
+            code.pushInt(s + loc + 1);
+        } else {
+            code.iload(R0 + t);
+            if (s != 0) {
+                code.pushInt(s);
+                code.op(ClassFileWriter.Code.IADD, -1);
+            }
+        }
+    }
+
+    private static int getBranchOpcode(int op) {
+        switch (op) {
+            case TMProgram.JLT:
+                return ClassFileWriter.Code.IFLT;
+            case TMProgram.JLE:
+                return ClassFileWriter.Code.IFLE;
+            case TMProgram.JGT:
+                return ClassFileWriter.Code.IFGT;
+            case TMProgram.JGE:
+                return ClassFileWriter.Code.IFGE;
+            case TMProgram.JEQ:
+                return ClassFileWriter.Code.IFEQ;
+            default:
+                return ClassFileWriter.Code.IFNE;
+        }
+    }
+
+    // IFEQ/IFNE, IFLT/IFGE and IFGT/IFLE are adjacent pairs
+    private static int negateBranch(int opcode) {
+        return ((opcode - ClassFileWriter.Code.IFEQ) ^ 1) + ClassFileWriter.Code.IFEQ;
+    }
+
+    // Returns the memory fault handler label for instructions that access memory, otherwise null
+    private ClassFileWriter.Label generateInstruction(int loc) {
+        int op = program.ops[loc];
+        int r = program.rs[loc];
+        int s = program.ss[loc];
+        int t = program.ts[loc];
+        ClassFileWriter.Label start, end, handler;
+
+        switch (op) {
+            case TMProgram.HALT:
+                saveRegisters();
+                code.aload(REG);
+                code.pushInt(PC);
+                code.pushInt(loc + 1);
+                code.op(ClassFileWriter.Code.IASTORE, -3);
+                code.pushInt(-1 - loc);
+                code.op(ClassFileWriter.Code.IRETURN, -1);
+                return null;
+            case TMProgram.IN:
+                code.aload(VM);
+                code.pushInt(loc);
+                code.invoke(ClassFileWriter.Code.INVOKEVIRTUAL, MACHINE, "input", "(I)I");
+                storeRegister(r);
+                return null;
+            case TMProgram.OUT:
+                code.aload(VM);
+                loadRegister(r, loc);
+                code.pushInt(loc);
+                code.invoke(ClassFileWriter.Code.INVOKEVIRTUAL, MACHINE, "output", "(II)V");
+                return null;
+            case TMProgram.ADD:
+            case TMProgram.SUB:
+            case TMProgram.MUL:
+                loadRegister(s, loc);
+                loadRegister(t, loc);
+                code.op(op == TMProgram.ADD ? ClassFileWriter.Code.IADD
+                        : op == TMProgram.SUB ? ClassFileWriter.Code.ISUB : ClassFileWriter.Code.IMUL, -1);
+                storeRegister(r);
+                return null;
+            case TMProgram.DIV:
+                ClassFileWriter.Label nonZero = code.newLabel();
+                loadRegister(t, loc);
+                code.jump(ClassFileWriter.Code.IFNE, nonZero);
+                generateFault(code, TMMachine.STATUS_DIV_BY_ZERO, loc);
+                code.bind(nonZero);
+                loadRegister(s, loc);
+                loadRegister(t, loc);
+                code.op(ClassFileWriter.Code.IDIV, -1);
+                storeRegister(r);
+                return null;
+            case TMProgram.LD:
+                start = code.newLabel();
+                end = code.newLabel();
+                handler = code.newLabel();
+                code.aload(MEM);
+                loadAddress(s, t, loc);
+                code.bind(start);
+                code.op(ClassFileWriter.Code.IALOAD, -1);
+                code.bind(end);
+                code.addHandler(start, end, handler, "java/lang/ArrayIndexOutOfBoundsException");
+                storeRegister(r);
+                return handler;
+            case TMProgram.ST:
+                start = code.newLabel();
+                end = code.newLabel();
+                handler = code.newLabel();
+                code.aload(MEM);
+                loadAddress(s, t, loc);
+                loadRegister(r, loc);
+                code.bind(start);
+                code.op(ClassFileWriter.Code.IASTORE, -3);
+                code.bind(end);
+                code.addHandler(start, end, handler, "java/lang/ArrayIndexOutOfBoundsException");
+                return handler;
+            case TMProgram.LDA:
+                if (r == PC && t == PC) {
+                    jumpTo(s + loc + 1);
+                } else {
+                    loadAddress(s, t, loc);
+                    storeRegister(r);
+                }
+                return null;
+            case TMProgram.LDC:
+                if (r == PC) {
+                    jumpTo(s);
+                } else {
+                    code.pushInt(s);
+                    code.istore(R0 + r);
+                }
+                return null;
+            case TMProgram.LDB:
+            case TMProgram.LDAB:
+                code.aload(VM);
+                code.aload(MEM);
+                loadAddress(s, t, loc);
+                loadRegister(r, loc);
+                code.pushInt(loc);
+                code.invoke(ClassFileWriter.Code.INVOKEVIRTUAL, MACHINE,
+                        op == TMProgram.LDB ? "checkedLoad" : "checkedAddress", "([IIII)I");
+                storeRegister(r);
+                return null;
+            case TMProgram.CALL:
+                start = code.newLabel();
+                end = code.newLabel();
+                handler = code.newLabel();
+                loadAddress(s, t, loc);
+                code.istore(TEMP);
+                code.bind(start);
+                code.aload(MEM);
+                code.iload(TEMP);
+                code.pushInt(1);
+                code.op(ClassFileWriter.Code.ISUB, -1);
+                code.pushInt(loc + 1);
+                code.op(ClassFileWriter.Code.IASTORE, -3);
+                code.aload(MEM);
+                code.iload(TEMP);
+                code.iload(R0 + FP);
+                code.op(ClassFileWriter.Code.IASTORE, -3);
+                code.bind(end);
+                code.addHandler(start, end, handler, "java/lang/ArrayIndexOutOfBoundsException");
+                // The target is read before FP and AC change
+                loadRegister(r, loc);
+                code.iload(TEMP);
+                code.istore(R0 + FP);
+                code.pushInt(loc + 1);
+                code.istore(R0 + AC);
+                storeRegister(PC);
+                return handler;
+            case TMProgram.RET:
+                start = code.newLabel();
+                end = code.newLabel();
+                handler = code.newLabel();
+                code.bind(start);
+                code.aload(MEM);
+                code.iload(R0 + FP);
+                code.pushInt(1);
+                code.op(ClassFileWriter.Code.ISUB, -1);
+                code.op(ClassFileWriter.Code.IALOAD, -1);
+                code.aload(MEM);
+                code.iload(R0 + FP);
+                code.op(ClassFileWriter.Code.IALOAD, -1);
+                code.istore(R0 + FP);
+                code.bind(end);
+                code.addHandler(start, end, handler, "java/lang/ArrayIndexOutOfBoundsException");
+                storeRegister(PC);
+                return handler;
+            case TMProgram.PUSH:
+                start = code.newLabel();
+                end = code.newLabel();
+                handler = code.newLabel();
+                loadRegister(s, loc);
+                code.pushInt(1);
+                code.op(ClassFileWriter.Code.ISUB, -1);
+                code.istore(TEMP);
+                code.aload(MEM);
+                code.iload(TEMP);
+                loadRegister(r, loc);
+                code.bind(start);
+                code.op(ClassFileWriter.Code.IASTORE, -3);
+                code.bind(end);
+                code.addHandler(start, end, handler, "java/lang/ArrayIndexOutOfBoundsException");
+                code.iload(TEMP);
+                storeRegister(s);
+                return handler;
+            case TMProgram.POP:
+                start = code.newLabel();
+                end = code.newLabel();
+                handler = code.newLabel();
+                code.aload(MEM);
+                loadRegister(s, loc);
+                code.bind(start);
+                code.op(ClassFileWriter.Code.IALOAD, -1);
+                code.bind(end);
+                code.addHandler(start, end, handler, "java/lang/ArrayIndexOutOfBoundsException");
+                code.istore(TEMP);
+                code.iinc(R0 + s, 1);
+                code.iload(TEMP);
+                storeRegister(r);
+                return handler;
+            case TMProgram.LDX:
+                start = code.newLabel();
+                end = code.newLabel();
+                handler = code.newLabel();
+                code.aload(MEM);
+                loadRegister(s, loc);
+                loadRegister(t, loc);
+                code.op(ClassFileWriter.Code.IADD, -1);
+                code.bind(start);
+                code.op(ClassFileWriter.Code.IALOAD, -1);
+                code.bind(end);
+                code.addHandler(start, end, handler, "java/lang/ArrayIndexOutOfBoundsException");
+                storeRegister(r);
+                return handler;
+            case TMProgram.STX:
+                start = code.newLabel();
+                end = code.newLabel();
+                handler = code.newLabel();
+                code.aload(MEM);
+                loadRegister(s, loc);
+                loadRegister(t, loc);
+                code.op(ClassFileWriter.Code.IADD, -1);
+                loadRegister(r, loc);
+                code.bind(start);
+                code.op(ClassFileWriter.Code.IASTORE, -3);
+                code.bind(end);
+                code.addHandler(start, end, handler, "java/lang/ArrayIndexOutOfBoundsException");
+                return handler;
+            case TMProgram.JLT:
+            case TMProgram.JLE:
+            case TMProgram.JGT:
+            case TMProgram.JGE:
+            case TMProgram.JEQ:
+            case TMProgram.JNE:
+                int branch = getBranchOpcode(op);
+                loadRegister(r, loc);
+                if (t == PC && s + loc + 1 >= chunkStart && s + loc + 1 < chunkEnd) {
+                    code.jump(branch, labels[s + loc + 1 - chunkStart]);
+                } else {
+                    ClassFileWriter.Label skip = code.newLabel();
+                    code.jump(negateBranch(branch), skip);
+                    if (t == PC) {
+                        jumpTo(s + loc + 1);
+                    } else {
+                        loadAddress(s, t, loc);
+                        storeRegister(PC);
+                    }
+                    code.bind(skip);
+                }
+                return null;
+            default:
+                generateFault(code, TMMachine.STATUS_IMEM_ERROR, loc);
+                return null;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import absyn.*;
+
+/*
+ * Runs the annotated syntax tree without generating any code. The tree is
+ * compiled once into closures: each variable is resolved to a slot in the frame
+ * of its function (or in the global frame), each operator gets its own closure,
+ * and calls are bound to their function. Running the program then only calls
+ * closures, which the JVM compiles like any other code once they get hot.
+ * Output and runtime error codes are the same as with the TM code.
+ */
+public class TreeInterpreter {
+    private interface Eval {
+        int eval(Frame frame);
+    }
+
+    // Returns true once a return statement has run
+    private interface Exec {
+        boolean exec(Frame frame);
+    }
+
+    private interface ArrayRef {
+        int[] get(Frame frame);
+    }
+
+    private static final class Frame {
+        final int[] vars;
+        final int[][] arrays;
+        int result;
+
+        Frame(int numVars, int numArrays) {
+            vars = new int[numVars];
+            arrays = new int[numArrays][];
+        }
+    }
+
+    private static final class Function {
+        String name;
+        Exec body;
+        int numVars, numArrays;
+    }
+
+    // Thrown by a runtime error, after its code has been written to the output
+    private static class Trap extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        Trap(int code) {
+            super(null, null, false, false);
+            this.code = code;
+        }
+    }
+
+    private Map<String, Function> functions;
+    private Map<VarDec, Integer> globalSlots, localSlots; // Slot of each variable in vars or arrays
+    private Map<ArrayDec, Integer> globalArrays;
+    private Function currentFunc;
+    private Function mainFunc;
+    private Frame globals;
+
+    private BufferedReader in;
+    private PrintStream out;
+
+    public TreeInterpreter() {
+        functions = new HashMap<String, Function>();
+        globalSlots = new IdentityHashMap<VarDec, Integer>();
+        localSlots = new IdentityHashMap<VarDec, Integer>();
+        globalArrays = new IdentityHashMap<ArrayDec, Integer>();
+    }
+
+    public void compile(DecList tree) {
+        // Functions and globals are resolved first, since calls can come before the function
+        int numVars = 0, numArrays = 0;
+        for (DecList decs = tree; decs != null && decs.head != null; decs = decs.tail) {
+            Dec dec = decs.head;
+            if (dec instanceof FunctionDec && !(((FunctionDec) dec).body instanceof NilExp)) {
+                Function function = new Function();
+                function.name = dec.getName();
+                functions.put(function.name, function);
+            } else if (dec instanceof ArrayDec) {
+                globalArrays.put((ArrayDec) dec, numArrays);
+                globalSlots.put((VarDec) dec, numArrays++);
+            } else if (dec instanceof SimpleDec) {
+                globalSlots.put((VarDec) dec, numVars++);
+            }
+        }
+        globals = new Frame(numVars, numArrays);
+
+        for (DecList decs = tree; decs != null && decs.head != null; decs = decs.tail) {
+            if (decs.head instanceof FunctionDec && !(((FunctionDec) decs.head).body instanceof NilExp)) {
+                compileFunction((FunctionDec) decs.head);
+            }
+        }
+        mainFunc = functions.get("main");
+    }
+
+    /*
+     * Runs the program and returns 0, or the runtime error code that stopped it.
+     * Invalid or missing input throws a NumberFormatException, like the code
+     * generated by JVMGenerator.
+     */
+    public int execute(BufferedReader in, PrintStream out) {
+        this.in = in;
+        this.out = out;
+        Arrays.fill(globals.vars, 0);
+        for (Map.Entry<ArrayDec, Integer> entry : globalArrays.entrySet()) {
+            globals.arrays[entry.getValue()] = new int[entry.getKey().size];
+        }
+        try {
+            if (mainFunc != null) {
+                mainFunc.body.exec(new Frame(mainFunc.numVars, mainFunc.numArrays));
+            }
+            return 0;
+        } catch (Trap trap) {
+            return trap.code;
+        } finally {
+            out.flush();
+        }
+    }
+
+    private int input() {
+        try {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) {
+                    throw new NumberFormatException("End of input");
+                }
+                line = line.trim();
+            } while (line.isEmpty());
+            return Integer.parseInt(line);
+        } catch (IOException e) {
+            throw new NumberFormatException(e.getMessage());
+        }
+    }
+
+    private void output(int value) {
+        out.println(value);
+    }
+
+    private Trap trap(int code) {
+        output(code);
+        return new Trap(code);
+    }
+
+    private int checkIndex(int[] array, int index) {
+        if (index < 0) {
+            throw trap(CodeGenerator.OUT_OF_RANGE_BELOW_ERROR);
+        }
+        if (index >= array.length) {
+            throw trap(CodeGenerator.OUT_OF_RANGE_ABOVE_ERROR);
+        }
+        return index;
+    }
+
+    private void compileFunction(FunctionDec dec) {
+        Function function = functions.get(dec.func);
+        currentFunc = function;
+        localSlots.clear();
+        for (VarDecList params = dec.params; params != null && params.head != null; params = params.tail) {
+            allocate(params.head);
+        }
+        function.body = compileStatement(dec.body);
+        currentFunc = null;
+    }
+
+    private int allocate(VarDec dec) {
+        int slot = dec instanceof ArrayDec ? currentFunc.numArrays++ : currentFunc.numVars++;
+        localSlots.put(dec, slot);
+        return slot;
+    }
+
+    /* Statements */
+
+    private Exec compileStatement(Exp exp) {
+        if (exp instanceof CompoundExp) {
+            return compileCompound((CompoundExp) exp);
+        } else if (exp instanceof IfExp) {
+            IfExp ifExp = (IfExp) exp;
+            Eval test = compileExpression(ifExp.test);
+            Exec thenpart = compileStatement(ifExp.thenpart);
+            Exec elsepart = compileStatement(ifExp.elsepart);
+            return frame -> test.eval(frame) != 0 ? thenpart.exec(frame) : elsepart.exec(frame);
+        } else if (exp instanceof WhileExp) {
+            WhileExp whileExp = (WhileExp) exp;
+            Eval test = compileExpression(whileExp.test);
+            Exec body = compileStatement(whileExp.body);
+            return frame -> {
+                while (test.eval(frame) != 0) {
+                    if (body.exec(frame)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        } else if (exp instanceof ReturnExp) {
+            Exp value = ((ReturnExp) exp).exp;
+            if (value instanceof NilExp) {
+                return frame -> true;
+            }
+            Eval result = compileExpression(value);
+            return frame -> {
+                frame.result = result.eval(frame);
+                return true;
+            };
+        } else if (exp instanceof NilExp) {
+            return frame -> false;
+        }
+        Eval value = compileExpression(exp);
+        return frame -> {
+            value.eval(frame);
+            return false;
+        };
+    }
+
+    // Like the JVM code, scalars start at 0 and arrays are allocated each time the block is entered
+    private Exec compileCompound(CompoundExp exp) {
+        int numDecs = 0;
+        for (VarDecList decs = exp.decs; decs != null && decs.head != null; decs = decs.tail) {
+            numDecs++;
+        }
+        int[] varSlots = new int[numDecs];
+        int[] arraySlots = new int[numDecs];
+        int[] arraySizes = new int[numDecs];
+        int numVars = 0, numArrays = 0;
+        for (VarDecList decs = exp.decs; decs != null && decs.head != null; decs = decs.tail) {
+            int slot = allocate(decs.head);
+            if (decs.head instanceof ArrayDec) {
+                arraySizes[numArrays] = ((ArrayDec) decs.head).size;
+                arraySlots[numArrays++] = slot;
+            } else {
+                varSlots[numVars++] = slot;
+            }
+        }
+
+        int numStatements = 0;
+        for (ExpList exps = exp.exps; exps != null && exps.head != null; exps = exps.tail) {
+            numStatements++;
+        }
+        Exec[] statements = new Exec[numStatements];
+        int i = 0;
+        for (ExpList exps = exp.exps; exps != null && exps.head != null; exps = exps.tail) {
+            statements[i++] = compileStatement(exps.head);
+        }
+
+        int vars = numVars, arrays = numArrays;
+        return frame -> {
+            for (int j = 0; j < vars; j++) {
+                frame.vars[varSlots[j]] = 0;
+            }
+            for (int j = 0; j < arrays; j++) {
+                frame.arrays[arraySlots[j]] = new int[arraySizes[j]];
+            }
+            for (Exec statement : statements) {
+                if (statement.exec(frame)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /* Expressions */
+
+    private Eval compileExpression(Exp exp) {
+        if (exp instanceof IntExp) {
+            int value = ((IntExp) exp).value;
+            return frame -> value;
+        } else if (exp instanceof BoolExp) {
+            int value = ((BoolExp) exp).value ? 1 : 0;
+            return frame -> value;
+        } else if (exp instanceof VarExp) {
+            return compileLoad((VarExp) exp);
+        } else if (exp instanceof AssignExp) {
+            return compileAssign((AssignExp) exp);
+        } else if (exp instanceof CallExp) {
+            return compileCall((CallExp) exp);
+        } else if (exp instanceof OpExp) {
+            return compileOp((OpExp) exp);
+        } else if (exp instanceof NilExp) {
+            return frame -> 0;
+        }
+        throw new IllegalStateException("Unexpected expression " + exp.getClass().getSimpleName());
+    }
+
+    private Eval compileLoad(VarExp exp) {
+        VarDec dec = (VarDec) exp.dtype;
+        if (exp.var instanceof IndexVar) {
+            ArrayRef array = compileArray(dec);
+            Eval index = compileExpression(((IndexVar) exp.var).index);
+            return frame -> {
+                int[] a = array.get(frame);
+                return a[checkIndex(a, index.eval(frame))];
+            };
+        }
+        Integer local = localSlots.get(dec);
+        if (local != null) {
+            int slot = local;
+            return frame -> frame.vars[slot];
+        }
+        int[] vars = globals.vars;
+        int slot = globalSlots.get(dec);
+        return frame -> vars[slot];
+    }
+
+    // Index first, then the value, as in the JVM code
+    private Eval compileAssign(AssignExp exp) {
+        VarDec dec = (VarDec) exp.lhs.dtype;
+        Eval value = compileExpression(exp.rhs);
+        if (exp.lhs.var instanceof IndexVar) {
+            ArrayRef array = compileArray(dec);
+            Eval index = compileExpression(((IndexVar) exp.lhs.var).index);
+            return frame -> {
+                int[] a = array.get(frame);
+                int i = checkIndex(a, index.eval(frame));
+                return a[i] = value.eval(frame);
+            };
+        }
+        Integer local = localSlots.get(dec);
+        if (local != null) {
+            int slot = local;
+            return frame -> frame.vars[slot] = value.eval(frame);
+        }
+        int[] vars = globals.vars;
+        int slot = globalSlots.get(dec);
+        return frame -> vars[slot] = value.eval(frame);
+    }
+
+    private ArrayRef compileArray(VarDec dec) {
+        Integer local = localSlots.get(dec);
+        if (local != null) {
+            int slot = local;
+            return frame -> frame.arrays[slot];
+        }
+        int[][] arrays = globals.arrays;
+        int slot = globalSlots.get(dec);
+        return frame -> arrays[slot];
+    }
+
+    private Eval compileCall(CallExp exp) {
+        int numArgs = 0;
+        for (ExpList args = exp.args; args != null && args.head != null; args = args.tail) {
+            numArgs++;
+        }
+        if (exp.func.equals("input")) {
+            return frame -> input();
+        } else if (exp.func.equals("output")) {
+            Eval value = compileExpression(exp.args.head);
+            return frame -> {
+                output(value.eval(frame));
+                return 0;
+            };
+        }
+
+        Function function = functions.get(exp.func);
+        if (function == null) {
+            throw new IllegalStateException("Function " + exp.func + " has no body");
+        }
+        // Scalar and array parameters take the first slots of the callee, in order
+        int numValues = 0, numArrays = 0;
+        Eval[] values = new Eval[numArgs];
+        ArrayRef[] arrays = new ArrayRef[numArgs];
+        VarDecList params = ((FunctionDec) exp.dtype).params;
+        for (ExpList args = exp.args; args != null && args.head != null; args = args.tail) {
+            if (params.head instanceof ArrayDec) {
+                arrays[numArrays++] = compileArray((VarDec) args.head.dtype);
+            } else {
+                values[numValues++] = compileExpression(args.head);
+            }
+            params = params.tail;
+        }
+
+        int valueCount = numValues, arrayCount = numArrays;
+        return frame -> {
+            Frame callee = new Frame(function.numVars, function.numArrays);
+            for (int i = 0; i < valueCount; i++) {
+                callee.vars[i] = values[i].eval(frame);
+            }
+            for (int i = 0; i < arrayCount; i++) {
+                callee.arrays[i] = arrays[i].get(frame);
+            }
+            function.body.exec(callee);
+            return callee.result;
+        };
+    }
+
+    // Comparisons follow CodeGenerator.visit(OpExp)
+    private Eval compileOp(OpExp exp) {
+        Eval left = exp.left instanceof NilExp ? null : compileExpression(exp.left);
+        Eval right = compileExpression(exp.right);
+        switch (exp.op) {
+            case OpExp.ADD:
+                return frame -> left.eval(frame) + right.eval(frame);
+            case OpExp.SUBT:
+                return frame -> left.eval(frame) - right.eval(frame);
+            case OpExp.MULT:
+                return frame -> left.eval(frame) * right.eval(frame);
+            case OpExp.DIV:
+                return frame -> {
+                    int l = left.eval(frame);
+                    int r = right.eval(frame);
+                    if (r == 0) {
+                        throw trap(CodeGenerator.DIV_BY_ZERO_ERROR);
+                    }
+                    return l / r;
+                };
+            case OpExp.UMINUS:
+                return frame -> -right.eval(frame);
+            case OpExp.LT:
+                return frame -> left.eval(frame) - right.eval(frame) < 0 ? 1 : 0;
+            case OpExp.LTE:
+                return frame -> left.eval(frame) - right.eval(frame) <= 0 ? 1 : 0;
+            case OpExp.GT:
+                return frame -> left.eval(frame) - right.eval(frame) > 0 ? 1 : 0;
+            case OpExp.GTE:
+                return frame -> left.eval(frame) - right.eval(frame) >= 0 ? 1 : 0;
+            case OpExp.EQUAL:
+                return frame -> left.eval(frame) == right.eval(frame) ? 1 : 0;
+            case OpExp.NEQUAL:
+                return frame -> left.eval(frame) != right.eval(frame) ? 1 : 0;
+            case OpExp.AND:
+                return frame -> (left.eval(frame) != 0 ? 1 : 0) & (right.eval(frame) != 0 ? 1 : 0);
+            case OpExp.OR:
+                return frame -> (left.eval(frame) != 0 ? 1 : 0) | (right.eval(frame) != 0 ? 1 : 0);
+            case OpExp.BNOT:
+                return frame -> right.eval(frame) == 0 ? 1 : 0;
+        }
+        throw new IllegalStateException("Unexpected operator " + exp.op);
+    }
+}
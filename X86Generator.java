@@ -0,0 +1,641 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import absyn.*;
+
+/*
+ * Compiles the annotated syntax tree to x86-64 assembly for the GNU assembler on
+ * Linux. Expressions are evaluated into %eax with the machine stack holding
+ * intermediate values, and arguments are pushed left to right. Arrays keep their
+ * size in the word before the first element, as in the TM code, so bounds checks
+ * work on array parameters too. The program is linked without libc; a small
+ * runtime does I/O through system calls and reports runtime errors the same way
+ * as the TM virtual machine.
+ */
+public class X86Generator implements AbsynVisitor {
+    private static final int OUTPUT_BUFFER_SIZE = 4096;
+    private static final int INPUT_BUFFER_SIZE = 4096;
+
+    private StringBuilder output; // Text of the whole program
+    private StringBuilder data; // Global variables
+    private StringBuilder code; // Body of the current function
+    private Map<VarDec, Integer> frameOffsets; // %rbp offset of each local variable and parameter
+    private FunctionDec currentFunc;
+    private int frameSize;
+    private int numLabels;
+
+    public X86Generator() {
+        frameOffsets = new IdentityHashMap<VarDec, Integer>();
+    }
+
+    public String generate(DecList tree) {
+        output = new StringBuilder();
+        data = new StringBuilder();
+        numLabels = 0;
+
+        output.append("# C- program compiled for x86-64 Linux\n");
+        output.append("\t.text\n");
+        tree.accept(this, 0, false);
+        generateRuntime();
+        output.append("\n\t.data\n");
+        output.append(data);
+        output.append("\n\t.bss\n");
+        output.append("\t.lcomm cm_outbuf, " + OUTPUT_BUFFER_SIZE + "\n");
+        output.append("\t.lcomm cm_inbuf, " + INPUT_BUFFER_SIZE + "\n");
+        output.append("\t.lcomm cm_numbuf, 16\n");
+        output.append("\t.section .note.GNU-stack,\"\",@progbits\n");
+        return output.toString();
+    }
+
+    public boolean writeFile(String text, String outputFile) {
+        try {
+            FileOutputStream outputStream = new FileOutputStream(new File(outputFile));
+            outputStream.write(text.getBytes());
+            outputStream.close();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to write assembly code to \"" + outputFile + "\".");
+            return false;
+        }
+    }
+
+    // Assembles and links the program with as and ld, returning true on success
+    public static boolean link(String assemblyFile, String executableFile) {
+        String objectFile = executableFile + ".o";
+        try {
+            if (runTool("as", "-o", objectFile, assemblyFile) != 0 || runTool("ld", "-o", executableFile, objectFile) != 0) {
+                return false;
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Failed to run the assembler or linker: " + e.getMessage());
+            return false;
+        } finally {
+            new File(objectFile).delete();
+        }
+        return true;
+    }
+
+    private static int runTool(String... command) throws IOException, InterruptedException {
+        return new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+
+    private String newLabel() {
+        return ".L" + (numLabels++);
+    }
+
+    private void emit(String instruction) {
+        code.append("\t").append(instruction).append("\n");
+    }
+
+    private void emitLabel(String label) {
+        code.append(label).append(":\n");
+    }
+
+    private void emitComment(String comment) {
+        code.append("\t# ").append(comment).append("\n");
+    }
+
+    private static String getFunctionLabel(String name) {
+        return "f_" + name;
+    }
+
+    private static String getGlobalLabel(String name) {
+        return "g_" + name;
+    }
+
+    private static boolean isParamArray(VarDec dec) {
+        return dec instanceof ArrayDec && ((ArrayDec) dec).size == ArrayDec.UNKNOWN_SIZE;
+    }
+
+    // Memory operand of a scalar variable
+    private String getOperand(VarDec dec) {
+        Integer offset = frameOffsets.get(dec);
+        if (offset == null) {
+            return getGlobalLabel(dec.name) + "(%rip)";
+        }
+        return offset + "(%rbp)";
+    }
+
+    // Loads the address of an array's size word into a register
+    private void loadArrayAddress(VarDec dec, String reg) {
+        if (isParamArray(dec) && frameOffsets.containsKey(dec)) {
+            emit("movq " + getOperand(dec) + ", " + reg);
+        } else {
+            emit("leaq " + getOperand(dec) + ", " + reg);
+        }
+    }
+
+    // Evaluates the index into %ecx and the array into %rdx, then checks the bounds
+    private void generateIndex(IndexVar var, VarDec dec) {
+        var.index.accept(this, 0, false);
+        emit("movl %eax, %ecx");
+        loadArrayAddress(dec, "%rdx");
+        emit("testl %ecx, %ecx");
+        emit("js cm_trap_below");
+        emit("cmpl (%rdx), %ecx");
+        emit("jge cm_trap_above");
+    }
+
+    // Sets %eax to 1 if the condition holds for the flags, otherwise 0
+    private void emitCondition(String condition) {
+        emit("set" + condition + " %al");
+        emit("movzbl %al, %eax");
+    }
+
+    public void visit(NameTy type, int level, boolean isAddress) {
+    }
+
+    public void visit(IndexVar var, int level, boolean isAddress) {
+    }
+
+    public void visit(SimpleVar var, int level, boolean isAddress) {
+    }
+
+    public void visit(AssignExp exp, int level, boolean isAddress) {
+        VarDec dec = (VarDec) exp.lhs.dtype;
+        if (exp.lhs.var instanceof IndexVar) {
+            generateIndex((IndexVar) exp.lhs.var, dec);
+            emit("pushq %rcx");
+            exp.rhs.accept(this, level, false);
+            emit("popq %rcx");
+            loadArrayAddress(dec, "%rdx");
+            emit("movl %eax, 4(%rdx,%rcx,4)");
+        } else {
+            exp.rhs.accept(this, level, false);
+            emit("movl %eax, " + getOperand(dec));
+        }
+    }
+
+    public void visit(BoolExp exp, int level, boolean isAddress) {
+        emit("movl $" + (exp.value ? 1 : 0) + ", %eax");
+    }
+
+    public void visit(CallExp exp, int level, boolean isAddress) {
+        int numArgs = 0;
+        ExpList args = exp.args;
+        while (args != null && args.head != null) {
+            args.head.accept(this, level, false);
+            emit("pushq %rax");
+            numArgs++;
+            args = args.tail;
+        }
+
+        if (exp.func.equals("input")) {
+            emit("call cm_input");
+        } else if (exp.func.equals("output")) {
+            emit("popq %rdi");
+            emit("call cm_output");
+            numArgs--;
+        } else {
+            emit("call " + getFunctionLabel(exp.func));
+        }
+        if (numArgs > 0) {
+            emit("addq $" + (8 * numArgs) + ", %rsp");
+        }
+    }
+
+    public void visit(CompoundExp exp, int level, boolean isAddress) {
+        exp.decs.accept(this, level + 1, false);
+        exp.exps.accept(this, level + 1, false);
+    }
+
+    public void visit(IfExp exp, int level, boolean isAddress) {
+        String elseLabel = newLabel();
+        String endLabel = newLabel();
+        exp.test.accept(this, level, false);
+        emit("testl %eax, %eax");
+        emit("je " + elseLabel);
+        exp.thenpart.accept(this, level, false);
+        emit("jmp " + endLabel);
+        emitLabel(elseLabel);
+        exp.elsepart.accept(this, level, false);
+        emitLabel(endLabel);
+    }
+
+    public void visit(IntExp exp, int level, boolean isAddress) {
+        emit("movl $" + exp.value + ", %eax");
+    }
+
+    public void visit(NilExp exp, int level, boolean isAddress) {
+    }
+
+    public void visit(OpExp exp, int level, boolean isAddress) {
+        if (exp.op == OpExp.UMINUS || exp.op == OpExp.BNOT) {
+            exp.right.accept(this, level, false);
+            if (exp.op == OpExp.UMINUS) {
+                emit("negl %eax");
+            } else {
+                emit("testl %eax, %eax");
+                emitCondition("e");
+            }
+            return;
+        }
+
+        exp.left.accept(this, level, false);
+        emit("pushq %rax");
+        exp.right.accept(this, level, false);
+        emit("movl %eax, %ecx");
+        emit("popq %rax");
+
+        // Comparisons follow CodeGenerator.visit(OpExp)
+        switch (exp.op) {
+            case OpExp.ADD:
+                emit("addl %ecx, %eax");
+                break;
+            case OpExp.SUBT:
+                emit("subl %ecx, %eax");
+                break;
+            case OpExp.MULT:
+                emit("imull %ecx, %eax");
+                break;
+            case OpExp.DIV:
+                // idiv faults on MIN_VALUE / -1, where the TM gives MIN_VALUE
+                String divide = newLabel();
+                String end = newLabel();
+                emit("testl %ecx, %ecx");
+                emit("je cm_trap_div");
+                emit("cmpl $-1, %ecx");
+                emit("jne " + divide);
+                emit("negl %eax");
+                emit("jmp " + end);
+                emitLabel(divide);
+                emit("cltd");
+                emit("idivl %ecx");
+                emitLabel(end);
+                break;
+            case OpExp.LT:
+                emit("subl %ecx, %eax");
+                emitCondition("s");
+                break;
+            case OpExp.LTE:
+                emit("subl %ecx, %eax");
+                emit("testl %eax, %eax");
+                emitCondition("le");
+                break;
+            case OpExp.GT:
+                emit("subl %ecx, %eax");
+                emit("testl %eax, %eax");
+                emitCondition("g");
+                break;
+            case OpExp.GTE:
+                emit("subl %ecx, %eax");
+                emitCondition("ns");
+                break;
+            case OpExp.EQUAL:
+                emit("cmpl %ecx, %eax");
+                emitCondition("e");
+                break;
+            case OpExp.NEQUAL:
+                emit("cmpl %ecx, %eax");
+                emitCondition("ne");
+                break;
+            case OpExp.AND:
+                emit("testl %eax, %eax");
+                emit("setne %al");
+                emit("testl %ecx, %ecx");
+                emit("setne %cl");
+                emit("andb %cl, %al");
+                emit("movzbl %al, %eax");
+                break;
+            case OpExp.OR:
+                emit("orl %ecx, %eax");
+                emit("testl %eax, %eax");
+                emitCondition("ne");
+                break;
+        }
+    }
+
+    public void visit(ReturnExp exp, int level, boolean isAddress) {
+        exp.exp.accept(this, level, false);
+        emit("leave");
+        emit("ret");
+    }
+
+    public void visit(VarExp exp, int level, boolean isAddress) {
+        VarDec dec = (VarDec) exp.dtype;
+        if (exp.var instanceof IndexVar) {
+            generateIndex((IndexVar) exp.var, dec);
+            emit("movl 4(%rdx,%rcx,4), %eax");
+        } else if (dec instanceof ArrayDec) {
+            loadArrayAddress(dec, "%rax");
+        } else {
+            emit("movl " + getOperand(dec) + ", %eax");
+        }
+    }
+
+    public void visit(WhileExp exp, int level, boolean isAddress) {
+        String testLabel = newLabel();
+        String endLabel = newLabel();
+        emitLabel(testLabel);
+        exp.test.accept(this, level, false);
+        emit("testl %eax, %eax");
+        emit("je " + endLabel);
+        exp.body.accept(this, level, false);
+        emit("jmp " + testLabel);
+        emitLabel(endLabel);
+    }
+
+    public void visit(ExpList expList, int level, boolean isAddress) {
+        while (expList != null && expList.head != null) {
+            expList.head.accept(this, level, false);
+            expList = expList.tail;
+        }
+    }
+
+    public void visit(DecList decList, int level, boolean isAddress) {
+        while (decList != null && decList.head != null) {
+            decList.head.accept(this, level, false);
+            decList = decList.tail;
+        }
+    }
+
+    public void visit(VarDecList varDecList, int level, boolean isAddress) {
+        while (varDecList != null && varDecList.head != null) {
+            varDecList.head.accept(this, level, false);
+            varDecList = varDecList.tail;
+        }
+    }
+
+    public void visit(FunctionDec dec, int level, boolean isAddress) {
+        if (dec.body instanceof NilExp) {
+            return;
+        }
+        currentFunc = dec;
+        frameOffsets.clear();
+        frameSize = 0;
+        code = new StringBuilder();
+
+        // Arguments are pushed left to right above the return address and saved %rbp
+        int numParams = 0;
+        VarDecList params = dec.params;
+        while (params != null && params.head != null) {
+            numParams++;
+            params = params.tail;
+        }
+        params = dec.params;
+        for (int i = 0; params != null && params.head != null; i++) {
+            frameOffsets.put(params.head, 16 + 8 * (numParams - 1 - i));
+            params = params.tail;
+        }
+
+        dec.body.accept(this, level + 1, false);
+
+        // Insert automatic return
+        if (dec.result.type != NameTy.VOID) {
+            emit("xorl %eax, %eax");
+        }
+        emit("leave");
+        emit("ret");
+
+        output.append("\n# Function " + dec.func + "\n");
+        output.append("\t.globl " + getFunctionLabel(dec.func) + "\n");
+        output.append(getFunctionLabel(dec.func) + ":\n");
+        output.append("\tpushq %rbp\n");
+        output.append("\tmovq %rsp, %rbp\n");
+        if (frameSize > 0) {
+            output.append("\tsubq $" + frameSize + ", %rsp\n");
+        }
+        output.append(code);
+        currentFunc = null;
+    }
+
+    public void visit(ArrayDec varDec, int level, boolean isAddress) {
+        if (currentFunc == null) {
+            data.append("\t.align 4\n");
+            data.append(getGlobalLabel(varDec.name) + ":\n");
+            data.append("\t.long " + varDec.size + "\n");
+            data.append("\t.zero " + (4 * varDec.size) + "\n");
+            return;
+        }
+
+        frameSize += (4 * (varDec.size + 1) + 7) & ~7;
+        frameOffsets.put(varDec, -frameSize);
+        emitComment("Array " + varDec.name);
+        emit("leaq " + (-frameSize) + "(%rbp), %rdi");
+        emit("movl $" + varDec.size + ", (%rdi)");
+        emit("addq $4, %rdi");
+        emit("movl $" + varDec.size + ", %ecx");
+        emit("xorl %eax, %eax");
+        emit("rep stosl");
+    }
+
+    public void visit(SimpleDec varDec, int level, boolean isAddress) {
+        if (currentFunc == null) {
+            data.append("\t.align 4\n");
+            data.append(getGlobalLabel(varDec.name) + ":\n");
+            data.append("\t.long 0\n");
+            return;
+        }
+
+        frameSize += 8;
+        frameOffsets.put(varDec, -frameSize);
+        emit("movl $0, " + (-frameSize) + "(%rbp)");
+    }
+
+    private void generateRuntime() {
+        output.append("\n# Runtime\n");
+        output.append("\t.globl _start\n");
+        output.append(String.join("\n",
+                "_start:",
+                "\tcall f_main",
+                "\tcall cm_flush",
+                "\tmovl $60, %eax",
+                "\txorl %edi, %edi",
+                "\tsyscall",
+                "",
+                "# Writes the output buffer to standard output",
+                "cm_flush:",
+                "\tleaq cm_outbuf(%rip), %rsi",
+                "\tmovq cm_outlen(%rip), %rdx",
+                "1:\ttestq %rdx, %rdx",
+                "\tjle 2f",
+                "\tmovl $1, %eax",
+                "\tmovl $1, %edi",
+                "\tsyscall",
+                "\ttestq %rax, %rax",
+                "\tjle 2f",
+                "\taddq %rax, %rsi",
+                "\tsubq %rax, %rdx",
+                "\tjmp 1b",
+                "2:\tmovq $0, cm_outlen(%rip)",
+                "\tret",
+                "",
+                "# Prints %edi and a newline",
+                "cm_output:",
+                "\tmovl %edi, %eax",
+                "\tleaq cm_numbuf+16(%rip), %rsi",
+                "\tdecq %rsi",
+                "\tmovb $10, (%rsi)",
+                "\ttestl %eax, %eax",
+                "\tjns 1f",
+                "\tnegl %eax",
+                "1:\tmovl $10, %ecx",
+                "2:\txorl %edx, %edx",
+                "\tdivl %ecx",
+                "\taddb $48, %dl",
+                "\tdecq %rsi",
+                "\tmovb %dl, (%rsi)",
+                "\ttestl %eax, %eax",
+                "\tjnz 2b",
+                "\ttestl %edi, %edi",
+                "\tjns 3f",
+                "\tdecq %rsi",
+                "\tmovb $45, (%rsi)",
+                "3:\tleaq cm_numbuf+16(%rip), %rcx",
+                "\tsubq %rsi, %rcx",
+                "\tmovq cm_outlen(%rip), %rax",
+                "\tleaq (%rax,%rcx), %rdx",
+                "\tcmpq $" + OUTPUT_BUFFER_SIZE + ", %rdx",
+                "\tjbe 4f",
+                "\tpushq %rsi",
+                "\tpushq %rcx",
+                "\tcall cm_flush",
+                "\tpopq %rcx",
+                "\tpopq %rsi",
+                "\txorl %eax, %eax",
+                "4:\tleaq cm_outbuf(%rip), %rdi",
+                "\taddq %rax, %rdi",
+                "\taddq %rcx, %rax",
+                "\tmovq %rax, cm_outlen(%rip)",
+                "\trep movsb",
+                "\tret",
+                "",
+                "# Returns the next input byte in %eax, or -1 at the end of input",
+                "cm_getc:",
+                "\tmovq cm_inpos(%rip), %rax",
+                "\tcmpq cm_inlen(%rip), %rax",
+                "\tjl 1f",
+                "\txorl %eax, %eax",
+                "\txorl %edi, %edi",
+                "\tleaq cm_inbuf(%rip), %rsi",
+                "\tmovl $" + INPUT_BUFFER_SIZE + ", %edx",
+                "\tsyscall",
+                "\ttestq %rax, %rax",
+                "\tjle 2f",
+                "\tmovq %rax, cm_inlen(%rip)",
+                "\txorl %eax, %eax",
+                "1:\tleaq cm_inbuf(%rip), %rdx",
+                "\tmovzbl (%rdx,%rax), %ecx",
+                "\tincq %rax",
+                "\tmovq %rax, cm_inpos(%rip)",
+                "\tmovl %ecx, %eax",
+                "\tret",
+                "2:\tmovq $0, cm_inlen(%rip)",
+                "\tmovq $0, cm_inpos(%rip)",
+                "\tmovl $-1, %eax",
+                "\tret",
+                "",
+                "# Reads an integer from standard input into %eax. Like Integer.parseInt on the trimmed line,",
+                "# blank lines are skipped and anything but one number in range on the next line is an error",
+                "cm_input:",
+                "\tcall cm_flush",
+                "\tpushq %rbx",
+                "\tpushq %r12",
+                "\tpushq %r13",
+                "1:\tcall cm_getc",
+                "\tcmpl $-1, %eax",
+                "\tje cm_input_error",
+                "\tcmpl $32, %eax",
+                "\tjle 1b",
+                "\txorl %r12d, %r12d",
+                "\tcmpl $45, %eax",
+                "\tjne 2f",
+                "\tmovl $1, %r12d",
+                "\tjmp 3f",
+                "2:\tcmpl $43, %eax",
+                "\tjne 4f",
+                "3:\tcall cm_getc",
+                "4:\txorl %ebx, %ebx",
+                "\txorl %r13d, %r13d",
+                "5:\tsubl $48, %eax",
+                "\tcmpl $9, %eax",
+                "\tja 6f",
+                "\timulq $10, %rbx, %rbx",
+                "\taddq %rax, %rbx",
+                "\tmovl $0x80000000, %ecx",
+                "\tcmpq %rcx, %rbx",
+                "\tja cm_input_error",
+                "\tincl %r13d",
+                "\tcall cm_getc",
+                "\tjmp 5b",
+                "6:\taddl $48, %eax",
+                "\ttestl %r13d, %r13d",
+                "\tjz cm_input_error",
+                "7:\tcmpl $-1, %eax",
+                "\tje 8f",
+                "\tcmpl $10, %eax",
+                "\tje 8f",
+                "\tcmpl $13, %eax",
+                "\tje 8f",
+                "\tcmpl $32, %eax",
+                "\tjg cm_input_error",
+                "\tcall cm_getc",
+                "\tjmp 7b",
+                "8:\ttestl %r12d, %r12d",
+                "\tjz 9f",
+                "\tnegq %rbx",
+                "\tjmp 10f",
+                "9:\tmovl $0x80000000, %ecx",
+                "\tcmpq %rcx, %rbx",
+                "\tje cm_input_error",
+                "10:\tmovl %ebx, %eax",
+                "\tpopq %r13",
+                "\tpopq %r12",
+                "\tpopq %rbx",
+                "\tret",
+                "",
+                "# Runtime errors print their code, then stop with a message on standard error",
+                "cm_trap_below:",
+                "\tmovl $" + CodeGenerator.OUT_OF_RANGE_BELOW_ERROR + ", %edi",
+                "\tleaq cm_msg_below(%rip), %rbx",
+                "\tmovl $cm_msg_below_len, %r12d",
+                "\tjmp cm_trap",
+                "cm_trap_above:",
+                "\tmovl $" + CodeGenerator.OUT_OF_RANGE_ABOVE_ERROR + ", %edi",
+                "\tleaq cm_msg_above(%rip), %rbx",
+                "\tmovl $cm_msg_above_len, %r12d",
+                "\tjmp cm_trap",
+                "cm_trap_div:",
+                "\tmovl $" + CodeGenerator.DIV_BY_ZERO_ERROR + ", %edi",
+                "\tleaq cm_msg_div(%rip), %rbx",
+                "\tmovl $cm_msg_div_len, %r12d",
+                "cm_trap:",
+                "\tcall cm_output",
+                "\tjmp cm_fail",
+                "cm_input_error:",
+                "\tleaq cm_msg_input(%rip), %rbx",
+                "\tmovl $cm_msg_input_len, %r12d",
+                "cm_fail:",
+                "\tcall cm_flush",
+                "\tmovl $1, %eax",
+                "\tmovl $2, %edi",
+                "\tmovq %rbx, %rsi",
+                "\tmovl %r12d, %edx",
+                "\tsyscall",
+                "\tmovl $60, %eax",
+                "\tmovl $1, %edi",
+                "\tsyscall",
+                ""));
+
+        data.append("\t.align 8\n");
+        data.append("cm_outlen:\n\t.quad 0\n");
+        data.append("cm_inlen:\n\t.quad 0\n");
+        data.append("cm_inpos:\n\t.quad 0\n");
+        appendMessage("cm_msg_below", "Runtime error " + CodeGenerator.OUT_OF_RANGE_BELOW_ERROR + ": "
+                + TMMachine.getRuntimeErrorName(CodeGenerator.OUT_OF_RANGE_BELOW_ERROR));
+        appendMessage("cm_msg_above", "Runtime error " + CodeGenerator.OUT_OF_RANGE_ABOVE_ERROR + ": "
+                + TMMachine.getRuntimeErrorName(CodeGenerator.OUT_OF_RANGE_ABOVE_ERROR));
+        appendMessage("cm_msg_div", "Runtime error " + CodeGenerator.DIV_BY_ZERO_ERROR + ": "
+                + TMMachine.getRuntimeErrorName(CodeGenerator.DIV_BY_ZERO_ERROR));
+        appendMessage("cm_msg_input", "Invalid or missing input");
+    }
+
+    private void appendMessage(String label, String message) {
+        data.append(label + ":\n");
+        data.append("\t.ascii \"" + message + "\\n\"\n");
+        data.append("\t.set " + label + "_len, . - " + label + "\n");
+    }
+}